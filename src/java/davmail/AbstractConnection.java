@@ -26,6 +26,7 @@ import org.apache.commons.codec.binary.Base64;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 
 /**
@@ -49,6 +50,15 @@ public class AbstractConnection extends Thread {
     protected State state = State.INITIAL;
     // Exchange session proxy
     protected ExchangeSession session;
+    // connection engine, null in thread per connection mode
+    protected ConnectionEngine engine;
+    // parked connection timeout, set by connection engine
+    volatile long parkDeadline;
+    boolean parkTimedOut;
+    // parked connection resumed before timeout, set by connection engine wakeup
+    volatile boolean parkWakeup;
+    // true when run() is called again on a parked connection
+    protected boolean resumed;
 
     /**
      * Only set the thread name and socket
@@ -148,6 +158,10 @@ public class AbstractConnection extends Thread {
      * @throws IOException when unable to read line
      */
     public String readClient() throws IOException {
+        if (parkTimedOut) {
+            parkTimedOut = false;
+            throw new SocketTimeoutException();
+        }
         String line = in.readLine();
         if (line != null) {
             if (line.startsWith("PASS")) {
@@ -174,6 +188,54 @@ public class AbstractConnection extends Thread {
         return line;
     }
 
+    /**
+     * Check if connection releases its worker thread between client commands (parkUntilReadable),
+     * other connections run on their own thread in connection engine mode.
+     *
+     * @return true if connection can be parked
+     */
+    protected boolean isParkable() {
+        return true;
+    }
+
+    /**
+     * Release worker thread while waiting for the next client command in connection engine mode,
+     * connection is resumed by the engine when client data is available.
+     *
+     * @return true if connection is parked, caller must return from run() without closing the connection
+     * @throws IOException on error
+     */
+    protected boolean parkUntilReadable() throws IOException {
+        return parkUntilReadable(client.getSoTimeout());
+    }
+
+    /**
+     * Release worker thread while waiting for client data in connection engine mode.
+     *
+     * @param timeout timeout in milliseconds, 0 means no timeout
+     * @return true if connection is parked, caller must return from run() without closing the connection
+     * @throws IOException on error
+     */
+    protected boolean parkUntilReadable(long timeout) throws IOException {
+        if (engine != null && in != null && in.available() == 0) {
+            os.flush();
+            engine.park(this, timeout);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if the last wait for client data ended on timeout, reset flag.
+     *
+     * @return true on timeout
+     */
+    protected boolean isParkTimedOut() {
+        boolean timedOut = parkTimedOut;
+        parkTimedOut = false;
+        return timedOut;
+    }
+
     /**
      * Close client connection, streams and Exchange session .
      */
@@ -29,7 +29,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 
@@ -41,6 +43,7 @@ public abstract class AbstractServer extends Thread {
     protected final int port;
     protected final ExchangeSessionFactory sessionFactory;
     protected ServerSocket serverSocket;
+    protected ConnectionEngine connectionEngine;
 
     /**
      * Get server protocol name (SMTP, POP, IMAP, ...).
@@ -89,6 +92,10 @@ public abstract class AbstractServer extends Thread {
         ServerSocketFactory serverSocketFactory;
         if (keystoreFile == null || keystoreFile.length() == 0 || nosslFlag) {
             serverSocketFactory = ServerSocketFactory.getDefault();
+            if (ConnectionEngine.isEnabled()) {
+                bindChannel(bindAddress);
+                return;
+            }
         } else {
             FileInputStream keyStoreInputStream = null;
             try {
@@ -140,6 +147,28 @@ public abstract class AbstractServer extends Thread {
     }
 
 
+    /**
+     * Bind a non blocking server socket channel, client connections are handled by the connection engine.
+     * Note: SSL listeners always use blocking server sockets.
+     *
+     * @param bindAddress optional bind address
+     * @throws DavMailException unable to create server socket
+     */
+    protected void bindChannel(String bindAddress) throws DavMailException {
+        try {
+            ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+            serverSocket = serverSocketChannel.socket();
+            if (bindAddress == null || bindAddress.length() == 0) {
+                serverSocket.bind(new InetSocketAddress(port));
+            } else {
+                serverSocket.bind(new InetSocketAddress(Inet4Address.getByName(bindAddress), port));
+            }
+            connectionEngine = new ConnectionEngine(this, serverSocketChannel);
+        } catch (IOException e) {
+            throw new DavMailException("LOG_SOCKET_BIND_FAILED", getProtocolName(), port);
+        }
+    }
+
     /**
      * The body of the server thread.  Loop forever, listening for and
      * accepting connections from clients.  For each connection,
@@ -148,6 +177,17 @@ public abstract class AbstractServer extends Thread {
      */
     @Override
     public void run() {
+        if (connectionEngine != null) {
+            try {
+                connectionEngine.run();
+            } catch (IOException e) {
+                // do not warn if exception on socket close (gateway restart)
+                if (!serverSocket.isClosed()) {
+                    DavGatewayTray.warn(new BundleMessage("LOG_EXCEPTION_LISTENING_FOR_CONNECTIONS"), e);
+                }
+            }
+            return;
+        }
         Socket clientSocket = null;
         AbstractConnection connection = null;
         try {
@@ -198,6 +238,9 @@ public abstract class AbstractServer extends Thread {
      * Close server socket
      */
     public void close() {
+        if (connectionEngine != null) {
+            connectionEngine.close();
+        }
         try {
             if (serverSocket != null) {
                 serverSocket.close();
@@ -0,0 +1,354 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail;
+
+import davmail.ui.tray.DavGatewayTray;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based connection engine, replaces the thread per connection model in server mode.
+ * A single selector thread per listener accepts client sockets and watches idle connections,
+ * protocol commands run on a bounded worker pool shared by all listeners.
+ * Connections waiting for the next client command (or in IMAP IDLE) are parked on the selector
+ * and do not hold a worker thread.
+ * Connections that never park (LDAP) run on their own thread as in thread per connection mode.
+ * The worker pool grows from davmail.nioWorkerThreads up to davmail.nioMaxWorkerThreads threads:
+ * new connections are refused when all workers are busy, resumed connections wait for the next free worker.
+ */
+public final class ConnectionEngine {
+    private static final Logger LOGGER = Logger.getLogger(ConnectionEngine.class);
+
+    private static ThreadPoolExecutor workerPool;
+
+    private final AbstractServer server;
+    private final ServerSocketChannel serverSocketChannel;
+    private final Selector selector;
+    /**
+     * Connections waiting for registration on the selector thread.
+     */
+    private final ConcurrentLinkedQueue<AbstractConnection> parkQueue = new ConcurrentLinkedQueue<AbstractConnection>();
+    /**
+     * Resumed connections waiting for a free worker, bounded by parked connection count.
+     */
+    private final ConcurrentLinkedQueue<AbstractConnection> resumeQueue = new ConcurrentLinkedQueue<AbstractConnection>();
+
+    /**
+     * Create connection engine for listener.
+     *
+     * @param server              listener
+     * @param serverSocketChannel non blocking server socket channel
+     * @throws IOException on error
+     */
+    public ConnectionEngine(AbstractServer server, ServerSocketChannel serverSocketChannel) throws IOException {
+        this.server = server;
+        this.serverSocketChannel = serverSocketChannel;
+        this.selector = Selector.open();
+        serverSocketChannel.configureBlocking(false);
+        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Check settings: engine enabled in server mode only.
+     *
+     * @return true if connection engine is enabled
+     */
+    public static boolean isEnabled() {
+        return Settings.getBooleanProperty("davmail.server") && Settings.getBooleanProperty("davmail.enableNio");
+    }
+
+    protected static synchronized ThreadPoolExecutor getWorkerPool() {
+        if (workerPool == null) {
+            int workerThreads = Settings.getIntProperty("davmail.nioWorkerThreads", 50);
+            int maxWorkerThreads = Math.max(workerThreads, Settings.getIntProperty("davmail.nioMaxWorkerThreads", 200));
+            workerPool = new ThreadPoolExecutor(workerThreads, maxWorkerThreads, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger threadCount = new AtomicInteger();
+
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "ConnectionWorker-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            workerPool.allowCoreThreadTimeOut(true);
+        }
+        return workerPool;
+    }
+
+    /**
+     * Start a new client connection: on a worker thread if connection can be parked,
+     * on its own thread otherwise.
+     *
+     * @param connection connection handler
+     */
+    public void start(AbstractConnection connection) {
+        if (connection.isParkable()) {
+            execute(connection);
+        } else {
+            connection.start();
+        }
+    }
+
+    /**
+     * Run new connection handler on a worker thread, refuse connection if all workers are busy.
+     *
+     * @param connection connection handler
+     */
+    public void execute(AbstractConnection connection) {
+        if (!submit(connection)) {
+            LOGGER.warn("All " + getWorkerPool().getMaximumPoolSize() + " connection workers busy, closing connection " + connection.getName());
+            connection.close();
+        }
+    }
+
+    /**
+     * Run connection handler on a worker thread, then resumed connections waiting for a worker.
+     *
+     * @param connection connection handler
+     * @return false if all workers are busy
+     */
+    protected boolean submit(final AbstractConnection connection) {
+        connection.engine = this;
+        try {
+            getWorkerPool().execute(new Runnable() {
+                public void run() {
+                    runConnection(connection);
+                    AbstractConnection pendingConnection;
+                    while ((pendingConnection = resumeQueue.poll()) != null) {
+                        runConnection(pendingConnection);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    protected void runConnection(AbstractConnection connection) {
+        Thread currentThread = Thread.currentThread();
+        String workerName = currentThread.getName();
+        // keep connection name in logs
+        currentThread.setName(connection.getName());
+        try {
+            connection.run();
+        } finally {
+            currentThread.setName(workerName);
+        }
+    }
+
+    /**
+     * Park connection on the selector until client sends data or timeout.
+     * Caller must return from run() without closing the connection.
+     *
+     * @param connection connection handler
+     * @param timeout    timeout in milliseconds, 0 means no timeout
+     */
+    public void park(AbstractConnection connection, long timeout) {
+        if (timeout > 0) {
+            connection.parkDeadline = System.currentTimeMillis() + timeout;
+        } else {
+            connection.parkDeadline = 0;
+        }
+        connection.parkWakeup = false;
+        connection.resumed = true;
+        parkQueue.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Resume a parked connection before its timeout, e.g. on folder change notification.
+     * The connection does not see a timed out park, ignored if connection is not parked.
+     *
+     * @param connection parked connection
+     */
+    public void wakeup(AbstractConnection connection) {
+        connection.parkWakeup = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Selector loop: accept new clients and resume parked connections.
+     *
+     * @throws IOException on error
+     */
+    public void run() throws IOException {
+        List<AbstractConnection> readyConnections = new ArrayList<AbstractConnection>();
+        try {
+            while (selector.isOpen()) {
+                // retry waiting connections sooner
+                selector.select(resumeQueue.isEmpty() ? 1000 : 100);
+                registerParkedConnections();
+                submitWaitingConnections();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            DavGatewayTray.warn(new BundleMessage("LOG_EXCEPTION_LISTENING_FOR_CONNECTIONS"), e);
+                        }
+                    } else if (key.isReadable()) {
+                        key.cancel();
+                        readyConnections.add((AbstractConnection) key.attachment());
+                    }
+                }
+                checkTimeouts(readyConnections);
+
+                if (!readyConnections.isEmpty()) {
+                    // complete key deregistration before switching channels back to blocking mode
+                    selector.selectNow();
+                    for (AbstractConnection connection : readyConnections) {
+                        resume(connection);
+                    }
+                    readyConnections.clear();
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // engine closed
+        }
+    }
+
+    protected void accept() throws IOException {
+        SocketChannel socketChannel = serverSocketChannel.accept();
+        if (socketChannel != null) {
+            Socket clientSocket = socketChannel.socket();
+            // set default timeout to 5 minutes
+            clientSocket.setSoTimeout(Settings.getIntProperty("davmail.clientSoTimeout", 300) * 1000);
+            DavGatewayTray.debug(new BundleMessage("LOG_CONNECTION_FROM", clientSocket.getInetAddress(), server.getPort()));
+            // only accept localhost connections for security reasons
+            if (Settings.getBooleanProperty("davmail.allowRemote") ||
+                    clientSocket.getInetAddress().isLoopbackAddress()) {
+                start(server.createConnectionHandler(clientSocket));
+            } else {
+                clientSocket.close();
+                DavGatewayTray.warn(new BundleMessage("LOG_EXTERNAL_CONNECTION_REFUSED"));
+            }
+        }
+    }
+
+    protected void registerParkedConnections() {
+        AbstractConnection connection;
+        while ((connection = parkQueue.poll()) != null) {
+            SocketChannel socketChannel = connection.client.getChannel();
+            try {
+                socketChannel.configureBlocking(false);
+                socketChannel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                LOGGER.debug("Unable to park connection " + connection.getName() + ": " + e.getMessage());
+                connection.close();
+            }
+        }
+    }
+
+    protected void checkTimeouts(List<AbstractConnection> readyConnections) {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (key.isValid() && attachment instanceof AbstractConnection) {
+                AbstractConnection connection = (AbstractConnection) attachment;
+                if (connection.parkWakeup) {
+                    key.cancel();
+                    connection.parkWakeup = false;
+                    readyConnections.add(connection);
+                } else if (connection.parkDeadline > 0 && connection.parkDeadline < now) {
+                    key.cancel();
+                    connection.parkTimedOut = true;
+                    readyConnections.add(connection);
+                }
+            }
+        }
+    }
+
+    protected void resume(AbstractConnection connection) {
+        try {
+            connection.client.getChannel().configureBlocking(true);
+        } catch (IOException e) {
+            LOGGER.debug("Unable to resume connection " + connection.getName() + ": " + e.getMessage());
+            connection.close();
+            return;
+        }
+        // established connections are never dropped, wait for the next free worker
+        if (!resumeQueue.isEmpty() || !submit(connection)) {
+            LOGGER.debug("All connection workers busy, connection " + connection.getName() + " waits for a worker");
+            resumeQueue.add(connection);
+        }
+    }
+
+    /**
+     * Submit resumed connections not picked by a finishing worker.
+     */
+    protected void submitWaitingConnections() {
+        int count = resumeQueue.size();
+        AbstractConnection connection;
+        while (count-- > 0 && (connection = resumeQueue.poll()) != null) {
+            if (!submit(connection)) {
+                resumeQueue.add(connection);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Close selector and parked connections.
+     */
+    public void close() {
+        AbstractConnection waitingConnection;
+        while ((waitingConnection = resumeQueue.poll()) != null) {
+            waitingConnection.close();
+        }
+        try {
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof AbstractConnection) {
+                    ((AbstractConnection) attachment).close();
+                }
+            }
+            selector.close();
+        } catch (ClosedSelectorException e) {
+            // already closed
+        } catch (IOException e) {
+            DavGatewayTray.warn(new BundleMessage("LOG_EXCEPTION_CLOSING_SERVER_SOCKET"), e);
+        }
+    }
+}
@@ -21,6 +21,9 @@ package davmail;
 import davmail.caldav.CaldavServer;
 import davmail.exception.DavMailException;
 import davmail.exchange.ExchangeSessionFactory;
+import davmail.exchange.ItemBodyCache;
+import davmail.exchange.MessageStore;
+import davmail.exchange.MessageStructureCache;
 import davmail.http.DavGatewayHttpClientFacade;
 import davmail.http.DavGatewaySSLProtocolSocketFactory;
 import davmail.imap.ImapServer;
@@ -172,6 +175,9 @@ public final class DavGateway {
         DavGatewayHttpClientFacade.stop();
         // clear session cache
         sessionFactory.reset();
+        MessageStore.closeInstance();
+        MessageStructureCache.closeStore();
+        ItemBodyCache.closeStore();
         DavGatewayTray.info(new BundleMessage("LOG_GATEWAY_STOP"));
         DavGatewayTray.dispose();
     }
@@ -183,6 +189,9 @@ public final class DavGateway {
         DavGateway.stopServers();
         // clear session cache
         sessionFactory.reset();
+        MessageStore.closeInstance();
+        MessageStructureCache.closeStore();
+        ItemBodyCache.closeStore();
         DavGateway.start();
     }
 
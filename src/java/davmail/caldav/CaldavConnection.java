@@ -44,6 +44,10 @@ import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Handle a caldav connection.
@@ -137,9 +141,14 @@ public class CaldavConnection extends AbstractConnection {
     public void run() {
         String line;
         StringTokenizer tokens;
+        boolean parked = false;
 
         try {
             while (!closed) {
+                if (parkUntilReadable()) {
+                    parked = true;
+                    return;
+                }
                 line = readClient();
                 // unable to read line, connection closed ?
                 if (line == null) {
@@ -191,7 +200,9 @@ public class CaldavConnection extends AbstractConnection {
                 DavGatewayTray.debug(new BundleMessage("LOG_EXCEPTION_SENDING_ERROR_TO_CLIENT"), e2);
             }
         } finally {
-            close();
+            if (!parked) {
+                close();
+            }
         }
         DavGatewayTray.resetIcon();
     }
@@ -275,6 +286,8 @@ public class CaldavConnection extends AbstractConnection {
             sendFolderOrItem(request);
         } else if (request.isPropPatch()) {
             patchCalendar(request);
+        } else if (request.isReport() && request.isSyncCollection()) {
+            reportSyncCollection(request);
         } else if (request.isReport()) {
             reportItems(request);
             // event requests
@@ -301,7 +314,7 @@ public class CaldavConnection extends AbstractConnection {
                     ChunkedResponse response = new ChunkedResponse(HttpStatus.SC_OK, "text/vcard;charset=UTF-8");
 
                     for (Contact contact : contacts) {
-                        String contactBody = contact.getBody();
+                        String contactBody = getItemBody(folderPath, contact);
                         if (contactBody != null) {
                             response.append(contactBody);
                             response.append("\n");
@@ -318,12 +331,13 @@ public class CaldavConnection extends AbstractConnection {
                     response.append("METHOD:PUBLISH\r\n");
 
                     for (Event event : events) {
-                        String icsContent = StringUtil.getToken(event.getBody(), "BEGIN:VTIMEZONE", "END:VCALENDAR");
+                        String eventBody = getItemBody(folderPath, event);
+                        String icsContent = StringUtil.getToken(eventBody, "BEGIN:VTIMEZONE", "END:VCALENDAR");
                         if (icsContent != null) {
                             response.append("BEGIN:VTIMEZONE");
                             response.append(icsContent);
                         } else {
-                            icsContent = StringUtil.getToken(event.getBody(), "BEGIN:VEVENT", "END:VCALENDAR");
+                            icsContent = StringUtil.getToken(eventBody, "BEGIN:VEVENT", "END:VCALENDAR");
                             if (icsContent != null) {
                                 response.append("BEGIN:VEVENT");
                                 response.append(icsContent);
@@ -337,7 +351,7 @@ public class CaldavConnection extends AbstractConnection {
                 }
             } else {
                 Item item = session.getItem(request.getFolderPath(), lastPath);
-                sendHttpResponse(HttpStatus.SC_OK, buildEtagHeader(item.getEtag()), item.getContentType(), item.getBody(), true);
+                sendHttpResponse(HttpStatus.SC_OK, buildEtagHeader(item.getEtag()), item.getContentType(), getItemBody(request.getFolderPath(), item), true);
             }
         } else if (request.isHead()) {
             // test event
@@ -369,40 +383,181 @@ public class CaldavConnection extends AbstractConnection {
     }
 
     private void appendContactsResponses(CaldavResponse response, CaldavRequest request, List<Contact> contacts) throws IOException {
-        int size = contacts.size();
-        int count = 0;
-        for (Contact contact : contacts) {
-            DavGatewayTray.debug(new BundleMessage("LOG_LISTING_ITEM", ++count, size));
-            DavGatewayTray.switchIcon();
-            appendItemResponse(response, request, contact);
-        }
+        appendItemsResponses(response, request, contacts, request.hasProperty("address-data"));
     }
 
     protected void appendEventsResponses(CaldavResponse response, CaldavRequest request, List<Event> events) throws IOException {
-        int size = events.size();
+        appendItemsResponses(response, request, events, request.hasProperty("calendar-data"));
+    }
+
+    /**
+     * Append item responses in list order.
+     * When item bodies are requested, the next davmail.caldavRenderWindow bodies are retrieved
+     * and rendered by the session render pool while previous items are sent to the client.
+     *
+     * @param response Caldav response
+     * @param request  Caldav request
+     * @param items    events or contacts
+     * @param withBody true if request includes item body
+     * @throws IOException on error
+     */
+    protected void appendItemsResponses(CaldavResponse response, CaldavRequest request, List<? extends Item> items, boolean withBody) throws IOException {
+        appendItemsResponses(response, request, items, withBody, null);
+    }
+
+    /**
+     * Append item responses in list order, items with a body retrieval failure are skipped
+     * and added to failedItems when not null.
+     *
+     * @param response    Caldav response
+     * @param request     Caldav request
+     * @param items       events or contacts
+     * @param withBody    true if request includes item body
+     * @param failedItems failed item list, null to fail on first error
+     * @throws IOException on error
+     */
+    protected void appendItemsResponses(CaldavResponse response, CaldavRequest request, List<? extends Item> items, boolean withBody,
+                                        List<Item> failedItems) throws IOException {
+        int size = items.size();
         int count = 0;
-        for (Event event : events) {
-            DavGatewayTray.debug(new BundleMessage("LOG_LISTING_ITEM", ++count, size));
-            DavGatewayTray.switchIcon();
-            appendItemResponse(response, request, event);
+        int window = Settings.getIntProperty("davmail.caldavRenderWindow", 16);
+        if (!withBody || window <= 1 || size <= 1) {
+            for (Item item : items) {
+                DavGatewayTray.debug(new BundleMessage("LOG_LISTING_ITEM", ++count, size));
+                DavGatewayTray.switchIcon();
+                if (failedItems == null) {
+                    appendItemResponse(response, request, item);
+                } else {
+                    String body = null;
+                    try {
+                        if (withBody) {
+                            body = getItemBody(request.getFolderPath(), item);
+                        }
+                    } catch (SocketException e) {
+                        // rethrow SocketException (client closed connection)
+                        throw e;
+                    } catch (Exception e) {
+                        wireLogger.debug(e.getMessage(), e);
+                        failedItems.add(item);
+                        continue;
+                    }
+                    appendItemResponse(response, request, item, body);
+                }
+            }
+            return;
+        }
+        if (items.get(0) instanceof Event) {
+            // load timezone before concurrent rendering
+            session.getVTimezone();
+        }
+        final String folderPath = request.getFolderPath();
+        ExecutorService executor = session.getRenderExecutor();
+        LinkedList<Future<String>> futures = new LinkedList<Future<String>>();
+        Iterator<? extends Item> submitIterator = items.iterator();
+        try {
+            for (Item item : items) {
+                while (futures.size() < window && submitIterator.hasNext()) {
+                    final Item nextItem = submitIterator.next();
+                    futures.add(executor.submit(new Callable<String>() {
+                        public String call() throws IOException {
+                            return getItemBody(folderPath, nextItem);
+                        }
+                    }));
+                }
+                DavGatewayTray.debug(new BundleMessage("LOG_LISTING_ITEM", ++count, size));
+                DavGatewayTray.switchIcon();
+                String body;
+                if (failedItems == null) {
+                    body = getRenderedBody(futures.removeFirst());
+                } else {
+                    try {
+                        body = getRenderedBody(futures.removeFirst());
+                    } catch (SocketException e) {
+                        // rethrow SocketException (client closed connection)
+                        throw e;
+                    } catch (Exception e) {
+                        wireLogger.debug(e.getMessage(), e);
+                        failedItems.add(item);
+                        continue;
+                    }
+                }
+                appendItemResponse(response, request, item, body);
+            }
+        } finally {
+            for (Future<String> future : futures) {
+                future.cancel(false);
+            }
         }
     }
 
-    protected void appendItemResponse(CaldavResponse response, CaldavRequest request, Item item) throws IOException {
+    protected String getRenderedBody(Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering item");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(String.valueOf(cause));
+            }
+        }
+    }
+
+    /**
+     * Get item body from session item cache, render and cache body on etag change.
+     *
+     * @param folderPath folder path
+     * @param item       event or contact
+     * @return item body
+     * @throws IOException on error
+     */
+    protected String getItemBody(String folderPath, Item item) throws IOException {
+        ItemBodyCache itemBodyCache = session.getItemBodyCache();
+        String body = itemBodyCache.get(folderPath, item.getName(), item.getEtag());
+        if (body == null) {
+            body = item.getBody();
+            itemBodyCache.put(folderPath, item.getName(), item.getEtag(), body);
+        }
+        return body;
+    }
+
+    protected String getItemPath(CaldavRequest request, String itemName) throws IOException {
         StringBuilder eventPath = new StringBuilder();
         eventPath.append(encodePath(request, request.getPath()));
         if (!(eventPath.charAt(eventPath.length() - 1) == '/')) {
             eventPath.append('/');
         }
+        eventPath.append(URIUtil.encodeWithinQuery(StringUtil.xmlEncode(itemName)));
+        return eventPath.toString();
+    }
+
+    protected void appendItemResponse(CaldavResponse response, CaldavRequest request, Item item) throws IOException {
+        appendItemResponse(response, request, item, null);
+    }
+
+    /**
+     * Append item to Caldav response.
+     *
+     * @param response Caldav response
+     * @param request  Caldav request
+     * @param item     event or contact
+     * @param body     rendered item body, null to render body as needed
+     * @throws IOException on error
+     */
+    protected void appendItemResponse(CaldavResponse response, CaldavRequest request, Item item, String body) throws IOException {
         String itemName = StringUtil.xmlEncode(item.getName());
-        eventPath.append(URIUtil.encodeWithinQuery(itemName));
-        response.startResponse(eventPath.toString());
+        response.startResponse(getItemPath(request, item.getName()));
         response.startPropstat();
         if (request.hasProperty("calendar-data") && item instanceof Event) {
-            response.appendCalendarData(item.getBody());
+            response.appendCalendarData(body != null ? body : getItemBody(request.getFolderPath(), item));
         }
         if (request.hasProperty("address-data") && item instanceof Contact) {
-            response.appendContactData(item.getBody());
+            response.appendContactData(body != null ? body : getItemBody(request.getFolderPath(), item));
         }
         if (request.hasProperty("getcontenttype")) {
             if (item instanceof Event) {
@@ -471,6 +626,17 @@ public class CaldavConnection extends AbstractConnection {
             response.appendProperty("CS:getctag", "CS=\"http://calendarserver.org/ns/\"",
                     base64Encode(folder.ctag));
         }
+        if (folder.isContact() || folder.isCalendar() || folder.isTask()) {
+            if (request.hasProperty("sync-token")) {
+                ItemSyncState.Snapshot snapshot = session.getItemSyncState().getCurrentSnapshot(request.getFolderPath(subFolder), folder.ctag);
+                // unknown token triggers an initial synchronization
+                response.appendProperty("D:sync-token", snapshot == null ? ItemSyncState.TOKEN_PREFIX + '0' : snapshot.getToken());
+            }
+            if (request.hasProperty("supported-report-set")) {
+                response.appendProperty("D:supported-report-set", "<D:supported-report><D:report><D:sync-collection/></D:report></D:supported-report>"
+                        + "<D:supported-report><D:report>" + (folder.isContact() ? "<E:addressbook-multiget/>" : "<C:calendar-multiget/>") + "</D:report></D:supported-report>");
+            }
+        }
         if (request.hasProperty("displayname")) {
             if (subFolder == null || subFolder.length() == 0) {
                 // use i18n calendar name as display name
@@ -648,8 +814,14 @@ public class CaldavConnection extends AbstractConnection {
         if (request.getDepth() == 1) {
             if (folder.isContact()) {
                 contacts = session.getAllContacts(folderPath);
+                if (request.hasProperty("sync-token")) {
+                    addSyncSnapshot(folderPath, folder, contacts);
+                }
             } else if (folder.isCalendar() || folder.isTask()) {
                 events = session.getAllEvents(folderPath);
+                if (request.hasProperty("sync-token")) {
+                    addSyncSnapshot(folderPath, folder, events);
+                }
                 if (!folderPath.startsWith("/public")) {
                     folderList = session.getSubCalendarFolders(folderPath, false);
                 }
@@ -717,6 +889,119 @@ public class CaldavConnection extends AbstractConnection {
         }
     }
 
+    protected ItemSyncState.Snapshot addSyncSnapshot(String folderPath, Folder folder, List<? extends Item> items) {
+        HashMap<String, String> etags = new HashMap<String, String>();
+        for (Item item : items) {
+            etags.put(item.getName(), item.getEtag());
+        }
+        return session.getItemSyncState().addSnapshot(folderPath, folder.ctag, etags);
+    }
+
+    /**
+     * Report items changed since request sync token (RFC 6578 sync-collection).
+     * Nothing is listed when folder ctag did not change since token snapshot,
+     * changed items are retrieved in bulk when another client already listed the current folder content.
+     * Only new and updated items are sent, removed items are sent as 404 responses.
+     *
+     * @param request Caldav request
+     * @throws IOException on error
+     */
+    public void reportSyncCollection(CaldavRequest request) throws IOException {
+        String folderPath = request.getFolderPath();
+        // process request before sending response to avoid sending headers twice on error
+        Folder folder = session.getFolder(folderPath);
+        ItemSyncState itemSyncState = session.getItemSyncState();
+        ItemSyncState.Snapshot previousSnapshot = null;
+        String syncToken = request.getSyncToken();
+        if (syncToken != null && syncToken.length() > 0) {
+            previousSnapshot = itemSyncState.getSnapshot(folderPath, syncToken);
+            if (previousSnapshot == null) {
+                DavGatewayTray.debug(new BundleMessage("LOG_MESSAGE", "Invalid sync token " + syncToken + " on " + folderPath));
+                sendHttpResponse(HttpStatus.SC_FORBIDDEN, null, "text/xml;charset=UTF-8",
+                        "<?xml version=\"1.0\" encoding=\"UTF-8\"?><D:error xmlns:D=\"DAV:\"><D:valid-sync-token/></D:error>", true);
+                return;
+            }
+        }
+        ItemSyncState.Snapshot snapshot = itemSyncState.getCurrentSnapshot(folderPath, folder.ctag);
+        List<String> changed = new ArrayList<String>();
+        List<String> removed = new ArrayList<String>();
+        Collection<? extends Item> items = null;
+        if (snapshot != null && previousSnapshot != null) {
+            ItemSyncState.getChanges(previousSnapshot.etags, snapshot.etags, changed, removed);
+            if (changed.isEmpty()) {
+                items = new ArrayList<Item>();
+            } else {
+                Map<String, Item> changedItems = session.getItems(folderPath, changed);
+                if (changedItems.size() == changed.size()) {
+                    items = changedItems.values();
+                }
+            }
+        }
+        if (items == null) {
+            List<? extends Item> folderItems;
+            if (folder.isContact()) {
+                folderItems = session.getAllContacts(folderPath);
+            } else if (folder.isCalendar() || folder.isTask()) {
+                folderItems = session.getAllEvents(folderPath);
+            } else {
+                folderItems = new ArrayList<Item>();
+            }
+            snapshot = addSyncSnapshot(folderPath, folder, folderItems);
+            changed.clear();
+            removed.clear();
+            ItemSyncState.getChanges(previousSnapshot == null ? null : previousSnapshot.etags, snapshot.etags, changed, removed);
+            HashSet<String> changedNames = new HashSet<String>(changed);
+            List<Item> changedItems = new ArrayList<Item>();
+            for (Item item : folderItems) {
+                if (changedNames.contains(item.getName())) {
+                    changedItems.add(item);
+                }
+            }
+            items = changedItems;
+        }
+
+        CaldavResponse response = new CaldavResponse(HttpStatus.SC_MULTI_STATUS);
+        response.startMultistatus();
+        appendItemsResponses(response, request, new ArrayList<Item>(items),
+                request.hasProperty("calendar-data") || request.hasProperty("address-data"));
+        for (String itemName : removed) {
+            response.startResponse(getItemPath(request, itemName));
+            response.appendStatusNotFound();
+            response.endResponse();
+        }
+        response.appendSyncToken(snapshot.getToken());
+        response.endMultistatus();
+        response.close();
+    }
+
+    /**
+     * Get item requested in a multiget report.
+     *
+     * @param request    Caldav request
+     * @param folderPath folder path
+     * @param eventName  item name
+     * @param searched   true if item name was already searched by a bulk request
+     * @return item
+     * @throws IOException on error
+     */
+    protected Item getMultiGetItem(CaldavRequest request, String folderPath, String eventName, boolean searched) throws IOException {
+        // workaround for Lightning bug
+        boolean brokenLightning = request.isBrokenLightning() && eventName.indexOf('%') >= 0;
+        if (!searched) {
+            try {
+                return session.getItem(folderPath, eventName);
+            } catch (HttpNotFoundException e) {
+                if (!brokenLightning) {
+                    throw e;
+                }
+            }
+        }
+        if (brokenLightning) {
+            return session.getItem(folderPath, URIUtil.decode(StringUtil.encodePlusSign(eventName)));
+        }
+        throw new HttpNotFoundException(eventName + " not found in " + folderPath);
+    }
+
     /**
      * Report items listed in request.
      *
@@ -733,36 +1018,80 @@ public class CaldavConnection extends AbstractConnection {
         if (request.isMultiGet()) {
             int count = 0;
             int total = request.getHrefs().size();
-            for (String href : request.getHrefs()) {
-                DavGatewayTray.debug(new BundleMessage("LOG_REPORT_ITEM", ++count, total));
-                DavGatewayTray.switchIcon();
-                String eventName = getEventFileNameFromPath(href);
-                try {
+            int batchSize = Math.max(1, Settings.getIntProperty("davmail.caldavMultigetBatchSize", 50));
+            List<String> hrefs = new ArrayList<String>(request.getHrefs());
+            for (int start = 0; start < total; start += batchSize) {
+                List<String> batchHrefs = hrefs.subList(start, Math.min(total, start + batchSize));
+                List<String> itemNames = new ArrayList<String>();
+                for (String href : batchHrefs) {
+                    String eventName = getEventFileNameFromPath(href);
                     // ignore cases for Sunbird
                     if (eventName != null && eventName.length() > 0
                             && !"inbox".equals(eventName) && !"calendar".equals(eventName)) {
-                        Item item;
-                        try {
-                            item = session.getItem(folderPath, eventName);
-                        } catch (HttpNotFoundException e) {
-                            // workaround for Lightning bug
-                            if (request.isBrokenLightning() && eventName.indexOf('%') >= 0) {
-                                item = session.getItem(folderPath, URIUtil.decode(StringUtil.encodePlusSign(eventName)));
-                            } else {
-                                throw e;
-                            }
-
-                        }
-                        appendItemResponse(response, request, item);
+                        itemNames.add(eventName);
                     }
+                }
+                Map<String, Item> items = null;
+                try {
+                    items = session.getItems(folderPath, itemNames);
                 } catch (SocketException e) {
                     // rethrow SocketException (client closed connection)
                     throw e;
                 } catch (Exception e) {
                     wireLogger.debug(e.getMessage(), e);
-                    DavGatewayTray.warn(new BundleMessage("LOG_ITEM_NOT_AVAILABLE", eventName, href));
+                }
+                List<Item> batchItems = new ArrayList<Item>();
+                Map<Item, String> batchItemHrefs = new IdentityHashMap<Item, String>();
+                for (String href : batchHrefs) {
+                    DavGatewayTray.debug(new BundleMessage("LOG_REPORT_ITEM", ++count, total));
+                    DavGatewayTray.switchIcon();
+                    String eventName = getEventFileNameFromPath(href);
+                    try {
+                        if (eventName != null && itemNames.contains(eventName)) {
+                            Item item;
+                            if (items == null) {
+                                // bulk request failed, retrieve item alone
+                                item = getMultiGetItem(request, folderPath, eventName, false);
+                            } else {
+                                item = items.get(eventName);
+                                if (item == null) {
+                                    item = getMultiGetItem(request, folderPath, eventName, true);
+                                }
+                            }
+                            batchItems.add(item);
+                            batchItemHrefs.put(item, href);
+                        }
+                    } catch (SocketException e) {
+                        // rethrow SocketException (client closed connection)
+                        throw e;
+                    } catch (Exception e) {
+                        wireLogger.debug(e.getMessage(), e);
+                        DavGatewayTray.warn(new BundleMessage("LOG_ITEM_NOT_AVAILABLE", eventName, href));
+                        notFound.add(href);
+                    }
+                }
+                boolean withBody = request.hasProperty("calendar-data") || request.hasProperty("address-data");
+                if (withBody) {
+                    try {
+                        // retrieve batch bodies in a single request
+                        session.prefetchItemBodies(folderPath, batchItems);
+                    } catch (SocketException e) {
+                        // rethrow SocketException (client closed connection)
+                        throw e;
+                    } catch (IOException e) {
+                        // bodies are loaded one by one
+                        wireLogger.debug(e.getMessage(), e);
+                    }
+                }
+                List<Item> failedItems = new ArrayList<Item>();
+                appendItemsResponses(response, request, batchItems, withBody, failedItems);
+                for (Item item : failedItems) {
+                    String href = batchItemHrefs.get(item);
+                    DavGatewayTray.warn(new BundleMessage("LOG_ITEM_NOT_AVAILABLE", getEventFileNameFromPath(href), href));
                     notFound.add(href);
                 }
+                // send batch responses before next bulk request
+                response.flush();
             }
         } else if (request.isPath(1, "users") && request.isPath(3, "inbox")) {
             events = session.getEventMessages(request.getFolderPath());
@@ -1307,6 +1636,8 @@ public class CaldavConnection extends AbstractConnection {
         protected final HashMap<String, String> properties = new HashMap<String, String>();
         protected HashSet<String> hrefs;
         protected boolean isMultiGet;
+        protected boolean isSyncCollection;
+        protected String syncToken;
         protected String timeRangeStart;
         protected String timeRangeEnd;
         protected boolean vTodoOnly;
@@ -1501,6 +1832,10 @@ public class CaldavConnection extends AbstractConnection {
                         } else if ("calendar-multiget".equals(tagLocalName)
                                 || "addressbook-multiget".equals(tagLocalName)) {
                             isMultiGet = true;
+                        } else if ("sync-collection".equals(tagLocalName)) {
+                            isSyncCollection = true;
+                        } else if ("sync-token".equals(tagLocalName)) {
+                            syncToken = streamReader.getElementText();
                         } else if ("comp-filter".equals(tagLocalName)) {
                             handleCompFilter(streamReader);
                         } else if ("href".equals(tagLocalName)) {
@@ -1579,6 +1914,14 @@ public class CaldavConnection extends AbstractConnection {
             return hrefs;
         }
 
+        public boolean isSyncCollection() {
+            return isSyncCollection;
+        }
+
+        public String getSyncToken() {
+            return syncToken;
+        }
+
         @Override
         public String toString() {
             return command + ' ' + path + " Depth: " + depth + '\n' + body;
@@ -1693,6 +2036,10 @@ public class CaldavConnection extends AbstractConnection {
             writer.write(data);
         }
 
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
         public void close() throws IOException {
             writer.close();
         }
@@ -1782,6 +2129,16 @@ public class CaldavConnection extends AbstractConnection {
             writer.write("</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat>");
         }
 
+        public void appendStatusNotFound() throws IOException {
+            writer.write("<D:status>HTTP/1.1 404 Not Found</D:status>");
+        }
+
+        public void appendSyncToken(String syncToken) throws IOException {
+            writer.write("<D:sync-token>");
+            writer.write(StringUtil.xmlEncode(syncToken));
+            writer.write("</D:sync-token>");
+        }
+
         public void appendPropstatNotFound() throws IOException {
             writer.write("<D:propstat><D:status>HTTP/1.1 404 Not Found</D:status></D:propstat>");
         }
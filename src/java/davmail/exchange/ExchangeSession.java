@@ -22,6 +22,8 @@ import davmail.BundleMessage;
 import davmail.Settings;
 import davmail.exception.DavMailAuthenticationException;
 import davmail.exception.DavMailException;
+import davmail.exception.HttpNotFoundException;
+import davmail.exception.LoginTimeoutException;
 import davmail.exception.WebdavNotAvailableException;
 import davmail.exchange.condition.Condition;
 import davmail.exchange.condition.MultiCondition;
@@ -44,12 +46,20 @@ import javax.mail.MessagingException;
 import javax.mail.internet.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.net.ConnectException;
 import java.net.NoRouteToHostException;
 import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Exchange session through Outlook Web Access (DAV)
@@ -135,6 +145,10 @@ public abstract class ExchangeSession {
     private String preAuthUsername;
 
     protected ExchangeVersion serverVersion;
+    // folder listings shared by session connections
+    protected final Map<String, WeakReference<FolderState>> folderStates = new HashMap<String, WeakReference<FolderState>>();
+    // IMAP mod-sequences, kept for session lifetime
+    protected final Map<String, ModSeqIndex> modSeqIndexes = new HashMap<String, ModSeqIndex>();
 
     protected static final String YYYY_MM_DD_HH_MM_SS = "yyyy/MM/dd HH:mm:ss";
     private static final String YYYYMMDD_T_HHMMSS_Z = "yyyyMMdd'T'HHmmss'Z'";
@@ -163,6 +177,56 @@ public abstract class ExchangeSession {
      */
     private static final int MAX_OTP_RETRIES = 3;
 
+    /**
+     * Last successful validation or Exchange request timestamp, 0 after an authentication failure.
+     */
+    private volatile long lastValidated;
+
+    /**
+     * Downloaded message content cache, shared by all connections using this session.
+     */
+    protected final MessageCache messageCache = new MessageCache();
+
+    /**
+     * Computed IMAP envelope and body structure cache, created on first use.
+     */
+    private MessageStructureCache messageStructureCache;
+
+    /**
+     * Rendered CalDAV and CardDAV item body cache, created on first use.
+     */
+    private ItemBodyCache itemBodyCache;
+
+    /**
+     * CalDAV and CardDAV sync-collection snapshots, created on first use.
+     */
+    private ItemSyncState itemSyncState;
+
+    /**
+     * Message content read ahead worker pool, created on first use.
+     */
+    private ThreadPoolExecutor prefetchExecutor;
+
+    /**
+     * Pipelined IMAP command worker pool, created on first use.
+     */
+    private ThreadPoolExecutor commandExecutor;
+
+    /**
+     * CalDAV and CardDAV item rendering worker pool, created on first use.
+     */
+    private ThreadPoolExecutor renderExecutor;
+
+    /**
+     * Recent IMAP STATUS values by folder path.
+     */
+    private final Map<String, FolderStatus> folderStatuses = new HashMap<String, FolderStatus>();
+
+    /**
+     * Limit concurrent folder listings triggered by STATUS.
+     */
+    private final Semaphore statusListingSemaphore = new Semaphore(Math.max(1, Settings.getIntProperty("davmail.imapStatusListingThreads", 2)));
+
     /**
      * Create an exchange session for the given URL.
      * The session is established for given userName and password
@@ -250,6 +314,7 @@ public abstract class ExchangeSession {
             throw new DavMailException("EXCEPTION_EXCHANGE_LOGIN_FAILED", exc);
         }
         LOGGER.debug("Session " + this + " created");
+        setValidated();
     }
 
     /**
@@ -313,11 +378,136 @@ public abstract class ExchangeSession {
             throw exc;
         } catch (IOException e) {
             isExpired = true;
+            invalidate();
         }
 
         return isExpired;
     }
 
+    /**
+     * Mark session as valid after a successful Exchange request.
+     */
+    public void setValidated() {
+        lastValidated = System.currentTimeMillis();
+    }
+
+    /**
+     * Force session check on next use, e.g. after a 401 or 440 response.
+     */
+    public void invalidate() {
+        lastValidated = 0;
+    }
+
+    /**
+     * Check if the session was validated or successfully used recently.
+     *
+     * @param validationDelay validation time to live in milliseconds
+     * @return true if session can be trusted without a new check
+     */
+    public boolean isValidated(long validationDelay) {
+        return lastValidated > 0 && System.currentTimeMillis() - lastValidated < validationDelay;
+    }
+
+    /**
+     * Get session message content cache.
+     *
+     * @return message cache
+     */
+    public MessageCache getMessageCache() {
+        return messageCache;
+    }
+
+    /**
+     * Get session IMAP envelope and body structure cache.
+     *
+     * @return message structure cache
+     */
+    public synchronized MessageStructureCache getMessageStructureCache() {
+        if (messageStructureCache == null) {
+            messageStructureCache = new MessageStructureCache(getEmail());
+        }
+        return messageStructureCache;
+    }
+
+    /**
+     * Get session rendered CalDAV and CardDAV item body cache.
+     *
+     * @return item body cache
+     */
+    public synchronized ItemBodyCache getItemBodyCache() {
+        if (itemBodyCache == null) {
+            itemBodyCache = new ItemBodyCache(getEmail());
+        }
+        return itemBodyCache;
+    }
+
+    /**
+     * Get session CalDAV and CardDAV sync-collection state.
+     *
+     * @return item sync state
+     */
+    public synchronized ItemSyncState getItemSyncState() {
+        if (itemSyncState == null) {
+            itemSyncState = new ItemSyncState();
+        }
+        return itemSyncState;
+    }
+
+    /**
+     * Get session worker pool used to load message content ahead of IMAP FETCH responses.
+     * Pool size is davmail.imapPrefetchThreads, idle threads exit after a minute.
+     *
+     * @return executor
+     */
+    public synchronized ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = createWorkerPool("MessagePrefetch-" + userName, Settings.getIntProperty("davmail.imapPrefetchThreads", 2));
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * Get session worker pool used to execute pipelined IMAP commands concurrently.
+     * Pool size is davmail.imapPipelineThreads, idle threads exit after a minute.
+     *
+     * @return executor
+     */
+    public synchronized ExecutorService getCommandExecutor() {
+        if (commandExecutor == null) {
+            commandExecutor = createWorkerPool("ImapCommand-" + userName, Settings.getIntProperty("davmail.imapPipelineThreads", 4));
+        }
+        return commandExecutor;
+    }
+
+    /**
+     * Get session worker pool used to retrieve and render CalDAV and CardDAV item bodies ahead of listing responses.
+     * Pool size is davmail.caldavRenderThreads, idle threads exit after a minute.
+     *
+     * @return executor
+     */
+    public synchronized ExecutorService getRenderExecutor() {
+        if (renderExecutor == null) {
+            renderExecutor = createWorkerPool("ItemRender-" + userName, Settings.getIntProperty("davmail.caldavRenderThreads", 4));
+        }
+        return renderExecutor;
+    }
+
+    protected static ThreadPoolExecutor createWorkerPool(final String threadName, int threadCount) {
+        int poolSize = Math.max(1, threadCount);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, threadName + '-' + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Test authentication mode : form based or basic.
      *
@@ -756,6 +946,55 @@ public abstract class ExchangeSession {
      */
     public abstract byte[] getContent(Message message) throws IOException;
 
+    /**
+     * Write raw MIME message content to output stream,
+     * implementations should avoid buffering the whole message in memory.
+     *
+     * @param message      Exchange message
+     * @param outputStream output stream
+     * @throws IOException on error
+     */
+    public void writeContent(Message message, OutputStream outputStream) throws IOException {
+        outputStream.write(getContent(message));
+    }
+
+    /**
+     * Download content of upcoming messages in a single request.
+     * Content is attached to each message and consumed on next load,
+     * default implementation does nothing and messages are loaded one by one.
+     *
+     * @param messages message list
+     * @throws IOException on error
+     */
+    public void prefetchContent(List<Message> messages) throws IOException {
+        // batch download not supported
+    }
+
+    /**
+     * Download headers of messages in a batch request, used to answer ENVELOPE and
+     * HEADER.FIELDS without message content.
+     * Default implementation does nothing, headers are loaded one by one.
+     *
+     * @param messages message list
+     * @throws IOException on error
+     */
+    public void prefetchHeaders(List<Message> messages) throws IOException {
+        // batch download not supported
+    }
+
+    /**
+     * Download bodies of events or contacts in a single request before rendering,
+     * items with a cached body for their current etag are skipped.
+     * Default implementation does nothing, bodies are loaded one by one.
+     *
+     * @param folderPath folder path
+     * @param items      item list
+     * @throws IOException on error
+     */
+    public void prefetchItemBodies(String folderPath, List<? extends Item> items) throws IOException {
+        // batch download not supported
+    }
+
     protected static final Set<String> POP_MESSAGE_ATTRIBUTES = new HashSet<String>();
 
     static {
@@ -836,6 +1075,43 @@ public abstract class ExchangeSession {
      */
     public abstract MessageList searchMessages(String folderName, Set<String> attributes, Condition condition) throws IOException;
 
+    /**
+     * Apply message changes since previous synchronization to folder message list,
+     * with attributes needed by IMAP listener.
+     * Default implementation does not support incremental synchronization.
+     *
+     * @param folderState shared folder listing with current folder index and sync state
+     * @return synchronized message list or null if incremental synchronization is not available,
+     *         folder must be fully listed
+     * @throws IOException on error
+     */
+    public MessageList syncMessages(FolderState folderState) throws IOException {
+        return null;
+    }
+
+    /**
+     * Register folder change listener, called as soon as folder content changes on server.
+     * Default implementation does not support change notifications.
+     *
+     * @param folderPath folder path
+     * @param listener   folder listener
+     * @return false if notifications are not available, caller must poll folder
+     * @throws IOException on error
+     */
+    public boolean addFolderListener(String folderPath, FolderListener listener) throws IOException {
+        return false;
+    }
+
+    /**
+     * Unregister folder change listener.
+     *
+     * @param folderPath folder path
+     * @param listener   folder listener
+     */
+    public void removeFolderListener(String folderPath, FolderListener listener) {
+        // notifications not supported
+    }
+
     /**
      * Get server version (Exchange2003, Exchange2007 or Exchange2010)
      *
@@ -1153,16 +1429,115 @@ public abstract class ExchangeSession {
      * @throws IOException on error
      */
     public Folder getFolder(String folderPath) throws IOException {
-        Folder folder = internalGetFolder(folderPath);
-        if (isMainCalendar(folderPath)) {
-            Folder taskFolder = internalGetFolder(TASKS);
-            folder.ctag += taskFolder.ctag;
+        Folder folder;
+        try {
+            folder = internalGetFolder(folderPath);
+            if (isMainCalendar(folderPath)) {
+                Folder taskFolder = internalGetFolder(TASKS);
+                folder.ctag += taskFolder.ctag;
+            }
+        } catch (LoginTimeoutException e) {
+            invalidate();
+            throw e;
+        }
+        setValidated();
+        synchronized (this) {
+            if (itemBodyCache != null) {
+                itemBodyCache.checkCtag(folderPath, folder.ctag);
+            }
         }
         return folder;
     }
 
     protected abstract Folder internalGetFolder(String folderName) throws IOException;
 
+    /**
+     * Get recent STATUS values of folder, see davmail.imapStatusCacheDelay.
+     *
+     * @param folderPath folder path
+     * @return folder status or null if not cached or expired
+     */
+    public FolderStatus getFolderStatus(String folderPath) {
+        long cacheDelay = Settings.getIntProperty("davmail.imapStatusCacheDelay", 30) * 1000L;
+        synchronized (folderStatuses) {
+            FolderStatus folderStatus = folderStatuses.get(folderPath);
+            if (folderStatus != null && System.currentTimeMillis() - folderStatus.timestamp >= cacheDelay) {
+                folderStatuses.remove(folderPath);
+                folderStatus = null;
+            }
+            return folderStatus;
+        }
+    }
+
+    /**
+     * Keep STATUS values of folder.
+     *
+     * @param folderPath   folder path
+     * @param folderStatus folder status
+     */
+    public void putFolderStatus(String folderPath, FolderStatus folderStatus) {
+        synchronized (folderStatuses) {
+            folderStatuses.put(folderPath, folderStatus);
+        }
+    }
+
+    /**
+     * Drop STATUS values of a folder changed by this session.
+     *
+     * @param folderPath folder path
+     */
+    public void invalidateFolderStatus(String folderPath) {
+        synchronized (folderStatuses) {
+            folderStatuses.remove(folderPath);
+        }
+    }
+
+    /**
+     * Get semaphore bounding concurrent folder listings of STATUS commands, see davmail.imapStatusListingThreads.
+     *
+     * @return semaphore
+     */
+    public Semaphore getStatusListingSemaphore() {
+        return statusListingSemaphore;
+    }
+
+    /**
+     * Get folder listing shared by all connections of this session on folder,
+     * released when no connection references it anymore.
+     *
+     * @param folderPath folder path
+     * @return folder state
+     */
+    public FolderState getFolderState(String folderPath) {
+        synchronized (folderStates) {
+            WeakReference<FolderState> folderStateReference = folderStates.get(folderPath);
+            FolderState folderState = folderStateReference == null ? null : folderStateReference.get();
+            if (folderState == null) {
+                folderState = new FolderState(this, folderPath);
+                folderStates.put(folderPath, new WeakReference<FolderState>(folderState));
+            }
+            return folderState;
+        }
+    }
+
+    /**
+     * Get IMAP mod-sequence index of folder, kept for session lifetime
+     * to avoid full client resynchronization after folder listing release.
+     *
+     * @param folderPath folder path
+     * @return mod-sequence index
+     */
+    public ModSeqIndex getModSeqIndex(String folderPath) {
+        synchronized (modSeqIndexes) {
+            ModSeqIndex modSeqIndex = modSeqIndexes.get(folderPath);
+            if (modSeqIndex == null) {
+                modSeqIndex = new ModSeqIndex();
+                modSeqIndexes.put(folderPath, modSeqIndex);
+            }
+            return modSeqIndex;
+        }
+    }
+
     /**
      * Check folder ctag and reload messages as needed.
      *
@@ -1529,6 +1904,28 @@ public abstract class ExchangeSession {
      */
     public abstract Item getItem(String folderPath, String itemName) throws IOException;
 
+    /**
+     * Get items named itemNames in folder, used by calendar-multiget and addressbook-multiget reports.
+     * Default implementation calls getItem for each name, Exchange implementations
+     * override it to retrieve items with a few bulk requests.
+     *
+     * @param folderPath Exchange folder path
+     * @param itemNames  item names
+     * @return found items by requested item name, missing items are not included
+     * @throws IOException on error
+     */
+    public Map<String, Item> getItems(String folderPath, List<String> itemNames) throws IOException {
+        Map<String, Item> items = new HashMap<String, Item>();
+        for (String itemName : itemNames) {
+            try {
+                items.put(itemName, getItem(folderPath, itemName));
+            } catch (HttpNotFoundException e) {
+                LOGGER.debug(itemName + " not found in " + folderPath);
+            }
+        }
+        return items;
+    }
+
     /**
      * Retrieve contact photo attached to contact
      *
@@ -1592,6 +1989,7 @@ public abstract class ExchangeSession {
      * @throws IOException on error
      */
     public ItemResult createOrUpdateItem(String folderPath, String itemName, String itemBody, String etag, String noneMatch) throws IOException {
+        getItemBodyCache().remove(folderPath, itemName);
         if (itemBody.startsWith("BEGIN:VCALENDAR")) {
             return internalCreateOrUpdateEvent(folderPath, itemName, "urn:content-classes:appointment", itemBody, etag, noneMatch);
         } else if (itemBody.startsWith("BEGIN:VCARD")) {
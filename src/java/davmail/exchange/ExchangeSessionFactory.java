@@ -76,6 +76,30 @@ public final class ExchangeSessionFactory {
     public ExchangeSessionFactory() {
     }
 
+    /**
+     * Session validation time to live: a session validated or successfully used
+     * less than davmail.sessionValidationDelay seconds ago is not checked again.
+     *
+     * @return validation delay in milliseconds
+     */
+    protected long getValidationDelay() {
+        return Settings.getIntProperty("davmail.sessionValidationDelay", 60) * 1000L;
+    }
+
+    /**
+     * Check pooled session, send a request to Exchange only if the session was not recently validated.
+     *
+     * @param session pooled session
+     * @return true if session expired
+     * @throws IOException on network error
+     */
+    protected boolean isExpired(ExchangeSession session) throws IOException {
+        if (session.isValidated(getValidationDelay())) {
+            return false;
+        }
+        return session.isExpired();
+    }
+
     /**
      * Create authenticated Exchange session
      *
@@ -128,7 +152,7 @@ public final class ExchangeSessionFactory {
                 ExchangeSession.LOGGER.debug("Got session " + session + " from cache");
             }
 
-            if (session != null && session.isExpired()) {
+            if (session != null && isExpired(session)) {
                 ExchangeSession.LOGGER.debug("Session " + session + " expired");
                 session = null;
                 // expired session, remove from cache
@@ -191,7 +215,7 @@ public final class ExchangeSessionFactory {
             throws IOException {
         ExchangeSession session = currentSession;
         try {
-            if (session.isExpired()) {
+            if (isExpired(session)) {
                 ExchangeSession.LOGGER.debug("Session " + session + " expired, trying to open a new one");
                 session = null;
                 String baseUrl = Settings.getProperty("davmail.url");
@@ -49,24 +49,33 @@ public class ICSBufferedReader extends BufferedReader {
         if (nextLine == null) {
             return null;
         } else {
-            currentLine.setLength(0);
-            currentLine.append(nextLine);
+            String line = nextLine;
             nextLine = super.readLine();
-            while (nextLine != null && !(nextLine.length() == 0) &&
-                    (nextLine.charAt(0) == ' ' || nextLine.charAt(0) == '\t'
-                            // workaround for broken items with \n as first line character
-                            || nextLine.charAt(0) == '\\'
-                            // workaround for Exchange 2010 bug
-                            || nextLine.charAt(0) == ':')) {
+            // most lines are not folded, return them without copy
+            if (!isContinuation(nextLine)) {
+                return line;
+            }
+            currentLine.setLength(0);
+            currentLine.append(line);
+            while (isContinuation(nextLine)) {
                 // Timezone ends with \n => next line starts with :
                 if (nextLine.charAt(0) == ':') {
                     currentLine.append(nextLine);
                 } else {
-                    currentLine.append(nextLine.substring(1));
+                    currentLine.append(nextLine, 1, nextLine.length());
                 }
                 nextLine = super.readLine();
             }
             return currentLine.toString();
         }
     }
+
+    protected boolean isContinuation(String line) {
+        return line != null && line.length() > 0 &&
+                (line.charAt(0) == ' ' || line.charAt(0) == '\t'
+                        // workaround for broken items with \n as first line character
+                        || line.charAt(0) == '\\'
+                        // workaround for Exchange 2010 bug
+                        || line.charAt(0) == ':');
+    }
 }
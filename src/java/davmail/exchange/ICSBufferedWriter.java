@@ -52,18 +52,35 @@ public class ICSBufferedWriter {
      * @param prefix continuation flag
      */
     public void writeLine(String line, boolean prefix) {
-        int maxLength = 77;
-        if (prefix) {
-            maxLength--;
-            buffer.append(' ');
-        }
-        if (line.length() > maxLength) {
-            buffer.append(line.substring(0, maxLength));
-            newLine();
-            writeLine(line.substring(maxLength), true);
-        } else {
-            buffer.append(line);
-            newLine();
+        writeLine((CharSequence) line, prefix);
+    }
+
+    /**
+     * Write line to buffer, split lines at 75 characters.
+     * Line content is copied once, continuation lines are written by offset.
+     *
+     * @param line   line content
+     * @param prefix continuation flag
+     */
+    public void writeLine(CharSequence line, boolean prefix) {
+        int length = line.length();
+        int maxLength = prefix ? 76 : 77;
+        int startIndex = 0;
+        while (true) {
+            if (prefix) {
+                buffer.append(' ');
+            }
+            if (length - startIndex > maxLength) {
+                buffer.append(line, startIndex, startIndex + maxLength);
+                newLine();
+                startIndex += maxLength;
+                prefix = true;
+                maxLength = 76;
+            } else {
+                buffer.append(line, startIndex, length);
+                newLine();
+                break;
+            }
         }
     }
 
@@ -0,0 +1,273 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange;
+
+import davmail.Settings;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Session level cache of rendered CalDAV and CardDAV item bodies (fixed ICS and vCard),
+ * shared by all connections of a user.
+ * Entries are keyed by folder path and item name and only returned for the etag they were rendered from,
+ * in memory entries of a folder are dropped when folder ctag changes or when an item is updated or deleted.
+ * When davmail.messageStorePath is set, bodies are also kept by etag in a persistent store
+ * in the items subdirectory.
+ */
+public class ItemBodyCache {
+    protected static final Logger LOGGER = Logger.getLogger(ItemBodyCache.class);
+
+    protected static final long SEGMENT_SIZE = 4L * 1024L * 1024L;
+
+    private static MessageStore store;
+    private static boolean storeInitialized;
+
+    /**
+     * Rendered item body and source etag.
+     */
+    protected static final class Entry {
+        protected final String folderPath;
+        protected final String etag;
+        protected final String body;
+
+        protected Entry(String folderPath, String etag, String body) {
+            this.folderPath = folderPath;
+            this.etag = etag;
+            this.body = body;
+        }
+
+        protected long getSize() {
+            // approximate memory footprint of body characters
+            return body.length() * 2L;
+        }
+    }
+
+    protected final String user;
+    protected final long maxSize;
+    protected final MessageStore itemStore;
+    protected long size;
+
+    protected final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    protected final HashMap<String, String> folderCtags = new HashMap<String, String>();
+
+    /**
+     * Get persistent item store according to settings.
+     *
+     * @return item store or null if davmail.messageStorePath is not set
+     */
+    public static synchronized MessageStore getStore() {
+        if (!storeInitialized) {
+            storeInitialized = true;
+            String path = Settings.getProperty("davmail.messageStorePath");
+            if (path != null && path.length() > 0) {
+                try {
+                    store = new MessageStore(new File(path, "items"), Settings.getIntProperty("davmail.messageStoreSize", 512) * 1024L * 1024L / 8, SEGMENT_SIZE);
+                } catch (IOException e) {
+                    LOGGER.error("Unable to open item store " + path + ": " + e.getMessage());
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Close item store, settings are read again on next getStore call.
+     */
+    public static synchronized void closeStore() {
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+        storeInitialized = false;
+    }
+
+    /**
+     * Create item body cache with davmail.caldavItemCacheSize MB of memory.
+     *
+     * @param user user name, persistent store key
+     */
+    public ItemBodyCache(String user) {
+        this(user, Settings.getIntProperty("davmail.caldavItemCacheSize", 16) * 1024L * 1024L, getStore());
+    }
+
+    /**
+     * Create item body cache.
+     *
+     * @param user      user name, persistent store key
+     * @param maxSize   maximum in memory size in bytes, 0 disables the memory cache
+     * @param itemStore persistent store or null
+     */
+    public ItemBodyCache(String user, long maxSize, MessageStore itemStore) {
+        this.user = user;
+        this.maxSize = maxSize;
+        this.itemStore = itemStore;
+    }
+
+    protected static String getKey(String folderPath, String itemName) {
+        return folderPath + '/' + itemName;
+    }
+
+    /**
+     * Get rendered item body.
+     *
+     * @param folderPath folder path
+     * @param itemName   item name
+     * @param etag       current item etag
+     * @return item body or null if not cached for this etag
+     */
+    public String get(String folderPath, String itemName, String etag) {
+        if (etag == null) {
+            return null;
+        }
+        String key = getKey(folderPath, itemName);
+        synchronized (this) {
+            Entry entry = cache.get(key);
+            if (entry != null && etag.equals(entry.etag)) {
+                return entry.body;
+            }
+        }
+        if (itemStore != null) {
+            byte[] content = itemStore.get(user, key, etag);
+            if (content != null) {
+                try {
+                    String body = new String(content, "UTF-8");
+                    putMemoryEntry(key, new Entry(folderPath, etag, body));
+                    return body;
+                } catch (UnsupportedEncodingException e) {
+                    LOGGER.warn("Unable to read item body: " + e.getMessage());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keep rendered item body.
+     *
+     * @param folderPath folder path
+     * @param itemName   item name
+     * @param etag       item etag body was rendered from
+     * @param body       item body
+     */
+    public void put(String folderPath, String itemName, String etag, String body) {
+        if (etag == null || body == null) {
+            return;
+        }
+        String key = getKey(folderPath, itemName);
+        putMemoryEntry(key, new Entry(folderPath, etag, body));
+        if (itemStore != null) {
+            try {
+                itemStore.put(user, key, etag, body.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                LOGGER.warn("Unable to store item body: " + e.getMessage());
+            }
+        }
+    }
+
+    protected synchronized void putMemoryEntry(String key, Entry entry) {
+        Entry previousEntry = cache.remove(key);
+        if (previousEntry != null) {
+            size -= previousEntry.getSize();
+        }
+        if (entry.getSize() > maxSize) {
+            return;
+        }
+        cache.put(key, entry);
+        size += entry.getSize();
+        Iterator<Entry> iterator = cache.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            size -= iterator.next().getSize();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drop item body after an update or delete.
+     *
+     * @param folderPath folder path
+     * @param itemName   item name
+     */
+    public synchronized void remove(String folderPath, String itemName) {
+        Entry entry = cache.remove(getKey(folderPath, itemName));
+        if (entry != null) {
+            size -= entry.getSize();
+        }
+        // ctag change caused by this update must not drop other folder items
+        folderCtags.remove(folderPath);
+    }
+
+    /**
+     * Compare folder ctag with ctag of cached items, drop folder items on change.
+     * Persistent entries are keyed by etag and do not need to be dropped.
+     *
+     * @param folderPath folder path
+     * @param ctag       current folder ctag
+     */
+    public synchronized void checkCtag(String folderPath, String ctag) {
+        String previousCtag = folderCtags.put(folderPath, ctag);
+        if (previousCtag != null && !previousCtag.equals(ctag)) {
+            LOGGER.debug("Folder " + folderPath + " ctag changed, dropping cached items");
+            removeFolder(folderPath);
+        }
+    }
+
+    protected void removeFolder(String folderPath) {
+        Iterator<Entry> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (folderPath.equals(entry.folderPath)) {
+                size -= entry.getSize();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Cached entry count.
+     *
+     * @return entry count
+     */
+    public synchronized int getCount() {
+        return cache.size();
+    }
+
+    /**
+     * Cached body size.
+     *
+     * @return approximate memory size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Clear memory cache.
+     */
+    public synchronized void clear() {
+        cache.clear();
+        folderCtags.clear();
+        size = 0;
+    }
+}
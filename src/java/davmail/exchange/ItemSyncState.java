@@ -0,0 +1,186 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange;
+
+import davmail.Settings;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WebDAV sync-collection (RFC 6578) state of CalDAV and CardDAV collections, kept by the user session.
+ * Each sync token identifies a snapshot of collection item names and etags,
+ * the latest davmail.caldavSyncSnapshots snapshots are kept per folder.
+ */
+public class ItemSyncState {
+    /**
+     * Sync token URI prefix.
+     */
+    public static final String TOKEN_PREFIX = "http://davmail.sourceforge.net/ns/sync/";
+
+    /**
+     * Snapshot id source shared by all sessions, starts above ids assigned before a restart.
+     */
+    private static final AtomicLong SNAPSHOT_ID = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * Item etags of a collection when a sync token was issued.
+     */
+    public static final class Snapshot {
+        protected final long id;
+        /**
+         * Folder ctag of snapshot.
+         */
+        public final String ctag;
+        /**
+         * Item name to etag map.
+         */
+        public final Map<String, String> etags;
+
+        protected Snapshot(long id, String ctag, Map<String, String> etags) {
+            this.id = id;
+            this.ctag = ctag;
+            this.etags = etags;
+        }
+
+        /**
+         * Opaque sync token of this snapshot.
+         *
+         * @return sync token URI
+         */
+        public String getToken() {
+            return TOKEN_PREFIX + id;
+        }
+    }
+
+    protected final int maxSnapshots;
+    protected final HashMap<String, LinkedList<Snapshot>> folderSnapshots = new HashMap<String, LinkedList<Snapshot>>();
+
+    /**
+     * Create sync state with davmail.caldavSyncSnapshots snapshots per folder.
+     */
+    public ItemSyncState() {
+        this(Settings.getIntProperty("davmail.caldavSyncSnapshots", 8));
+    }
+
+    /**
+     * Create sync state.
+     *
+     * @param maxSnapshots maximum snapshot count per folder
+     */
+    public ItemSyncState(int maxSnapshots) {
+        this.maxSnapshots = Math.max(1, maxSnapshots);
+    }
+
+    /**
+     * Get snapshot identified by sync token.
+     *
+     * @param folderPath folder path
+     * @param token      sync token
+     * @return snapshot or null if token is invalid or expired
+     */
+    public synchronized Snapshot getSnapshot(String folderPath, String token) {
+        LinkedList<Snapshot> snapshots = folderSnapshots.get(folderPath);
+        if (snapshots == null || token == null || !token.startsWith(TOKEN_PREFIX)) {
+            return null;
+        }
+        long id;
+        try {
+            id = Long.parseLong(token.substring(TOKEN_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        for (Snapshot snapshot : snapshots) {
+            if (snapshot.id == id) {
+                return snapshot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get latest snapshot of folder if folder did not change since.
+     *
+     * @param folderPath folder path
+     * @param ctag       current folder ctag
+     * @return snapshot or null
+     */
+    public synchronized Snapshot getCurrentSnapshot(String folderPath, String ctag) {
+        LinkedList<Snapshot> snapshots = folderSnapshots.get(folderPath);
+        if (snapshots != null && !snapshots.isEmpty() && snapshots.getLast().ctag.equals(ctag)) {
+            return snapshots.getLast();
+        }
+        return null;
+    }
+
+    /**
+     * Record a new folder snapshot, oldest snapshots expire.
+     * Current snapshot is returned if ctag and etags did not change.
+     *
+     * @param folderPath folder path
+     * @param ctag       folder ctag
+     * @param etags      item name to etag map
+     * @return snapshot
+     */
+    public synchronized Snapshot addSnapshot(String folderPath, String ctag, Map<String, String> etags) {
+        LinkedList<Snapshot> snapshots = folderSnapshots.get(folderPath);
+        if (snapshots == null) {
+            snapshots = new LinkedList<Snapshot>();
+            folderSnapshots.put(folderPath, snapshots);
+        }
+        if (!snapshots.isEmpty() && snapshots.getLast().ctag.equals(ctag) && snapshots.getLast().etags.equals(etags)) {
+            return snapshots.getLast();
+        }
+        Snapshot snapshot = new Snapshot(SNAPSHOT_ID.incrementAndGet(), ctag, etags);
+        snapshots.add(snapshot);
+        Iterator<Snapshot> iterator = snapshots.iterator();
+        while (snapshots.size() > maxSnapshots && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Compare snapshots.
+     *
+     * @param previousEtags previous item etags, null for an initial synchronization
+     * @param etags         current item etags
+     * @param changed       names of new and updated items
+     * @param removed       names of removed items
+     */
+    public static void getChanges(Map<String, String> previousEtags, Map<String, String> etags, List<String> changed, List<String> removed) {
+        for (Map.Entry<String, String> entry : etags.entrySet()) {
+            if (previousEtags == null || entry.getValue() == null || !entry.getValue().equals(previousEtags.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        if (previousEtags != null) {
+            for (String itemName : previousEtags.keySet()) {
+                if (!etags.containsKey(itemName)) {
+                    removed.add(itemName);
+                }
+            }
+        }
+    }
+}
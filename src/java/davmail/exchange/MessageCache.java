@@ -0,0 +1,160 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange;
+
+import davmail.Settings;
+
+import javax.mail.util.SharedByteArrayInputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Session level cache of downloaded message content, shared by all connections of a user.
+ * Entries are keyed by permanent id and change key (or etag), least recently used entries
+ * are evicted when the cache exceeds its byte budget.
+ */
+public class MessageCache {
+    protected final long maxSize;
+    protected long currentSize;
+
+    protected final LinkedHashMap<String, SharedByteArrayInputStream> cache =
+            new LinkedHashMap<String, SharedByteArrayInputStream>(16, 0.75f, true);
+
+    /**
+     * Create message cache with davmail.messageCacheSize budget (in MB).
+     */
+    public MessageCache() {
+        this(Settings.getIntProperty("davmail.messageCacheSize", 16) * 1024L * 1024L);
+    }
+
+    /**
+     * Create message cache with budget in bytes, 0 disables the cache.
+     *
+     * @param maxSize maximum cache size in bytes
+     */
+    public MessageCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Build cache key from permanent id and change key.
+     *
+     * @param permanentId message permanent id
+     * @param changeKey   message change key or etag
+     * @return cache key
+     */
+    public static String getKey(String permanentId, String changeKey) {
+        if (changeKey == null) {
+            return permanentId;
+        } else {
+            return permanentId + ' ' + changeKey;
+        }
+    }
+
+    /**
+     * Get cached message content.
+     * Returned stream is a new stream over cached content, caller can read it independently.
+     *
+     * @param key cache key
+     * @return message content or null
+     */
+    public synchronized SharedByteArrayInputStream get(String key) {
+        SharedByteArrayInputStream content = cache.get(key);
+        if (content == null) {
+            return null;
+        } else {
+            return (SharedByteArrayInputStream) content.newStream(0, -1);
+        }
+    }
+
+    /**
+     * Check if message content is cached, does not update access order.
+     *
+     * @param key cache key
+     * @return true if content is cached
+     */
+    public synchronized boolean contains(String key) {
+        return cache.containsKey(key);
+    }
+
+    /**
+     * Store message content, evict least recently used entries over budget.
+     * Content larger than cache budget is not cached.
+     *
+     * @param key     cache key
+     * @param content message content
+     */
+    public synchronized void put(String key, SharedByteArrayInputStream content) {
+        SharedByteArrayInputStream entry = (SharedByteArrayInputStream) content.newStream(0, -1);
+        int entrySize = entry.available();
+        if (key == null || entrySize > maxSize) {
+            return;
+        }
+        SharedByteArrayInputStream previous = cache.put(key, entry);
+        if (previous != null) {
+            currentSize -= previous.available();
+        }
+        currentSize += entrySize;
+        Iterator<Map.Entry<String, SharedByteArrayInputStream>> iterator = cache.entrySet().iterator();
+        while (currentSize > maxSize && iterator.hasNext()) {
+            Map.Entry<String, SharedByteArrayInputStream> eldest = iterator.next();
+            currentSize -= eldest.getValue().available();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Remove message content from cache.
+     *
+     * @param key cache key
+     */
+    public synchronized void remove(String key) {
+        SharedByteArrayInputStream previous = cache.remove(key);
+        if (previous != null) {
+            currentSize -= previous.available();
+        }
+    }
+
+    /**
+     * Clear cache.
+     */
+    public synchronized void clear() {
+        cache.clear();
+        currentSize = 0;
+    }
+
+    /**
+     * Current cache size in bytes.
+     *
+     * @return cached content size
+     */
+    public synchronized long getSize() {
+        return currentSize;
+    }
+
+    /**
+     * Cached entry count.
+     *
+     * @return entry count
+     */
+    public synchronized int getCount() {
+        return cache.size();
+    }
+}
@@ -3,28 +3,86 @@ package davmail.exchange;
 import davmail.exchange.entity.Message;
 
 import javax.mail.internet.MimeMessage;
-import javax.mail.util.SharedByteArrayInputStream;
+import java.io.InputStream;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
 
 /**
- * Message list, includes a single messsage cache
+ * Message list, includes a single messsage cache.
+ * Messages are either held by the list or built on demand by a read only folder view.
  */
-public class MessageList extends ArrayList<Message> {
+public class MessageList extends AbstractList<Message> implements RandomAccess {
 
-
-    private static final long serialVersionUID = 0;
+    protected final List<Message> messages;
 
     /**
      * Cached message content parsed in a MIME message.
      */
-    public transient MimeMessage cachedMimeMessage;
+    public MimeMessage cachedMimeMessage;
     /**
      * Cached message uid.
      */
-    public transient long cachedMessageImapUid;
+    public long cachedMessageImapUid;
     /**
      * Cached unparsed message
      */
-    public transient SharedByteArrayInputStream cachedMimeBody;
+    public InputStream cachedMimeBody;
+
+    /**
+     * Create an empty message list.
+     */
+    public MessageList() {
+        this(new ArrayList<Message>());
+    }
+
+    /**
+     * Create a message list over messages, e.g. a folder view building messages on demand.
+     *
+     * @param messages backing list
+     */
+    public MessageList(List<Message> messages) {
+        this.messages = messages;
+    }
+
+    @Override
+    public Message get(int index) {
+        return messages.get(index);
+    }
 
+    @Override
+    public int size() {
+        return messages.size();
+    }
+
+    @Override
+    public Message set(int index, Message message) {
+        return messages.set(index, message);
+    }
+
+    @Override
+    public void add(int index, Message message) {
+        messages.add(index, message);
+    }
+
+    @Override
+    public Message remove(int index) {
+        return messages.remove(index);
+    }
+
+    @Override
+    public void clear() {
+        messages.clear();
+    }
+
+    /**
+     * IMAP uid of message at index, folder views override this to avoid building the message.
+     *
+     * @param index message index
+     * @return IMAP uid
+     */
+    public long getImapUid(int index) {
+        return get(index).getImapUid();
+    }
 }
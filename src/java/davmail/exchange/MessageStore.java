@@ -0,0 +1,600 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange;
+
+import davmail.Settings;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persistent message content store, avoids downloading unchanged messages again after a reconnect.
+ * Content is appended to segment files, each record holds user and permanent id, change key and content.
+ * The in memory index is rebuilt from segments on startup, content is read with positional channel reads:
+ * segments are never memory mapped, dropped segment files can be deleted on all platforms.
+ * When the store exceeds its size limit, oldest segments are dropped, segments mostly filled with
+ * obsolete content (message updated) are compacted.
+ */
+public class MessageStore {
+    protected static final Logger LOGGER = Logger.getLogger(MessageStore.class);
+
+    protected static final String SEGMENT_PREFIX = "segment-";
+    protected static final String SEGMENT_SUFFIX = ".dat";
+    protected static final int RECORD_MAGIC = 0x44534d31;
+    protected static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;
+
+    private static MessageStore instance;
+    private static boolean initialized;
+
+    /**
+     * Content location in a segment file.
+     */
+    protected static class Entry {
+        protected final String changeKey;
+        protected final Segment segment;
+        protected final long offset;
+        protected final int length;
+        protected final int recordLength;
+
+        protected Entry(String changeKey, Segment segment, long offset, int length, int recordLength) {
+            this.changeKey = changeKey;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+
+    /**
+     * Append only segment file.
+     */
+    protected static class Segment {
+        protected final int id;
+        protected final File file;
+        protected final RandomAccessFile randomAccessFile;
+        protected final FileChannel channel;
+        protected long size;
+        protected long liveSize;
+        protected boolean sealed;
+        // readers copying from a segment file outside the store lock, guarded by store lock
+        protected int pinCount;
+        // close or delete requested while segment was pinned, done on last unpin
+        protected boolean closePending;
+        protected boolean deletePending;
+
+        protected Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.channel = randomAccessFile.getChannel();
+            this.size = channel.size();
+        }
+
+        /**
+         * Read segment content, positional reads do not change channel position used by appends.
+         *
+         * @param offset      segment offset
+         * @param bytes       target buffer
+         * @param bytesOffset target buffer offset
+         * @param length      byte count
+         * @throws IOException on error
+         */
+        protected void read(long offset, byte[] bytes, int bytesOffset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, bytesOffset, length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position() - bytesOffset) < 0) {
+                    throw new IOException("Unexpected end of message store segment " + file);
+                }
+            }
+        }
+
+        protected void close() {
+            try {
+                channel.close();
+                randomAccessFile.close();
+            } catch (IOException e) {
+                LOGGER.debug("Unable to close segment " + file + ": " + e.getMessage());
+            }
+        }
+
+        protected void delete() {
+            // empty segment is not indexed again if file delete fails
+            try {
+                channel.truncate(0);
+            } catch (IOException e) {
+                LOGGER.debug("Unable to truncate segment " + file + ": " + e.getMessage());
+            }
+            close();
+            if (!file.delete()) {
+                LOGGER.warn("Unable to delete message store segment " + file + ", will retry on next start");
+            }
+        }
+    }
+
+    /**
+     * Input stream over a segment record.
+     */
+    protected static class SegmentInputStream extends InputStream {
+        protected final Segment segment;
+        protected long offset;
+        protected int remaining;
+
+        protected SegmentInputStream(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] bytes = new byte[1];
+            if (read(bytes, 0, 1) < 0) {
+                return -1;
+            }
+            return bytes[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int bytesOffset, int length) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int count = Math.min(length, remaining);
+            segment.read(offset, bytes, bytesOffset, count);
+            offset += count;
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return remaining;
+        }
+    }
+
+    protected final File directory;
+    protected final long maxSize;
+    protected final long segmentSize;
+
+    protected final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    protected final HashMap<String, Entry> index = new HashMap<String, Entry>();
+    protected Segment currentSegment;
+    protected long totalSize;
+
+    /**
+     * Get message store instance according to settings.
+     *
+     * @return message store or null if davmail.messageStorePath is not set
+     */
+    public static synchronized MessageStore getInstance() {
+        if (!initialized) {
+            initialized = true;
+            String path = Settings.getProperty("davmail.messageStorePath");
+            if (path != null && path.length() > 0) {
+                try {
+                    instance = new MessageStore(new File(path), Settings.getIntProperty("davmail.messageStoreSize", 512) * 1024L * 1024L, DEFAULT_SEGMENT_SIZE);
+                } catch (IOException e) {
+                    LOGGER.error("Unable to open message store " + path + ": " + e.getMessage());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Close message store instance, settings are read again on next getInstance call.
+     */
+    public static synchronized void closeInstance() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+        initialized = false;
+    }
+
+    /**
+     * Open message store in directory, rebuild index from existing segments.
+     *
+     * @param directory   store directory
+     * @param maxSize     maximum store size in bytes
+     * @param segmentSize segment file size
+     * @throws IOException on error
+     */
+    public MessageStore(File directory, long maxSize, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                // segment dropped before last stop, file delete failed
+                if (file.length() == 0) {
+                    if (!file.delete()) {
+                        LOGGER.warn("Unable to delete empty message store segment " + file);
+                    }
+                    continue;
+                }
+                try {
+                    int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(id, new Segment(id, file));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Ignoring invalid message store file " + file);
+                }
+            }
+        }
+        for (Segment segment : segments.values()) {
+            loadSegment(segment);
+            segment.sealed = true;
+            totalSize += segment.size;
+        }
+        LOGGER.debug("Opened message store " + directory + " with " + index.size() + " messages (" + totalSize + " bytes)");
+    }
+
+    protected static String getKey(String user, String permanentId) {
+        return user + '\n' + permanentId;
+    }
+
+    /**
+     * Scan segment records and update index, truncate incomplete trailing record.
+     *
+     * @param segment segment file
+     * @throws IOException on error
+     */
+    protected void loadSegment(Segment segment) throws IOException {
+        FileChannel channel = segment.channel;
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (offset < segment.size) {
+            header.clear();
+            if (channel.read(header, offset) < 8) {
+                break;
+            }
+            header.flip();
+            int magic = header.getInt();
+            int keysLength = header.getInt();
+            if (magic != RECORD_MAGIC || keysLength < 0 || offset + 12 + keysLength > segment.size) {
+                break;
+            }
+            ByteBuffer keys = ByteBuffer.allocate(keysLength + 4);
+            if (channel.read(keys, offset + 8) < keysLength + 4) {
+                break;
+            }
+            keys.flip();
+            byte[] keyBytes = new byte[keysLength];
+            keys.get(keyBytes);
+            int length = keys.getInt();
+            long contentOffset = offset + 12 + keysLength;
+            if (length < 0 || contentOffset + length > segment.size) {
+                break;
+            }
+            String[] values = new String(keyBytes, "UTF-8").split("\n", 3);
+            if (values.length == 3) {
+                int recordLength = (int) (contentOffset + length - offset);
+                addEntry(getKey(values[0], values[1]), new Entry(values[2], segment, contentOffset, length, recordLength));
+            }
+            offset = contentOffset + length;
+        }
+        if (offset < segment.size) {
+            LOGGER.warn("Truncating message store segment " + segment.file + " at " + offset);
+            channel.truncate(offset);
+            segment.size = offset;
+        }
+    }
+
+    protected void addEntry(String key, Entry entry) {
+        Entry previous = index.put(key, entry);
+        if (previous != null) {
+            previous.segment.liveSize -= previous.recordLength;
+        }
+        entry.segment.liveSize += entry.recordLength;
+    }
+
+    /**
+     * Get message content from store.
+     *
+     * @param user        user name
+     * @param permanentId message permanent id
+     * @param changeKey   message change key or etag
+     * @return message content or null if message is not in store or changed
+     */
+    public synchronized byte[] get(String user, String permanentId, String changeKey) {
+        Entry entry = index.get(getKey(user, permanentId));
+        if (entry == null || changeKey == null || !changeKey.equals(entry.changeKey)) {
+            return null;
+        }
+        try {
+            byte[] content = new byte[entry.length];
+            entry.segment.read(entry.offset, content, 0, entry.length);
+            return content;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read message from store: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Check if message content is available in store.
+     *
+     * @param user        user name
+     * @param permanentId message permanent id
+     * @param changeKey   message change key or etag
+     * @return true if message is in store and did not change
+     */
+    public synchronized boolean contains(String user, String permanentId, String changeKey) {
+        Entry entry = index.get(getKey(user, permanentId));
+        return entry != null && changeKey != null && changeKey.equals(entry.changeKey);
+    }
+
+    /**
+     * Write message content from store to output stream.
+     *
+     * @param user         user name
+     * @param permanentId  message permanent id
+     * @param changeKey    message change key or etag
+     * @param outputStream output stream
+     * @return false if message is not in store or changed
+     * @throws IOException on error
+     */
+    public boolean writeTo(String user, String permanentId, String changeKey, OutputStream outputStream) throws IOException {
+        Segment segment;
+        long offset;
+        int remaining;
+        synchronized (this) {
+            Entry entry = index.get(getKey(user, permanentId));
+            if (entry == null || changeKey == null || !changeKey.equals(entry.changeKey)) {
+                return false;
+            }
+            segment = entry.segment;
+            offset = entry.offset;
+            remaining = entry.length;
+            // keep segment file open until copy completes
+            segment.pinCount++;
+        }
+        try {
+            byte[] bytes = new byte[8192];
+            while (remaining > 0) {
+                int length = Math.min(bytes.length, remaining);
+                segment.read(offset, bytes, 0, length);
+                outputStream.write(bytes, 0, length);
+                offset += length;
+                remaining -= length;
+            }
+        } finally {
+            unpinSegment(segment);
+        }
+        return true;
+    }
+
+    protected synchronized void unpinSegment(Segment segment) {
+        segment.pinCount--;
+        if (segment.pinCount == 0) {
+            if (segment.deletePending) {
+                segment.delete();
+            } else if (segment.closePending) {
+                segment.close();
+            }
+        }
+    }
+
+    /**
+     * Append message content to store.
+     *
+     * @param user        user name
+     * @param permanentId message permanent id
+     * @param changeKey   message change key or etag
+     * @param content     message content
+     */
+    public void put(String user, String permanentId, String changeKey, byte[] content) {
+        put(user, permanentId, changeKey, new ByteArrayInputStream(content), content.length);
+    }
+
+    /**
+     * Append message content to store, content is copied from input stream without full buffering.
+     *
+     * @param user        user name
+     * @param permanentId message permanent id
+     * @param changeKey   message change key or etag
+     * @param content     message content input stream
+     * @param length      message content length
+     */
+    public synchronized void put(String user, String permanentId, String changeKey, InputStream content, long length) {
+        if (user == null || permanentId == null || changeKey == null || length > maxSize || length > Integer.MAX_VALUE / 2) {
+            return;
+        }
+        try {
+            append(user, permanentId, changeKey, content, (int) length);
+            enforceLimits();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to store message: " + e.getMessage());
+        }
+    }
+
+    protected void append(String user, String permanentId, String changeKey, InputStream content, int length) throws IOException {
+        byte[] keyBytes = (user + '\n' + permanentId + '\n' + changeKey).getBytes("UTF-8");
+        int recordLength = 12 + keyBytes.length + length;
+        Segment segment = getWritableSegment(recordLength);
+        FileChannel channel = segment.channel;
+        long offset = segment.size;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(12 + keyBytes.length);
+            header.putInt(RECORD_MAGIC).putInt(keyBytes.length).put(keyBytes).putInt(length);
+            header.flip();
+            channel.position(offset);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            byte[] bytes = new byte[8192];
+            int remaining = length;
+            while (remaining > 0) {
+                int count = content.read(bytes, 0, Math.min(bytes.length, remaining));
+                if (count < 0) {
+                    throw new IOException("Unexpected end of message content");
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, count);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                remaining -= count;
+            }
+        } catch (IOException e) {
+            // drop incomplete record
+            channel.truncate(offset);
+            throw e;
+        }
+        segment.size += recordLength;
+        totalSize += recordLength;
+        addEntry(getKey(user, permanentId), new Entry(changeKey, segment, offset + 12 + keyBytes.length, length, recordLength));
+    }
+
+    protected Segment getWritableSegment(int recordLength) throws IOException {
+        if (currentSegment != null && currentSegment.size > 0 && currentSegment.size + recordLength > segmentSize) {
+            currentSegment.sealed = true;
+            currentSegment = null;
+        }
+        if (currentSegment == null) {
+            int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            currentSegment = new Segment(id, new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+            segments.put(id, currentSegment);
+        }
+        return currentSegment;
+    }
+
+    /**
+     * Drop oldest segments over size limit, compact sealed segments with less than half live content.
+     * Segments pinned by a reader are compacted on a later call.
+     *
+     * @throws IOException on error
+     */
+    protected void enforceLimits() throws IOException {
+        while (totalSize > maxSize && segments.size() > 1) {
+            dropSegment(segments.get(segments.firstKey()));
+        }
+        List<Segment> sparseSegments = new ArrayList<Segment>();
+        for (Segment segment : segments.values()) {
+            if (segment.sealed && segment.pinCount == 0 && segment.liveSize * 2 < segment.size) {
+                sparseSegments.add(segment);
+            }
+        }
+        for (Segment segment : sparseSegments) {
+            compactSegment(segment);
+        }
+    }
+
+    protected void dropSegment(Segment segment) {
+        Iterator<Map.Entry<String, Entry>> iterator = index.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().segment == segment) {
+                iterator.remove();
+            }
+        }
+        removeSegment(segment);
+    }
+
+    protected void removeSegment(Segment segment) {
+        segments.remove(segment.id);
+        totalSize -= segment.size;
+        if (segment == currentSegment) {
+            currentSegment = null;
+        }
+        if (segment.pinCount > 0) {
+            segment.deletePending = true;
+        } else {
+            segment.delete();
+        }
+    }
+
+    /**
+     * Copy live records to current segment and delete segment.
+     *
+     * @param segment sparse segment
+     * @throws IOException on error
+     */
+    protected void compactSegment(Segment segment) throws IOException {
+        LOGGER.debug("Compacting message store segment " + segment.file);
+        List<String> liveKeys = new ArrayList<String>();
+        for (Map.Entry<String, Entry> mapEntry : index.entrySet()) {
+            if (mapEntry.getValue().segment == segment) {
+                liveKeys.add(mapEntry.getKey());
+            }
+        }
+        for (String key : liveKeys) {
+            Entry entry = index.get(key);
+            int separatorIndex = key.indexOf('\n');
+            append(key.substring(0, separatorIndex), key.substring(separatorIndex + 1), entry.changeKey,
+                    new SegmentInputStream(segment, entry.offset, entry.length), entry.length);
+        }
+        removeSegment(segment);
+    }
+
+    /**
+     * Current store size in bytes.
+     *
+     * @return store size
+     */
+    public synchronized long getSize() {
+        return totalSize;
+    }
+
+    /**
+     * Stored message count.
+     *
+     * @return message count
+     */
+    public synchronized int getCount() {
+        return index.size();
+    }
+
+    /**
+     * Close segment files.
+     */
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            if (segment.pinCount > 0) {
+                segment.closePending = true;
+            } else {
+                segment.close();
+            }
+        }
+        segments.clear();
+        index.clear();
+        currentSegment = null;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange;
+
+import davmail.Settings;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Session level cache of computed IMAP ENVELOPE and BODYSTRUCTURE values, shared by all connections of a user.
+ * Entries are keyed by permanent id and change key, envelope and body structure are set independently:
+ * envelope only needs message headers, body structure needs full message content.
+ * When davmail.messageStorePath is set, entries are also kept in a persistent store
+ * in the structure subdirectory.
+ */
+public class MessageStructureCache {
+    protected static final Logger LOGGER = Logger.getLogger(MessageStructureCache.class);
+
+    protected static final char SEPARATOR = '\0';
+    protected static final long SEGMENT_SIZE = 1024L * 1024L;
+
+    private static MessageStore store;
+    private static boolean storeInitialized;
+
+    /**
+     * Cached values, null when not computed yet.
+     */
+    protected static final class Entry {
+        protected final String envelope;
+        protected final String bodyStructure;
+
+        protected Entry(String envelope, String bodyStructure) {
+            this.envelope = envelope;
+            this.bodyStructure = bodyStructure;
+        }
+    }
+
+    protected final String user;
+    protected final int maxCount;
+    protected final MessageStore messageStore;
+
+    protected final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Get persistent structure store according to settings.
+     *
+     * @return structure store or null if davmail.messageStorePath is not set
+     */
+    public static synchronized MessageStore getStore() {
+        if (!storeInitialized) {
+            storeInitialized = true;
+            String path = Settings.getProperty("davmail.messageStorePath");
+            if (path != null && path.length() > 0) {
+                try {
+                    // structure values are small, use a fraction of message store budget
+                    store = new MessageStore(new File(path, "structure"), Settings.getIntProperty("davmail.messageStoreSize", 512) * 1024L * 1024L / 16, SEGMENT_SIZE);
+                } catch (IOException e) {
+                    LOGGER.error("Unable to open message structure store " + path + ": " + e.getMessage());
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Close structure store, settings are read again on next getStore call.
+     */
+    public static synchronized void closeStore() {
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+        storeInitialized = false;
+    }
+
+    /**
+     * Create structure cache with davmail.messageStructureCacheSize entries.
+     *
+     * @param user user name, persistent store key
+     */
+    public MessageStructureCache(String user) {
+        this(user, Settings.getIntProperty("davmail.messageStructureCacheSize", 10000), getStore());
+    }
+
+    /**
+     * Create structure cache.
+     *
+     * @param user         user name, persistent store key
+     * @param maxCount     maximum in memory entry count, 0 disables the memory cache
+     * @param messageStore persistent store or null
+     */
+    public MessageStructureCache(String user, int maxCount, MessageStore messageStore) {
+        this.user = user;
+        this.maxCount = maxCount;
+        this.messageStore = messageStore;
+    }
+
+    /**
+     * Get cached IMAP envelope.
+     *
+     * @param permanentId message permanent id
+     * @param changeKey   message change key
+     * @return envelope list or null
+     */
+    public String getEnvelope(String permanentId, String changeKey) {
+        Entry entry = getEntry(permanentId, changeKey);
+        return entry == null ? null : entry.envelope;
+    }
+
+    /**
+     * Get cached IMAP body structure.
+     *
+     * @param permanentId message permanent id
+     * @param changeKey   message change key
+     * @return body structure list or null
+     */
+    public String getBodyStructure(String permanentId, String changeKey) {
+        Entry entry = getEntry(permanentId, changeKey);
+        return entry == null ? null : entry.bodyStructure;
+    }
+
+    /**
+     * Store IMAP envelope computed from message headers.
+     *
+     * @param permanentId message permanent id
+     * @param changeKey   message change key
+     * @param envelope    envelope list
+     */
+    public void putEnvelope(String permanentId, String changeKey, String envelope) {
+        Entry entry = getEntry(permanentId, changeKey);
+        putEntry(permanentId, changeKey, new Entry(envelope, entry == null ? null : entry.bodyStructure));
+    }
+
+    /**
+     * Store IMAP body structure computed from message content.
+     *
+     * @param permanentId   message permanent id
+     * @param changeKey     message change key
+     * @param bodyStructure body structure list
+     */
+    public void putBodyStructure(String permanentId, String changeKey, String bodyStructure) {
+        Entry entry = getEntry(permanentId, changeKey);
+        putEntry(permanentId, changeKey, new Entry(entry == null ? null : entry.envelope, bodyStructure));
+    }
+
+    /**
+     * Check if body structure is cached, i.e. message content is not needed to answer BODYSTRUCTURE.
+     *
+     * @param permanentId message permanent id
+     * @param changeKey   message change key
+     * @return true if body structure is available
+     */
+    public boolean containsBodyStructure(String permanentId, String changeKey) {
+        return getBodyStructure(permanentId, changeKey) != null;
+    }
+
+    protected Entry getEntry(String permanentId, String changeKey) {
+        if (permanentId == null || changeKey == null) {
+            return null;
+        }
+        String key = MessageCache.getKey(permanentId, changeKey);
+        synchronized (this) {
+            Entry entry = cache.get(key);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        if (messageStore != null) {
+            byte[] content = messageStore.get(user, permanentId, changeKey);
+            if (content != null) {
+                Entry entry = decode(content);
+                if (entry != null) {
+                    putMemoryEntry(key, entry);
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    protected void putEntry(String permanentId, String changeKey, Entry entry) {
+        if (permanentId == null || changeKey == null) {
+            return;
+        }
+        putMemoryEntry(MessageCache.getKey(permanentId, changeKey), entry);
+        if (messageStore != null) {
+            try {
+                messageStore.put(user, permanentId, changeKey, encode(entry));
+            } catch (UnsupportedEncodingException e) {
+                LOGGER.warn("Unable to store message structure: " + e.getMessage());
+            }
+        }
+    }
+
+    protected synchronized void putMemoryEntry(String key, Entry entry) {
+        if (maxCount <= 0) {
+            return;
+        }
+        cache.put(key, entry);
+        Iterator<String> iterator = cache.keySet().iterator();
+        while (cache.size() > maxCount && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    protected static byte[] encode(Entry entry) throws UnsupportedEncodingException {
+        StringBuilder buffer = new StringBuilder();
+        if (entry.envelope != null) {
+            buffer.append(entry.envelope);
+        }
+        buffer.append(SEPARATOR);
+        if (entry.bodyStructure != null) {
+            buffer.append(entry.bodyStructure);
+        }
+        return buffer.toString().getBytes("UTF-8");
+    }
+
+    protected static Entry decode(byte[] content) {
+        try {
+            String value = new String(content, "UTF-8");
+            int separatorIndex = value.indexOf(SEPARATOR);
+            if (separatorIndex < 0) {
+                return null;
+            }
+            String envelope = value.substring(0, separatorIndex);
+            String bodyStructure = value.substring(separatorIndex + 1);
+            return new Entry(envelope.length() == 0 ? null : envelope, bodyStructure.length() == 0 ? null : bodyStructure);
+        } catch (UnsupportedEncodingException e) {
+            LOGGER.warn("Unable to read message structure: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Cached entry count.
+     *
+     * @return entry count
+     */
+    public synchronized int getCount() {
+        return cache.size();
+    }
+
+    /**
+     * Clear memory cache.
+     */
+    public synchronized void clear() {
+        cache.clear();
+    }
+}
@@ -160,7 +160,8 @@ public class VCalendar extends VObject {
 
         // iCal 4 global X-CALENDARSERVER-ACCESS
         String calendarServerAccess = getPropertyValue("X-CALENDARSERVER-ACCESS");
-        String now = ExchangeSession.getZuluDateFormat().format(new Date());
+        // reply time is only set on items sent to Exchange
+        String now = fromServer ? null : ExchangeSession.getZuluDateFormat().format(new Date());
 
         // fix method from iPhone
         if (!fromServer && getPropertyValue("METHOD") == null) {
@@ -140,16 +140,28 @@ public class VObject {
      * @param writer buffered writer
      */
     public void writeTo(ICSBufferedWriter writer) {
+        writeTo(writer, new StringBuilder());
+    }
+
+    /**
+     * Write VObject to writer, reuse line buffer for all properties and inner objects.
+     *
+     * @param writer     buffered writer
+     * @param lineBuffer property line buffer
+     */
+    protected void writeTo(ICSBufferedWriter writer, StringBuilder lineBuffer) {
         writer.write("BEGIN:");
         writer.writeLine(type);
         if (properties != null) {
             for (VProperty property : properties) {
-                writer.writeLine(property.toString());
+                lineBuffer.setLength(0);
+                property.appendTo(lineBuffer);
+                writer.writeLine(lineBuffer, false);
             }
         }
         if (vObjects != null) {
             for (VObject object : vObjects) {
-                object.writeTo(writer);
+                object.writeTo(writer, lineBuffer);
             }
         }
         writer.write("END:");
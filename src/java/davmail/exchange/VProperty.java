@@ -57,6 +57,10 @@ public class VProperty {
     }
 
     protected String key;
+    /**
+     * Comma separated values property, set with key.
+     */
+    protected boolean multivalued;
     protected List<Param> params;
     protected List<String> values;
 
@@ -146,7 +150,7 @@ public class VProperty {
                 } else if (state == State.VALUE) {
                     if (currentChar == '\\') {
                         state = State.BACKSLASH;
-                    } else if (currentChar == ';' || (MULTIVALUED_PROPERTIES.contains(key) && currentChar == ',')) {
+                    } else if (currentChar == ';' || (multivalued && currentChar == ',')) {
                         addValue(line.substring(startIndex, i));
                         startIndex = i + 1;
                     }
@@ -378,10 +382,21 @@ public class VProperty {
         } else {
             this.key = key.substring(dotIndex + 1);
         }
+        multivalued = MULTIVALUED_PROPERTIES.contains(this.key);
     }
 
     public String toString() {
         StringBuilder buffer = new StringBuilder();
+        appendTo(buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * Append encoded property line to buffer, without line folding.
+     *
+     * @param buffer line buffer
+     */
+    public void appendTo(StringBuilder buffer) {
         buffer.append(key);
         if (params != null) {
             for (Param param : params) {
@@ -398,7 +413,7 @@ public class VProperty {
             for (String value : values) {
                 if (firstValue) {
                     firstValue = false;
-                } else if (MULTIVALUED_PROPERTIES.contains(key)) {
+                } else if (multivalued) {
                     buffer.append(',');
                 } else {
                     buffer.append(';');
@@ -406,7 +421,6 @@ public class VProperty {
                 appendMultilineEncodedValue(buffer, value);
             }
         }
-        return buffer.toString();
     }
 
     protected void appendParamValues(StringBuilder buffer, Param param) {
@@ -441,10 +455,10 @@ public class VProperty {
             char c = value.charAt(i);
             if (c == '\n') {
                 buffer.append("\\n");
-            } else if (MULTIVALUED_PROPERTIES.contains(key) && c==',') {
+            } else if (multivalued && c == ',') {
                 buffer.append('\\').append(',');
             } else {
-                buffer.append(value.charAt(i));
+                buffer.append(c);
             }
         }
     }
@@ -1244,7 +1244,8 @@ public class DavExchangeSession extends ExchangeSession {
         message.date = convertDateFromExchange(getPropertyIfExists(properties, "date"));
         message.deleted = "1".equals(getPropertyIfExists(properties, "deleted"));
 
-        String lastmodified = convertDateFromExchange(getPropertyIfExists(properties, "lastmodified"));
+        message.lastModified = getPropertyIfExists(properties, "lastmodified");
+        String lastmodified = convertDateFromExchange(message.lastModified);
         message.recent = !message.read && lastmodified != null && lastmodified.equals(message.date);
 
         message.keywords = getPropertyIfExists(properties, "keywords");
@@ -1389,8 +1390,15 @@ public class DavExchangeSession extends ExchangeSession {
         }
         searchRequest.append(" ORDER BY ").append(Field.getRequestPropertyString("imapUid")).append(" DESC");
         DavGatewayTray.debug(new BundleMessage("LOG_SEARCH_QUERY", searchRequest));
-        MultiStatusResponse[] responses = DavGatewayHttpClientFacade.executeSearchMethod(
-                httpClient, encodeAndFixUrl(folderUrl), searchRequest.toString(), maxCount);
+        MultiStatusResponse[] responses;
+        try {
+            responses = DavGatewayHttpClientFacade.executeSearchMethod(
+                    httpClient, encodeAndFixUrl(folderUrl), searchRequest.toString(), maxCount);
+        } catch (LoginTimeoutException e) {
+            invalidate();
+            throw e;
+        }
+        setValidated();
         DavGatewayTray.debug(new BundleMessage("LOG_SEARCH_RESULT", responses.length));
         return responses;
     }
@@ -1486,6 +1494,64 @@ public class DavExchangeSession extends ExchangeSession {
 
     }
 
+    /**
+     * Get items with a single urlcompname SEARCH request and a single contact SEARCH request,
+     * items not found fall back to getItem failover lookups.
+     */
+    @Override
+    public Map<String, Item> getItems(String folderPath, List<String> itemNames) throws IOException {
+        Map<String, Item> items = new HashMap<String, Item>();
+        if (itemNames.isEmpty()) {
+            return items;
+        }
+        Map<String, String> itemNamesByUrlcompname = new HashMap<String, String>();
+        List<Condition> conditions = new ArrayList<Condition>();
+        for (String itemName : itemNames) {
+            String emlItemName = convertItemNameToEML(itemName);
+            itemNamesByUrlcompname.put(emlItemName, itemName);
+            conditions.add(isEqualTo("urlcompname", emlItemName));
+        }
+        MultiStatusResponse[] responses = searchItems(folderPath, EVENT_REQUEST_PROPERTIES,
+                or(conditions.toArray(new Condition[conditions.size()])), FolderQueryTraversal.Shallow, 0);
+        List<Condition> contactConditions = new ArrayList<Condition>();
+        for (MultiStatusResponse response : responses) {
+            DavPropertySet properties = response.getProperties(HttpStatus.SC_OK);
+            String urlcompname = StringUtil.decodeUrlcompname(getPropertyIfExists(properties, "urlcompname"));
+            String itemName = itemNamesByUrlcompname.get(urlcompname);
+            if (itemName != null) {
+                if ("urn:content-classes:person".equals(getPropertyIfExists(properties, "contentclass"))) {
+                    contactConditions.add(isEqualTo("urlcompname", urlcompname));
+                } else {
+                    items.put(itemName, new DavEvent(this, response));
+                }
+            }
+        }
+        if (!contactConditions.isEmpty()) {
+            // retrieve Contact properties
+            List<Contact> contacts = searchContacts(folderPath, CONTACT_ATTRIBUTES,
+                    or(contactConditions.toArray(new Condition[contactConditions.size()])), 0);
+            for (Contact contact : contacts) {
+                String itemName = itemNamesByUrlcompname.get(convertItemNameToEML(contact.getName()));
+                if (itemName != null) {
+                    items.put(itemName, contact);
+                }
+            }
+        }
+
+        int foundCount = items.size();
+        for (String itemName : itemNames) {
+            if (!items.containsKey(itemName)) {
+                try {
+                    items.put(itemName, getItem(folderPath, itemName));
+                } catch (HttpNotFoundException e) {
+                    LOGGER.debug(itemName + " not found in " + folderPath);
+                }
+            }
+        }
+        LOGGER.debug("Retrieved " + foundCount + " of " + itemNames.size() + " items in bulk requests from " + folderPath);
+        return items;
+    }
+
     @Override
     public ContactPhoto getContactPhoto(Contact contact) throws IOException {
         ContactPhoto contactPhoto = null;
@@ -1543,6 +1609,7 @@ public class DavExchangeSession extends ExchangeSession {
 
     @Override
     public void deleteItem(String folderPath, String itemName) throws IOException {
+        getItemBodyCache().remove(folderPath, itemName);
         String eventPath = URIUtil.encodePath(getFolderPath(folderPath) + '/' + convertItemNameToEML(itemName));
         int status = DavGatewayHttpClientFacade.executeDeleteMethod(httpClient, eventPath);
         if (status == HttpStatus.SC_NOT_FOUND && isMainCalendar(folderPath)) {
@@ -1968,6 +2035,15 @@ public class DavExchangeSession extends ExchangeSession {
     @Override
     public byte[] getContent(Message message) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        writeContent(message, baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void writeContent(Message message, OutputStream outputStream) throws IOException {
         InputStream contentInputStream;
         try {
             try {
@@ -1984,7 +2060,7 @@ public class DavExchangeSession extends ExchangeSession {
             }
 
             try {
-                IOUtil.write(contentInputStream, baos);
+                IOUtil.write(contentInputStream, outputStream);
             } finally {
                 contentInputStream.close();
             }
@@ -2000,6 +2076,7 @@ public class DavExchangeSession extends ExchangeSession {
         } catch (IOException e) {
             LOGGER.warn("Broken message at: " + message.messageUrl + " permanentUrl: " + message.permanentUrl + ", trying to rebuild from properties");
 
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
             try {
                 DavPropertyNameSet messageProperties = new DavPropertyNameSet();
                 messageProperties.add(Field.getPropertyName("contentclass"));
@@ -2073,9 +2150,8 @@ public class DavExchangeSession extends ExchangeSession {
                 }
                 throw e;
             }
+            baos.writeTo(outputStream);
         }
-
-        return baos.toByteArray();
     }
 
     protected String getEscapedUrlFromPath(String escapedPath) throws URIException {
@@ -15,6 +15,11 @@ public class DavMessage extends davmail.exchange.entity.Message {
 
     private final DavExchangeSession davExchangeSession;
 
+    /**
+     * Message last modified date, used as change key.
+     */
+    protected String lastModified;
+
     public DavMessage(DavExchangeSession davExchangeSession) {
         super(davExchangeSession);
         this.davExchangeSession = davExchangeSession;
@@ -25,6 +30,17 @@ public class DavMessage extends davmail.exchange.entity.Message {
         return permanentUrl;
     }
 
+    @Override
+    public String getChangeKey() {
+        return lastModified;
+    }
+
+    @Override
+    protected void setIds(String permanentId, String changeKey) {
+        permanentUrl = permanentId;
+        lastModified = changeKey;
+    }
+
     @Override
     protected InputStream getMimeHeaders() {
         InputStream input = null;
@@ -3,20 +3,16 @@ package davmail.exchange.entity;
 import davmail.exchange.condition.Condition;
 import davmail.exchange.ExchangeSession;
 import davmail.exchange.MessageList;
-import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.util.AbstractList;
 import java.util.HashMap;
-import java.util.TreeMap;
 
 /**
  * Exchange folder with IMAP properties
  */
 public class Folder {
 
-    private static final Logger LOGGER = Logger.getLogger("davmail.exchange.ExchangeSession");
-
     /**
      * Logical (IMAP) folder path.
      */
@@ -62,17 +58,64 @@ public class Folder {
      * recent count
      */
     public int recent;
-
+    /**
+     * Highest IMAP mod-sequence when messages were loaded.
+     */
+    public long highestModSeq;
     public final ExchangeSession exchangeSession;
 
     /**
      * Folder message list, empty before loadMessages call.
+     * Sequence number view over the shared folder index, messages are built on demand for this connection.
      */
     public MessageList messages;
     /**
-     * Permanent uid (PR_SEARCH_KEY) to IMAP UID map.
+     * Listing shared with other connections on the same folder.
+     */
+    protected FolderState folderState;
+    /**
+     * Shared listing version of current message list.
+     */
+    protected int stateVersion;
+    /**
+     * Shared index viewed by this connection, kept until next load even if another connection reloads folder.
+     */
+    protected FolderIndex folderIndex;
+    /**
+     * Messages updated by this connection since last load by IMAP uid, shared index is never modified.
+     */
+    protected final HashMap<Long, Message> updatedMessages = new HashMap<Long, Message>();
+
+    /**
+     * Connection view over shared index.
      */
-    private final HashMap<String, Long> permanentUrlToImapUidMap = new HashMap<String, Long>();
+    protected class MessageView extends AbstractList<Message> {
+        // range iterators get the same message several times
+        private int lastIndex = -1;
+        private Message lastMessage;
+
+        @Override
+        public Message get(int index) {
+            if (index == lastIndex) {
+                return lastMessage;
+            }
+            Message message = null;
+            if (!updatedMessages.isEmpty()) {
+                message = updatedMessages.get(folderIndex.getUid(index));
+            }
+            if (message == null) {
+                message = folderIndex.getMessage(index, messages);
+            }
+            lastIndex = index;
+            lastMessage = message;
+            return message;
+        }
+
+        @Override
+        public int size() {
+            return folderIndex.size();
+        }
+    }
 
     public Folder(ExchangeSession exchangeSession) {
         this.exchangeSession = exchangeSession;
@@ -94,22 +137,48 @@ public class Folder {
     }
 
     /**
-     * Load folder messages.
+     * Get listing shared by session connections on this folder.
+     *
+     * @return folder state
+     */
+    public FolderState getFolderState() {
+        if (folderState == null) {
+            folderState = exchangeSession.getFolderState(folderPath);
+        }
+        return folderState;
+    }
+
+    /**
+     * Switch connection view to a shared index version, drop local updates.
+     *
+     * @param folderIndex  shared index
+     * @param stateVersion shared listing version
+     */
+    protected void setIndex(FolderIndex folderIndex, int stateVersion) {
+        this.folderIndex = folderIndex;
+        this.stateVersion = stateVersion;
+        updatedMessages.clear();
+        messages = new MessageList(new MessageView()) {
+            @Override
+            public long getImapUid(int index) {
+                // skip message build in uid range lookups
+                return Folder.this.folderIndex.getUid(index);
+            }
+        };
+    }
+
+    /**
+     * Load folder messages, the session listing is reloaded only if another connection
+     * did not already load the current folder content.
      *
      * @throws java.io.IOException on error
      */
     public void loadMessages() throws IOException {
-        messages = exchangeSession.searchMessages(folderPath, null);
-        fixUids(messages);
-        recent = 0;
-        for (Message message : messages) {
-            if (message.recent) {
-                recent++;
-            }
-        }
+        getFolderState().loadMessages(this);
+        recent = folderIndex.getRecentCount();
         long computedUidNext = 1;
-        if (!messages.isEmpty()) {
-            computedUidNext = messages.get(messages.size() - 1).getImapUid() + 1;
+        if (folderIndex.size() > 0) {
+            computedUidNext = folderIndex.getUid(folderIndex.size() - 1) + 1;
         }
         if (computedUidNext > uidNext) {
             uidNext = computedUidNext;
@@ -125,35 +194,10 @@ public class Folder {
      */
     public MessageList searchMessages(Condition condition) throws IOException {
         MessageList localMessages = exchangeSession.searchMessages(folderPath, condition);
-        fixUids(localMessages);
+        getFolderState().fixUids(localMessages);
         return localMessages;
     }
 
-    /**
-     * Restore previous uids changed by a PROPPATCH (flag change).
-     *
-     * @param messages message list
-     */
-    protected void fixUids(MessageList messages) {
-        boolean sortNeeded = false;
-        for (Message message : messages) {
-            if (permanentUrlToImapUidMap.containsKey(message.getPermanentId())) {
-                long previousUid = permanentUrlToImapUidMap.get(message.getPermanentId());
-                if (message.getImapUid() != previousUid) {
-                    LOGGER.debug("Restoring IMAP uid " + message.getImapUid() + " -> " + previousUid + " for message " + message.getPermanentId());
-                    message.setImapUid(previousUid);
-                    sortNeeded = true;
-                }
-            } else {
-                // add message to uid map
-                permanentUrlToImapUidMap.put(message.getPermanentId(), message.getImapUid());
-            }
-        }
-        if (sortNeeded) {
-            Collections.sort(messages);
-        }
-    }
-
     /**
      * Folder message count.
      *
@@ -187,16 +231,31 @@ public class Folder {
     }
 
     /**
-     * Get current folder messages imap uids and flags
+     * Assign a new IMAP mod-sequence to a message updated by this connection.
+     *
+     * @param message updated message
+     */
+    public void touch(Message message) {
+        updatedMessages.put(message.getImapUid(), message);
+        long modSeq = getFolderState().touch(message);
+        if (modSeq > highestModSeq) {
+            highestModSeq = modSeq;
+        }
+    }
+
+    /**
+     * Get current folder index, including flags updated by this connection.
      *
-     * @return imap uid list
+     * @return compact folder index
      */
-    public TreeMap<Long, String> getImapFlagMap() {
-        TreeMap<Long, String> imapFlagMap = new TreeMap<Long, String>();
-        for (Message message : messages) {
-            imapFlagMap.put(message.getImapUid(), message.getImapFlags());
+    public FolderIndex getIndex() {
+        if (folderIndex == null) {
+            return new FolderIndex(messages);
+        } else if (updatedMessages.isEmpty()) {
+            return folderIndex;
+        } else {
+            return new FolderIndex(folderIndex, updatedMessages.values());
         }
-        return imapFlagMap;
     }
 
     /**
@@ -230,6 +289,9 @@ public class Folder {
      * drop cached message
      */
     public void clearCache() {
+        if (messages.cachedMimeBody != null) {
+            Message.closeQuietly(messages.cachedMimeBody);
+        }
         messages.cachedMimeBody = null;
         messages.cachedMimeMessage = null;
         messages.cachedMessageImapUid = 0;
@@ -0,0 +1,369 @@
+package davmail.exchange.entity;
+
+import davmail.exchange.MessageList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compact folder listing, backing store of folder messages shared by session connections.
+ * IMAP uids, sizes and mod-sequences are kept in primitive arrays, flags in an int bitset per message with
+ * dictionary encoded keywords, message ids and dates are shared with the previous listing.
+ * Message objects are built on demand from a prototype message, an index is never modified:
+ * a reload builds a new index and connections keep the index they loaded.
+ */
+public class FolderIndex {
+    protected static final int SEEN = 1;
+    protected static final int DELETED = 1 << 1;
+    protected static final int RECENT = 1 << 2;
+    protected static final int FLAGGED = 1 << 3;
+    protected static final int JUNK = 1 << 4;
+    protected static final int DRAFT = 1 << 5;
+    protected static final int ANSWERED = 1 << 6;
+    protected static final int FORWARDED = 1 << 7;
+    /**
+     * Keyword dictionary index is stored above flag bits.
+     */
+    protected static final int KEYWORD_SHIFT = 8;
+    protected static final int FLAG_MASK = (1 << KEYWORD_SHIFT) - 1;
+
+    /**
+     * Copy of first listed message, holds session and message class to build messages.
+     */
+    protected final Message prototype;
+    protected final long[] uids;
+    protected final int[] sizes;
+    protected final long[] modSeqs;
+    protected final int[] flags;
+    protected final String[] permanentIds;
+    protected final String[] changeKeys;
+    protected final String[] dates;
+    protected final String[] contentClasses;
+    /**
+     * Message urls, only set over WebDav.
+     */
+    protected final String[] messageUrls;
+    protected final String[] keywords;
+
+    /**
+     * Build index from messages sorted by IMAP uid.
+     *
+     * @param messages message list
+     */
+    public FolderIndex(List<Message> messages) {
+        this(messages, null);
+    }
+
+    /**
+     * Build index from messages sorted by IMAP uid, unchanged message ids are shared with previous index.
+     *
+     * @param messages      message list
+     * @param previousIndex previous folder listing, may be null
+     */
+    public FolderIndex(List<Message> messages, FolderIndex previousIndex) {
+        int size = messages == null ? 0 : messages.size();
+        prototype = size == 0 ? null : messages.get(0).copy(null);
+        uids = new long[size];
+        sizes = new int[size];
+        modSeqs = new long[size];
+        flags = new int[size];
+        permanentIds = new String[size];
+        changeKeys = new String[size];
+        dates = new String[size];
+        contentClasses = new String[size];
+        String[] urls = null;
+        Dictionary keywordDictionary = new Dictionary(previousIndex == null ? null : previousIndex.keywords);
+        HashMap<String, String> contentClassDictionary = new HashMap<String, String>();
+        int previousPosition = 0;
+        for (int i = 0; i < size; i++) {
+            Message message = messages.get(i);
+            long uid = message.getImapUid();
+            uids[i] = uid;
+            sizes[i] = message.size;
+            modSeqs[i] = message.modSeq;
+            flags[i] = getFlagBits(message) | (keywordDictionary.getId(message.keywords) << KEYWORD_SHIFT);
+            String permanentId = message.getPermanentId();
+            String changeKey = message.getChangeKey();
+            String date = message.date;
+            if (previousIndex != null) {
+                // both listings are sorted by uid
+                while (previousPosition < previousIndex.uids.length && previousIndex.uids[previousPosition] < uid) {
+                    previousPosition++;
+                }
+                if (previousPosition < previousIndex.uids.length && previousIndex.uids[previousPosition] == uid) {
+                    permanentId = share(permanentId, previousIndex.permanentIds[previousPosition]);
+                    changeKey = share(changeKey, previousIndex.changeKeys[previousPosition]);
+                    date = share(date, previousIndex.dates[previousPosition]);
+                }
+            }
+            permanentIds[i] = permanentId;
+            changeKeys[i] = changeKey;
+            dates[i] = date;
+            if (message.contentClass != null) {
+                String contentClass = contentClassDictionary.get(message.contentClass);
+                if (contentClass == null) {
+                    contentClass = message.contentClass;
+                    contentClassDictionary.put(contentClass, contentClass);
+                }
+                contentClasses[i] = contentClass;
+            }
+            if (message.messageUrl != null) {
+                if (urls == null) {
+                    urls = new String[size];
+                }
+                urls[i] = message.messageUrl;
+            }
+        }
+        messageUrls = urls;
+        keywords = keywordDictionary.toArray();
+    }
+
+    /**
+     * Copy index with messages updated by a connection, only flags and mod-sequences change.
+     *
+     * @param index           shared index
+     * @param updatedMessages connection local updates
+     */
+    protected FolderIndex(FolderIndex index, Collection<Message> updatedMessages) {
+        prototype = index.prototype;
+        uids = index.uids;
+        sizes = index.sizes;
+        permanentIds = index.permanentIds;
+        changeKeys = index.changeKeys;
+        dates = index.dates;
+        contentClasses = index.contentClasses;
+        messageUrls = index.messageUrls;
+        modSeqs = index.modSeqs.clone();
+        flags = index.flags.clone();
+        Dictionary keywordDictionary = new Dictionary(index.keywords);
+        for (Message message : updatedMessages) {
+            int position = index.indexOf(message.getImapUid());
+            if (position >= 0) {
+                modSeqs[position] = message.modSeq;
+                flags[position] = getFlagBits(message) | (keywordDictionary.getId(message.keywords) << KEYWORD_SHIFT);
+            }
+        }
+        keywords = keywordDictionary.toArray();
+    }
+
+    /**
+     * Keyword dictionary, id 0 means no keywords.
+     */
+    protected static class Dictionary {
+        protected final List<String> values = new ArrayList<String>();
+        protected final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+        protected Dictionary(String[] initialValues) {
+            values.add(null);
+            if (initialValues != null) {
+                for (int i = 1; i < initialValues.length; i++) {
+                    values.add(initialValues[i]);
+                    ids.put(initialValues[i], i);
+                }
+            }
+        }
+
+        protected int getId(String value) {
+            if (value == null) {
+                return 0;
+            }
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        protected String[] toArray() {
+            return values.toArray(new String[values.size()]);
+        }
+    }
+
+    protected static String share(String value, String previousValue) {
+        if (value != null && value.equals(previousValue)) {
+            return previousValue;
+        }
+        return value;
+    }
+
+    protected static int getFlagBits(Message message) {
+        int bits = 0;
+        if (message.read) {
+            bits |= SEEN;
+        }
+        if (message.deleted) {
+            bits |= DELETED;
+        }
+        if (message.recent) {
+            bits |= RECENT;
+        }
+        if (message.flagged) {
+            bits |= FLAGGED;
+        }
+        if (message.junk) {
+            bits |= JUNK;
+        }
+        if (message.draft) {
+            bits |= DRAFT;
+        }
+        if (message.answered) {
+            bits |= ANSWERED;
+        }
+        if (message.forwarded) {
+            bits |= FORWARDED;
+        }
+        return bits;
+    }
+
+    protected static void setFlagBits(Message message, int bits) {
+        message.read = (bits & SEEN) != 0;
+        message.deleted = (bits & DELETED) != 0;
+        message.recent = (bits & RECENT) != 0;
+        message.flagged = (bits & FLAGGED) != 0;
+        message.junk = (bits & JUNK) != 0;
+        message.draft = (bits & DRAFT) != 0;
+        message.answered = (bits & ANSWERED) != 0;
+        message.forwarded = (bits & FORWARDED) != 0;
+    }
+
+    /**
+     * Message count.
+     *
+     * @return size
+     */
+    public int size() {
+        return uids.length;
+    }
+
+    /**
+     * IMAP uid of message at index.
+     *
+     * @param index message index
+     * @return IMAP uid
+     */
+    public long getUid(int index) {
+        return uids[index];
+    }
+
+    /**
+     * Message size at index, as listed by Exchange.
+     *
+     * @param index message index
+     * @return approximate message size
+     */
+    public int getSize(int index) {
+        return sizes[index];
+    }
+
+    /**
+     * IMAP mod-sequence of message at index.
+     *
+     * @param index message index
+     * @return mod-sequence
+     */
+    public long getModSeq(int index) {
+        return modSeqs[index];
+    }
+
+    /**
+     * Recent flag of message at index.
+     *
+     * @param index message index
+     * @return true if message is recent
+     */
+    public boolean isRecent(int index) {
+        return (flags[index] & RECENT) != 0;
+    }
+
+    /**
+     * Deleted flag of message at index.
+     *
+     * @param index message index
+     * @return true if message is flagged as deleted
+     */
+    public boolean isDeleted(int index) {
+        return (flags[index] & DELETED) != 0;
+    }
+
+    /**
+     * Recent message count.
+     *
+     * @return recent count
+     */
+    public int getRecentCount() {
+        int recent = 0;
+        for (int flag : flags) {
+            if ((flag & RECENT) != 0) {
+                recent++;
+            }
+        }
+        return recent;
+    }
+
+    /**
+     * Find message index by IMAP uid.
+     *
+     * @param uid IMAP uid
+     * @return message index or a negative value if not found
+     */
+    public int indexOf(long uid) {
+        return Arrays.binarySearch(uids, uid);
+    }
+
+    /**
+     * Build message at index.
+     *
+     * @param index       message index
+     * @param messageList enclosing message list
+     * @return new message
+     */
+    public Message getMessage(int index, MessageList messageList) {
+        Message message = prototype.copy(messageList);
+        message.uid = null;
+        message.permanentUrl = null;
+        message.setIds(permanentIds[index], changeKeys[index]);
+        message.messageUrl = messageUrls == null ? null : messageUrls[index];
+        message.imapUid = uids[index];
+        message.size = sizes[index];
+        message.modSeq = modSeqs[index];
+        message.date = dates[index];
+        message.contentClass = contentClasses[index];
+        message.keywords = keywords[flags[index] >>> KEYWORD_SHIFT];
+        setFlagBits(message, flags[index]);
+        return message;
+    }
+
+    /**
+     * Compare message flags at index with current message flags.
+     *
+     * @param index   message index
+     * @param message current message
+     * @return true if flags and keywords did not change
+     */
+    public boolean hasSameFlags(int index, Message message) {
+        int keywordId = flags[index] >>> KEYWORD_SHIFT;
+        String previousKeywords = keywords[keywordId];
+        return (flags[index] & FLAG_MASK) == getFlagBits(message)
+                && (previousKeywords == null ? message.keywords == null : previousKeywords.equals(message.keywords));
+    }
+
+    /**
+     * Compare message flags at index with message flags in another index.
+     *
+     * @param index      message index
+     * @param other      other folder index
+     * @param otherIndex message index in other folder index
+     * @return true if flags and keywords did not change
+     */
+    public boolean hasSameFlags(int index, FolderIndex other, int otherIndex) {
+        String currentKeywords = keywords[flags[index] >>> KEYWORD_SHIFT];
+        String otherKeywords = other.keywords[other.flags[otherIndex] >>> KEYWORD_SHIFT];
+        return (flags[index] & FLAG_MASK) == (other.flags[otherIndex] & FLAG_MASK)
+                && (currentKeywords == null ? otherKeywords == null : currentKeywords.equals(otherKeywords));
+    }
+}
@@ -0,0 +1,146 @@
+package davmail.exchange.entity;
+
+import davmail.exchange.ExchangeSession;
+import davmail.exchange.MessageList;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Folder listing shared by all connections of a user session on the same folder.
+ * Folder index, IMAP uid map and ctag are loaded once per folder change,
+ * each connection views the shared index by sequence number and builds its own message objects on demand.
+ */
+public class FolderState {
+
+    private static final Logger LOGGER = Logger.getLogger("davmail.exchange.ExchangeSession");
+
+    /**
+     * Logical (IMAP) folder path.
+     */
+    public final String folderPath;
+    /**
+     * Folder content tag of current message list.
+     */
+    public String ctag;
+    /**
+     * Incremental synchronization state (EWS SyncFolderItems), null before first synchronization.
+     */
+    public String syncState;
+    /**
+     * Current folder listing, never modified: a reload builds a new index.
+     */
+    public FolderIndex index;
+
+    protected final ExchangeSession exchangeSession;
+    protected final ModSeqIndex modSeqIndex;
+    /**
+     * Incremented on each message list reload.
+     */
+    protected int version;
+    /**
+     * Permanent uid (PR_SEARCH_KEY) to IMAP UID map.
+     */
+    private final HashMap<String, Long> permanentUrlToImapUidMap = new HashMap<String, Long>();
+
+    public FolderState(ExchangeSession exchangeSession, String folderPath) {
+        this.exchangeSession = exchangeSession;
+        this.folderPath = folderPath;
+        this.modSeqIndex = exchangeSession.getModSeqIndex(folderPath);
+    }
+
+    /**
+     * Reload messages if folder content changed since last load and update folder view.
+     *
+     * @param folder connection folder view
+     * @throws IOException on error
+     */
+    public synchronized void loadMessages(Folder folder) throws IOException {
+        if (index == null || ctag == null || !ctag.equals(folder.ctag)) {
+            MessageList messages = exchangeSession.syncMessages(this);
+            if (messages == null) {
+                messages = exchangeSession.searchMessages(folderPath, null);
+            }
+            fixUids(messages);
+            modSeqIndex.update(messages);
+            index = new FolderIndex(messages, index);
+            ctag = folder.ctag;
+            version++;
+        } else if (folder.messages != null && folder.folderIndex == index) {
+            LOGGER.debug("Folder " + folderPath + " view is up to date");
+            return;
+        }
+        folder.setIndex(index, version);
+        folder.highestModSeq = modSeqIndex.getHighestModSeq();
+    }
+
+    /**
+     * Build message objects from current listing, used by incremental synchronization.
+     *
+     * @return current messages or null if folder was never listed
+     */
+    public synchronized MessageList getMessages() {
+        if (index == null) {
+            return null;
+        }
+        MessageList messages = new MessageList();
+        for (int i = 0; i < index.size(); i++) {
+            messages.add(index.getMessage(i, messages));
+        }
+        return messages;
+    }
+
+    /**
+     * Build STATUS values from current listing, without a new listing.
+     *
+     * @param folder Exchange folder with current ctag and counters
+     * @return folder status or null if listing is missing or outdated
+     */
+    public synchronized FolderStatus getStatus(Folder folder) {
+        if (index == null || ctag == null || !ctag.equals(folder.ctag)) {
+            return null;
+        }
+        long uidNext = folder.uidNext;
+        if (index.size() > 0) {
+            uidNext = Math.max(uidNext, index.getUid(index.size() - 1) + 1);
+        }
+        return new FolderStatus(ctag, index.size(), index.getRecentCount(), folder.unreadCount, uidNext, modSeqIndex.getHighestModSeq(), true);
+    }
+
+    /**
+     * Assign a new mod-sequence to a message updated by a connection.
+     *
+     * @param message updated message
+     * @return new mod-sequence
+     */
+    public long touch(Message message) {
+        return modSeqIndex.touch(message);
+    }
+
+    /**
+     * Restore previous uids changed by a PROPPATCH (flag change).
+     *
+     * @param messages message list
+     */
+    public synchronized void fixUids(MessageList messages) {
+        boolean sortNeeded = false;
+        for (Message message : messages) {
+            if (permanentUrlToImapUidMap.containsKey(message.getPermanentId())) {
+                long previousUid = permanentUrlToImapUidMap.get(message.getPermanentId());
+                if (message.getImapUid() != previousUid) {
+                    LOGGER.debug("Restoring IMAP uid " + message.getImapUid() + " -> " + previousUid + " for message " + message.getPermanentId());
+                    message.setImapUid(previousUid);
+                    sortNeeded = true;
+                }
+            } else {
+                // add message to uid map
+                permanentUrlToImapUidMap.put(message.getPermanentId(), message.getImapUid());
+            }
+        }
+        if (sortNeeded) {
+            Collections.sort(messages);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package davmail.exchange.entity;
+
+/**
+ * IMAP STATUS values of a folder, kept a few seconds by the user session
+ * to answer repeated STATUS polls without Exchange requests.
+ */
+public class FolderStatus {
+    /**
+     * Folder content tag of status values.
+     */
+    public final String ctag;
+    public final int messages;
+    public final int recent;
+    public final int unseen;
+    public final long uidNext;
+    public final long highestModSeq;
+    /**
+     * True if values were computed from a full folder listing, false if read from Exchange folder counters.
+     */
+    public final boolean listed;
+    /**
+     * Creation time.
+     */
+    public final long timestamp = System.currentTimeMillis();
+
+    public FolderStatus(String ctag, int messages, int recent, int unseen, long uidNext, long highestModSeq, boolean listed) {
+        this.ctag = ctag;
+        this.messages = messages;
+        this.recent = recent;
+        this.unseen = unseen;
+        this.uidNext = uidNext;
+        this.highestModSeq = highestModSeq;
+        this.listed = listed;
+    }
+
+    /**
+     * Build status from Exchange folder counters (EWS TotalCount and UnreadCount) or from loaded folder messages.
+     *
+     * @param folder Exchange folder
+     * @return folder status
+     */
+    public static FolderStatus fromFolder(Folder folder) {
+        return new FolderStatus(folder.ctag, folder.count(), folder.recent, folder.unreadCount, folder.getUidNext(),
+                folder.highestModSeq, folder.messages != null);
+    }
+}
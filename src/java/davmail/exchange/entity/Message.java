@@ -1,14 +1,20 @@
 package davmail.exchange.entity;
 
 import davmail.exchange.ExchangeSession;
+import davmail.exchange.MessageCache;
+import davmail.exchange.MessageStore;
 import davmail.exchange.MessageList;
+import davmail.io.SpoolOutputStream;
+import davmail.util.IOUtil;
 import davmail.util.StringUtil;
 import org.apache.log4j.Logger;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.SharedInputStream;
 import javax.mail.util.SharedByteArrayInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Enumeration;
@@ -19,7 +25,7 @@ import java.util.Set;
 /**
  * Exchange message.
  */
-public abstract class Message implements Comparable<Message> {
+public abstract class Message implements Comparable<Message>, Cloneable {
 
     private static final Logger LOGGER = Logger.getLogger("davmail.exchange.ExchangeSession");
 
@@ -93,21 +99,56 @@ public abstract class Message implements Comparable<Message> {
      * Message flag: fowarded.
      */
     public boolean forwarded;
+    /**
+     * IMAP mod-sequence (CONDSTORE), assigned by folder modseq index.
+     */
+    public long modSeq;
 
     /**
-     * Unparsed message content.
+     * Unparsed message content, in memory or spooled to a temporary file (SharedInputStream).
      */
-    protected SharedByteArrayInputStream mimeBody;
+    protected InputStream mimeBody;
 
     /**
      * Message content parsed in a MIME message.
      */
     protected MimeMessage mimeMessage;
 
+    /**
+     * Message content downloaded in a batch request, consumed on next load.
+     */
+    protected byte[] prefetchedContent;
+
+    /**
+     * Message headers downloaded in a batch request, dropped with message content.
+     */
+    protected byte[] prefetchedHeaders;
+
     public Message(ExchangeSession exchangeSession) {
         this.exchangeSession = exchangeSession;
     }
 
+    /**
+     * Copy message properties to a new message in list, message content is not copied.
+     *
+     * @param messageList enclosing message list
+     * @return message copy
+     */
+    public Message copy(MessageList messageList) {
+        Message message;
+        try {
+            message = (Message) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        message.messageList = messageList;
+        message.mimeBody = null;
+        message.mimeMessage = null;
+        message.prefetchedContent = null;
+        message.prefetchedHeaders = null;
+        return message;
+    }
+
     /**
      * Get permanent message id.
      * permanentUrl over WebDav or IitemId over EWS
@@ -116,6 +157,22 @@ public abstract class Message implements Comparable<Message> {
      */
     public abstract String getPermanentId();
 
+    /**
+     * Get message change key, changes on each message update.
+     * ChangeKey over EWS or last modified date over WebDav
+     *
+     * @return change key
+     */
+    public abstract String getChangeKey();
+
+    /**
+     * Restore message ids when message is built from folder index.
+     *
+     * @param permanentId permanent id
+     * @param changeKey   change key
+     */
+    protected abstract void setIds(String permanentId, String changeKey);
+
     /**
      * IMAP uid , unique in folder (x0e230003)
      *
@@ -190,27 +247,79 @@ public abstract class Message implements Comparable<Message> {
      */
     public void loadMimeMessage() throws IOException, MessagingException {
         if (mimeMessage == null) {
-            // try to get message content from cache
-            if (this.imapUid == messageList.cachedMessageImapUid) {
-                mimeBody = messageList.cachedMimeBody;
-                mimeMessage = messageList.cachedMimeMessage;
+            // try to get message content from cache, message list is shared with read ahead threads
+            synchronized (messageList) {
+                if (this.imapUid == messageList.cachedMessageImapUid) {
+                    mimeBody = messageList.cachedMimeBody;
+                    mimeMessage = messageList.cachedMimeMessage;
+                }
+            }
+            if (mimeMessage != null) {
                 LOGGER.debug("Got message content for " + imapUid + " from cache");
             } else {
-                // load and parse message
-                mimeBody = new SharedByteArrayInputStream(exchangeSession.getContent(this));
-                mimeMessage = new MimeMessage(null, mimeBody);
-                mimeBody.reset();
-                // workaround for Exchange 2003 ActiveSync bug
-                if (mimeMessage.getHeader("MAIL FROM") != null) {
-                    mimeBody = (SharedByteArrayInputStream) mimeMessage.getRawInputStream();
-                    mimeMessage = new MimeMessage(null, mimeBody);
-                    mimeBody.reset();
+                MessageCache messageCache = exchangeSession.getMessageCache();
+                String cacheKey = MessageCache.getKey(getPermanentId(), getChangeKey());
+                mimeBody = messageCache.get(cacheKey);
+                if (mimeBody != null) {
+                    mimeMessage = new MimeMessage(null, newMimeBodyStream());
+                    LOGGER.debug("Got message content for " + imapUid + " from session cache");
+                } else {
+                    // load and parse message, try persistent store first,
+                    // large messages are spooled to a temporary file
+                    SpoolOutputStream spoolOutputStream = new SpoolOutputStream();
+                    try {
+                        MessageStore messageStore = MessageStore.getInstance();
+                        if (messageStore != null && messageStore.writeTo(exchangeSession.getEmail(), getPermanentId(), getChangeKey(), spoolOutputStream)) {
+                            LOGGER.debug("Got message content for IMAP UID " + imapUid + " from message store");
+                            prefetchedContent = null;
+                            mimeBody = spoolOutputStream.getInputStream();
+                        } else {
+                            if (prefetchedContent != null) {
+                                spoolOutputStream.write(prefetchedContent);
+                                prefetchedContent = null;
+                            } else {
+                                exchangeSession.writeContent(this, spoolOutputStream);
+                            }
+                            LOGGER.debug("Downloaded full message content for IMAP UID " + imapUid + " (" + spoolOutputStream.size() + " bytes)");
+                            mimeBody = spoolOutputStream.getInputStream();
+                            if (messageStore != null) {
+                                messageStore.put(exchangeSession.getEmail(), getPermanentId(), getChangeKey(), newMimeBodyStream(), spoolOutputStream.size());
+                            }
+                        }
+                    } finally {
+                        spoolOutputStream.delete();
+                    }
+                    mimeMessage = new MimeMessage(null, newMimeBodyStream());
+                    // workaround for Exchange 2003 ActiveSync bug
+                    if (mimeMessage.getHeader("MAIL FROM") != null) {
+                        // copy raw content: a substream would not keep spool file alive
+                        spoolOutputStream = new SpoolOutputStream();
+                        try {
+                            IOUtil.write(mimeMessage.getRawInputStream(), spoolOutputStream);
+                            closeQuietly(mimeBody);
+                            mimeBody = spoolOutputStream.getInputStream();
+                        } finally {
+                            spoolOutputStream.delete();
+                        }
+                        mimeMessage = new MimeMessage(null, newMimeBodyStream());
+                    }
+                    if (mimeBody instanceof SharedByteArrayInputStream) {
+                        messageCache.put(cacheKey, (SharedByteArrayInputStream) mimeBody);
+                    }
                 }
-                LOGGER.debug("Downloaded full message content for IMAP UID " + imapUid + " (" + mimeBody.available() + " bytes)");
             }
         }
     }
 
+    /**
+     * New independent stream over unparsed message content.
+     *
+     * @return message content input stream
+     */
+    protected InputStream newMimeBodyStream() {
+        return ((SharedInputStream) mimeBody).newStream(0, -1);
+    }
+
     /**
      * Get message content as a Mime message.
      *
@@ -227,13 +336,8 @@ public abstract class Message implements Comparable<Message> {
         Enumeration result = null;
         if (mimeMessage == null) {
             // message not loaded, try to get headers only
-            InputStream headers = getMimeHeaders();
-            if (headers != null) {
-                InternetHeaders internetHeaders = new InternetHeaders(headers);
-                if (internetHeaders.getHeader("Subject") == null) {
-                    // invalid header content
-                    return null;
-                }
+            InternetHeaders internetHeaders = getInternetHeaders();
+            if (internetHeaders != null) {
                 if (headerNames == null) {
                     result = internetHeaders.getAllHeaderLines();
                 } else {
@@ -244,6 +348,31 @@ public abstract class Message implements Comparable<Message> {
         return result;
     }
 
+    /**
+     * Get message headers without message content, from a batch header request
+     * or a single header request.
+     *
+     * @return message headers or null if Exchange headers are not available or invalid
+     * @throws MessagingException on error
+     */
+    public InternetHeaders getInternetHeaders() throws MessagingException {
+        InputStream headers;
+        if (prefetchedHeaders != null) {
+            headers = new ByteArrayInputStream(prefetchedHeaders);
+        } else {
+            headers = getMimeHeaders();
+        }
+        if (headers == null) {
+            return null;
+        }
+        InternetHeaders internetHeaders = new InternetHeaders(headers);
+        if (internetHeaders.getHeader("Subject") == null) {
+            // invalid header content
+            return null;
+        }
+        return internetHeaders;
+    }
+
     public Enumeration getMatchingHeaderLines(String[] headerNames) throws MessagingException, IOException {
         Enumeration result = getMatchingHeaderLinesFromHeaders(headerNames);
         if (result == null) {
@@ -268,8 +397,7 @@ public abstract class Message implements Comparable<Message> {
      */
     public int getMimeMessageSize() throws IOException, MessagingException {
         loadMimeMessage();
-        mimeBody.reset();
-        return mimeBody.available();
+        return newMimeBodyStream().available();
     }
 
     /**
@@ -281,8 +409,7 @@ public abstract class Message implements Comparable<Message> {
      */
     public InputStream getRawInputStream() throws IOException, MessagingException {
         loadMimeMessage();
-        mimeBody.reset();
-        return mimeBody;
+        return newMimeBodyStream();
     }
 
 
@@ -293,19 +420,116 @@ public abstract class Message implements Comparable<Message> {
     public void dropMimeMessage() {
         // update single message cache
         if (mimeMessage != null) {
-            messageList.cachedMessageImapUid = imapUid;
-            messageList.cachedMimeBody = mimeBody;
-            messageList.cachedMimeMessage = mimeMessage;
+            synchronized (messageList) {
+                if (messageList.cachedMimeBody != null && messageList.cachedMimeBody != mimeBody) {
+                    // release previous message content, delete spool file
+                    closeQuietly(messageList.cachedMimeBody);
+                }
+                messageList.cachedMessageImapUid = imapUid;
+                messageList.cachedMimeBody = mimeBody;
+                messageList.cachedMimeMessage = mimeMessage;
+            }
         }
         // drop curent message body to save memory
         mimeMessage = null;
         mimeBody = null;
+        prefetchedHeaders = null;
+    }
+
+    /**
+     * Release message content loaded ahead but never sent to the client,
+     * do not update single message cache.
+     */
+    public void releaseMimeMessage() {
+        synchronized (messageList) {
+            if (mimeBody != null && mimeBody != messageList.cachedMimeBody) {
+                closeQuietly(mimeBody);
+            }
+        }
+        mimeMessage = null;
+        mimeBody = null;
+        prefetchedContent = null;
+        prefetchedHeaders = null;
+    }
+
+    /**
+     * Close message content stream, deletes spool file for large messages.
+     *
+     * @param inputStream message content
+     */
+    public static void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close message content: " + e.getMessage());
+        }
     }
 
     public boolean isLoaded() {
         return mimeMessage != null;
     }
 
+    /**
+     * Check if message content can be loaded without a server request:
+     * already loaded, prefetched or available in message cache or store.
+     *
+     * @return true if content is available locally
+     */
+    public boolean isContentAvailable() {
+        if (mimeMessage != null || prefetchedContent != null
+                || (messageList != null && imapUid == messageList.cachedMessageImapUid && messageList.cachedMimeBody != null)
+                || exchangeSession.getMessageCache().contains(MessageCache.getKey(getPermanentId(), getChangeKey()))) {
+            return true;
+        }
+        MessageStore messageStore = MessageStore.getInstance();
+        return messageStore != null && messageStore.contains(exchangeSession.getEmail(), getPermanentId(), getChangeKey());
+    }
+
+    /**
+     * Check if IMAP body structure is cached, i.e. BODYSTRUCTURE can be answered without message content.
+     *
+     * @return true if body structure is available in session structure cache
+     */
+    public boolean isBodyStructureCached() {
+        return exchangeSession.getMessageStructureCache().containsBodyStructure(getPermanentId(), getChangeKey());
+    }
+
+    /**
+     * Set message content downloaded in a batch request.
+     *
+     * @param content raw MIME content
+     */
+    public void setPrefetchedContent(byte[] content) {
+        this.prefetchedContent = content;
+    }
+
+    /**
+     * Set message headers downloaded in a batch request.
+     *
+     * @param headers raw message headers
+     */
+    public void setPrefetchedHeaders(byte[] headers) {
+        this.prefetchedHeaders = headers;
+    }
+
+    /**
+     * Check if message headers were downloaded in a batch request.
+     *
+     * @return true if headers are available locally
+     */
+    public boolean hasPrefetchedHeaders() {
+        return prefetchedHeaders != null;
+    }
+
+    /**
+     * Check if IMAP envelope is cached.
+     *
+     * @return true if envelope is available in session structure cache
+     */
+    public boolean isEnvelopeCached() {
+        return exchangeSession.getMessageStructureCache().getEnvelope(getPermanentId(), getChangeKey()) != null;
+    }
+
     /**
      * Delete message.
      *
@@ -0,0 +1,114 @@
+package davmail.exchange.entity;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IMAP mod-sequences (CONDSTORE) of folder messages, kept by the user session across folder reloads.
+ * Exchange has no per message modification counter: a message gets a new mod-sequence
+ * when its change key, flags or keywords differ from the previous listing.
+ * Uids, mod-sequences and change hashes are kept in sorted primitive arrays, 20 bytes per message.
+ */
+public class ModSeqIndex {
+    /**
+     * Mod-sequence source shared by all folders, starts above values assigned before a restart
+     * as clients may have cached them.
+     */
+    private static final AtomicLong MODSEQ = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    protected long[] uids = new long[0];
+    protected long[] modSeqs = new long[0];
+    protected int[] changeHashes = new int[0];
+    protected long highestModSeq;
+
+    /**
+     * Assign mod-sequences to a new folder listing: unchanged messages keep their mod-sequence,
+     * new and changed messages get a new one, expunged messages increase highest mod-sequence.
+     *
+     * @param messages folder messages sorted by uid
+     */
+    public synchronized void update(List<Message> messages) {
+        int size = messages.size();
+        long[] newUids = new long[size];
+        long[] newModSeqs = new long[size];
+        int[] newChangeHashes = new int[size];
+        long nextModSeq = 0;
+        int previousIndex = 0;
+        int keptCount = 0;
+        for (int i = 0; i < size; i++) {
+            Message message = messages.get(i);
+            long uid = message.getImapUid();
+            int changeHash = getChangeHash(message);
+            while (previousIndex < uids.length && uids[previousIndex] < uid) {
+                previousIndex++;
+            }
+            long modSeq;
+            if (previousIndex < uids.length && uids[previousIndex] == uid) {
+                keptCount++;
+                if (changeHashes[previousIndex] == changeHash) {
+                    modSeq = modSeqs[previousIndex];
+                } else {
+                    if (nextModSeq == 0) {
+                        nextModSeq = MODSEQ.incrementAndGet();
+                    }
+                    modSeq = nextModSeq;
+                }
+            } else {
+                if (nextModSeq == 0) {
+                    nextModSeq = MODSEQ.incrementAndGet();
+                }
+                modSeq = nextModSeq;
+            }
+            newUids[i] = uid;
+            newModSeqs[i] = modSeq;
+            newChangeHashes[i] = changeHash;
+            message.modSeq = modSeq;
+        }
+        if (keptCount < uids.length && nextModSeq == 0) {
+            // messages expunged
+            nextModSeq = MODSEQ.incrementAndGet();
+        }
+        uids = newUids;
+        modSeqs = newModSeqs;
+        changeHashes = newChangeHashes;
+        if (nextModSeq > highestModSeq) {
+            highestModSeq = nextModSeq;
+        }
+    }
+
+    /**
+     * Assign a new mod-sequence to a message updated by this gateway.
+     *
+     * @param message updated message
+     * @return new mod-sequence
+     */
+    public synchronized long touch(Message message) {
+        long modSeq = MODSEQ.incrementAndGet();
+        int index = Arrays.binarySearch(uids, message.getImapUid());
+        if (index >= 0) {
+            modSeqs[index] = modSeq;
+            changeHashes[index] = getChangeHash(message);
+        }
+        highestModSeq = modSeq;
+        message.modSeq = modSeq;
+        return modSeq;
+    }
+
+    /**
+     * Highest mod-sequence in folder.
+     *
+     * @return highest mod-sequence
+     */
+    public synchronized long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+    protected static int getChangeHash(Message message) {
+        String changeKey = message.getChangeKey();
+        int hash = changeKey == null ? 0 : changeKey.hashCode();
+        // recent is not a stored flag
+        hash = 31 * hash + (FolderIndex.getFlagBits(message) & ~FolderIndex.RECENT);
+        return 31 * hash + (message.keywords == null ? 0 : message.keywords.hashCode());
+    }
+}
@@ -55,6 +55,7 @@ public abstract class EWSMethod extends PostMethod {
     protected FolderId toFolderId;
     protected FolderId parentFolderId;
     protected ItemId itemId;
+    protected List<ItemId> itemIds;
     protected ItemId parentItemId;
     protected Set<FieldURI> additionalProperties;
     protected Disposal deleteType;
@@ -88,6 +89,10 @@ public abstract class EWSMethod extends PostMethod {
     protected ExchangeVersion serverVersion;
     protected String timezoneContext;
 
+    // streamed MimeContent
+    protected OutputStream mimeContentOutputStream;
+    protected long mimeContentSize = -1;
+
     /**
      * Build EWS method
      *
@@ -194,7 +199,13 @@ public abstract class EWSMethod extends PostMethod {
     }
 
     protected void writeItemId(Writer writer) throws IOException {
-        if (itemId != null) {
+        if (itemIds != null) {
+            writer.write("<m:ItemIds>");
+            for (ItemId currentItemId : itemIds) {
+                currentItemId.write(writer);
+            }
+            writer.write("</m:ItemIds>");
+        } else if (itemId != null) {
             if (updates == null) {
                 writer.write("<m:ItemIds>");
             }
@@ -779,6 +790,25 @@ public abstract class EWSMethod extends PostMethod {
         }
     }
 
+    /**
+     * Decode MimeContent to output stream during response parsing instead of keeping it in memory.
+     *
+     * @param outputStream MimeContent output stream
+     */
+    public void setMimeContentOutputStream(OutputStream outputStream) {
+        this.mimeContentOutputStream = outputStream;
+    }
+
+    /**
+     * Decoded MimeContent size written to output stream,
+     * -1 if the response did not include MimeContent.
+     *
+     * @return MimeContent size
+     */
+    public long getMimeContentSize() {
+        return mimeContentSize;
+    }
+
     protected String handleTag(XMLStreamReader reader, String localName) throws XMLStreamException {
         String result = null;
         int event = reader.getEventType();
@@ -975,7 +1005,9 @@ public abstract class EWSMethod extends PostMethod {
 
 
     protected void handleMimeContent(XMLStreamReader reader, Item responseItem) throws XMLStreamException {
-        if (reader instanceof TypedXMLStreamReader) {
+        if (mimeContentOutputStream != null) {
+            writeMimeContent(reader);
+        } else if (reader instanceof TypedXMLStreamReader) {
             // Stax2 parser: use enhanced base64 conversion
             responseItem.mimeContent = ((TypedXMLStreamReader) reader).getElementAsBinary();
         } else {
@@ -985,6 +1017,34 @@ public abstract class EWSMethod extends PostMethod {
         }
     }
 
+    protected void writeMimeContent(XMLStreamReader reader) throws XMLStreamException {
+        mimeContentSize = 0;
+        try {
+            if (reader instanceof TypedXMLStreamReader) {
+                // Stax2 parser: decode base64 content chunk by chunk
+                TypedXMLStreamReader typedReader = (TypedXMLStreamReader) reader;
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = typedReader.readElementAsBinary(buffer, 0, buffer.length)) > 0) {
+                    mimeContentOutputStream.write(buffer, 0, count);
+                    mimeContentSize += count;
+                }
+            } else {
+                // failover: slow and memory consuming conversion
+                byte[] mimeContent = Base64.decodeBase64(reader.getElementText().getBytes());
+                mimeContentOutputStream.write(mimeContent);
+                mimeContentSize = mimeContent.length;
+            }
+        } catch (IOException e) {
+            errorDetail = "Unable to write MimeContent: " + e.getMessage();
+            throw new XMLStreamException(e);
+        } catch (XMLStreamException e) {
+            // do not return truncated content
+            errorDetail = "Unable to read MimeContent: " + e.getMessage();
+            throw e;
+        }
+    }
+
     protected void addExtendedPropertyValue(XMLStreamReader reader, Item item) throws XMLStreamException {
         String propertyTag = null;
         String propertyValue = null;
@@ -23,6 +23,8 @@ class EwsEvent extends davmail.exchange.entity.Event {
     ItemId itemId;
     String type;
     boolean isException;
+    // GetItem response with MimeContent retrieved in a batch request
+    EWSMethod.Item prefetchedResponse;
 
     EwsEvent(EwsExchangeSession ewsExchangeSession, EWSMethod.Item response) {
         super(ewsExchangeSession);
@@ -299,68 +301,68 @@ class EwsEvent extends davmail.exchange.entity.Event {
         LOGGER.debug("Get event: " + itemName);
 
         try {
-            GetItemMethod getItemMethod;
-            if ("Task".equals(type)) {
-                getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemId, false);
-                getItemMethod.addAdditionalProperty(Field.get("importance"));
-                getItemMethod.addAdditionalProperty(Field.get("subject"));
-                getItemMethod.addAdditionalProperty(Field.get("created"));
-                getItemMethod.addAdditionalProperty(Field.get("lastmodified"));
-                getItemMethod.addAdditionalProperty(Field.get("calendaruid"));
-                getItemMethod.addAdditionalProperty(Field.get("description"));
-                getItemMethod.addAdditionalProperty(Field.get("percentcomplete"));
-                getItemMethod.addAdditionalProperty(Field.get("taskstatus"));
-                getItemMethod.addAdditionalProperty(Field.get("startdate"));
-                getItemMethod.addAdditionalProperty(Field.get("duedate"));
-                getItemMethod.addAdditionalProperty(Field.get("datecompleted"));
-                getItemMethod.addAdditionalProperty(Field.get("keywords"));
-
-            } else if (!"Message".equals(type)) {
-                getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemId, true);
-                getItemMethod.addAdditionalProperty(Field.get("reminderset"));
-                getItemMethod.addAdditionalProperty(Field.get("calendaruid"));
-                getItemMethod.addAdditionalProperty(Field.get("myresponsetype"));
-                getItemMethod.addAdditionalProperty(Field.get("requiredattendees"));
-                getItemMethod.addAdditionalProperty(Field.get("optionalattendees"));
-                getItemMethod.addAdditionalProperty(Field.get("modifiedoccurrences"));
-                getItemMethod.addAdditionalProperty(Field.get("xmozlastack"));
-                getItemMethod.addAdditionalProperty(Field.get("xmozsnoozetime"));
-                getItemMethod.addAdditionalProperty(Field.get("xmozsendinvitations"));
-            } else {
-                getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemId, true);
-            }
+            EWSMethod.Item responseItem = prefetchedResponse;
+            prefetchedResponse = null;
+            if (responseItem == null) {
+                GetItemMethod getItemMethod;
+                if ("Task".equals(type)) {
+                    getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemId, false);
+                    getItemMethod.addAdditionalProperty(Field.get("importance"));
+                    getItemMethod.addAdditionalProperty(Field.get("subject"));
+                    getItemMethod.addAdditionalProperty(Field.get("created"));
+                    getItemMethod.addAdditionalProperty(Field.get("lastmodified"));
+                    getItemMethod.addAdditionalProperty(Field.get("calendaruid"));
+                    getItemMethod.addAdditionalProperty(Field.get("description"));
+                    getItemMethod.addAdditionalProperty(Field.get("percentcomplete"));
+                    getItemMethod.addAdditionalProperty(Field.get("taskstatus"));
+                    getItemMethod.addAdditionalProperty(Field.get("startdate"));
+                    getItemMethod.addAdditionalProperty(Field.get("duedate"));
+                    getItemMethod.addAdditionalProperty(Field.get("datecompleted"));
+                    getItemMethod.addAdditionalProperty(Field.get("keywords"));
+
+                } else if (!"Message".equals(type)) {
+                    getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemId, true);
+                    addEventProperties(getItemMethod);
+                } else {
+                    getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemId, true);
+                }
 
-            ewsExchangeSession.executeMethod(getItemMethod);
+                ewsExchangeSession.executeMethod(getItemMethod);
+                responseItem = getItemMethod.getResponseItem();
+            }
+            if (responseItem == null) {
+                throw new IOException("empty event body");
+            }
             if ("Task".equals(type)) {
                 VObject vTimezone = ewsExchangeSession.getVTimezone();
                 VCalendar localVCalendar = new VCalendar();
                 VObject vTodo = new VObject();
                 vTodo.type = "VTODO";
                 localVCalendar.setTimezone(vTimezone);
-                vTodo.setPropertyValue("LAST-MODIFIED", ewsExchangeSession.convertDateFromExchange(getItemMethod.getResponseItem().get(Field.get("lastmodified").getResponseName())));
-                vTodo.setPropertyValue("CREATED", ewsExchangeSession.convertDateFromExchange(getItemMethod.getResponseItem().get(Field.get("created").getResponseName())));
-                String calendarUid = getItemMethod.getResponseItem().get(Field.get("calendaruid").getResponseName());
+                vTodo.setPropertyValue("LAST-MODIFIED", ewsExchangeSession.convertDateFromExchange(responseItem.get(Field.get("lastmodified").getResponseName())));
+                vTodo.setPropertyValue("CREATED", ewsExchangeSession.convertDateFromExchange(responseItem.get(Field.get("created").getResponseName())));
+                String calendarUid = responseItem.get(Field.get("calendaruid").getResponseName());
                 if (calendarUid == null) {
                     // use item id as uid for Exchange created tasks
                     calendarUid = itemId.id;
                 }
                 vTodo.setPropertyValue("UID", calendarUid);
-                vTodo.setPropertyValue("SUMMARY", getItemMethod.getResponseItem().get(Field.get("subject").getResponseName()));
-                vTodo.setPropertyValue("DESCRIPTION", getItemMethod.getResponseItem().get(Field.get("description").getResponseName()));
-                vTodo.setPropertyValue("PRIORITY", ewsExchangeSession.convertPriorityFromExchange(getItemMethod.getResponseItem().get(Field.get("importance").getResponseName())));
-                vTodo.setPropertyValue("PERCENT-COMPLETE", getItemMethod.getResponseItem().get(Field.get("percentcomplete").getResponseName()));
-                vTodo.setPropertyValue("STATUS", EwsExchangeSession.taskTovTodoStatusMap.get(getItemMethod.getResponseItem().get(Field.get("taskstatus").getResponseName())));
+                vTodo.setPropertyValue("SUMMARY", responseItem.get(Field.get("subject").getResponseName()));
+                vTodo.setPropertyValue("DESCRIPTION", responseItem.get(Field.get("description").getResponseName()));
+                vTodo.setPropertyValue("PRIORITY", ewsExchangeSession.convertPriorityFromExchange(responseItem.get(Field.get("importance").getResponseName())));
+                vTodo.setPropertyValue("PERCENT-COMPLETE", responseItem.get(Field.get("percentcomplete").getResponseName()));
+                vTodo.setPropertyValue("STATUS", EwsExchangeSession.taskTovTodoStatusMap.get(responseItem.get(Field.get("taskstatus").getResponseName())));
 
-                vTodo.setPropertyValue("DUE;VALUE=DATE", ewsExchangeSession.convertDateFromExchangeToTaskDate(getItemMethod.getResponseItem().get(Field.get("duedate").getResponseName())));
-                vTodo.setPropertyValue("DTSTART;VALUE=DATE", ewsExchangeSession.convertDateFromExchangeToTaskDate(getItemMethod.getResponseItem().get(Field.get("startdate").getResponseName())));
-                vTodo.setPropertyValue("COMPLETED;VALUE=DATE", ewsExchangeSession.convertDateFromExchangeToTaskDate(getItemMethod.getResponseItem().get(Field.get("datecompleted").getResponseName())));
+                vTodo.setPropertyValue("DUE;VALUE=DATE", ewsExchangeSession.convertDateFromExchangeToTaskDate(responseItem.get(Field.get("duedate").getResponseName())));
+                vTodo.setPropertyValue("DTSTART;VALUE=DATE", ewsExchangeSession.convertDateFromExchangeToTaskDate(responseItem.get(Field.get("startdate").getResponseName())));
+                vTodo.setPropertyValue("COMPLETED;VALUE=DATE", ewsExchangeSession.convertDateFromExchangeToTaskDate(responseItem.get(Field.get("datecompleted").getResponseName())));
 
-                vTodo.setPropertyValue("CATEGORIES", getItemMethod.getResponseItem().get(Field.get("keywords").getResponseName()));
+                vTodo.setPropertyValue("CATEGORIES", responseItem.get(Field.get("keywords").getResponseName()));
 
                 localVCalendar.addVObject(vTodo);
                 content = localVCalendar.toString().getBytes("UTF-8");
             } else {
-                content = getItemMethod.getMimeContent();
+                content = responseItem.mimeContent;
                 if (content == null) {
                     throw new IOException("empty event body");
                 }
@@ -369,20 +371,20 @@ class EwsEvent extends davmail.exchange.entity.Event {
                 }
                 VCalendar localVCalendar = new VCalendar(content, ewsExchangeSession.email, ewsExchangeSession.getVTimezone());
 
-                String calendaruid = getItemMethod.getResponseItem().get(Field.get("calendaruid").getResponseName());
+                String calendaruid = responseItem.get(Field.get("calendaruid").getResponseName());
 
                 if (exchangeSession.getServerVersion().isExchange2007()) {
                     // remove additional reminder
-                    if (!"true".equals(getItemMethod.getResponseItem().get(Field.get("reminderset").getResponseName()))) {
+                    if (!"true".equals(responseItem.get(Field.get("reminderset").getResponseName()))) {
                         localVCalendar.removeVAlarm();
                     }
                     if (calendaruid != null) {
                         localVCalendar.setFirstVeventPropertyValue("UID", calendaruid);
                     }
                 }
-                fixAttendees(getItemMethod, localVCalendar.getFirstVevent());
+                fixAttendees(responseItem, localVCalendar.getFirstVevent());
                 // fix UID and RECURRENCE-ID, broken at least on Exchange 2007
-                List<EWSMethod.Occurrence> occurences = getItemMethod.getResponseItem().getOccurrences();
+                List<EWSMethod.Occurrence> occurences = responseItem.getOccurrences();
                 if (occurences != null) {
                     Iterator<VObject> modifiedOccurrencesIterator = localVCalendar.getModifiedOccurrences().iterator();
                     for (EWSMethod.Occurrence occurrence : occurences) {
@@ -394,7 +396,7 @@ class EwsEvent extends davmail.exchange.entity.Event {
                             getOccurrenceMethod.addAdditionalProperty(Field.get("optionalattendees"));
                             getOccurrenceMethod.addAdditionalProperty(Field.get("modifiedoccurrences"));
                             ewsExchangeSession.executeMethod(getOccurrenceMethod);
-                            fixAttendees(getOccurrenceMethod, modifiedOccurrence);
+                            fixAttendees(getOccurrenceMethod.getResponseItem(), modifiedOccurrence);
 
                             if (exchangeSession.getServerVersion().isExchange2007()) {
                                 // fix uid, should be the same as main VEVENT
@@ -413,12 +415,12 @@ class EwsEvent extends davmail.exchange.entity.Event {
                 }
                 // restore mozilla invitations option
                 localVCalendar.setFirstVeventPropertyValue("X-MOZ-SEND-INVITATIONS",
-                        getItemMethod.getResponseItem().get(Field.get("xmozsendinvitations").getResponseName()));
+                        responseItem.get(Field.get("xmozsendinvitations").getResponseName()));
                 // restore mozilla alarm status
                 localVCalendar.setFirstVeventPropertyValue("X-MOZ-LASTACK",
-                        getItemMethod.getResponseItem().get(Field.get("xmozlastack").getResponseName()));
+                        responseItem.get(Field.get("xmozlastack").getResponseName()));
                 localVCalendar.setFirstVeventPropertyValue("X-MOZ-SNOOZE-TIME",
-                        getItemMethod.getResponseItem().get(Field.get("xmozsnoozetime").getResponseName()));
+                        responseItem.get(Field.get("xmozsnoozetime").getResponseName()));
                 // overwrite method
                 // localVCalendar.setPropertyValue("METHOD", "REQUEST");
                 content = localVCalendar.toString().getBytes("UTF-8");
@@ -431,13 +433,30 @@ class EwsEvent extends davmail.exchange.entity.Event {
         return content;
     }
 
-    protected void fixAttendees(GetItemMethod getItemMethod, VObject vEvent) throws EWSException {
-        List<EWSMethod.Attendee> attendees = getItemMethod.getResponseItem().getAttendees();
+    /**
+     * Add properties needed to build event content to a GetItem request.
+     *
+     * @param getItemMethod GetItem method
+     */
+    static void addEventProperties(GetItemMethod getItemMethod) {
+        getItemMethod.addAdditionalProperty(Field.get("reminderset"));
+        getItemMethod.addAdditionalProperty(Field.get("calendaruid"));
+        getItemMethod.addAdditionalProperty(Field.get("myresponsetype"));
+        getItemMethod.addAdditionalProperty(Field.get("requiredattendees"));
+        getItemMethod.addAdditionalProperty(Field.get("optionalattendees"));
+        getItemMethod.addAdditionalProperty(Field.get("modifiedoccurrences"));
+        getItemMethod.addAdditionalProperty(Field.get("xmozlastack"));
+        getItemMethod.addAdditionalProperty(Field.get("xmozsnoozetime"));
+        getItemMethod.addAdditionalProperty(Field.get("xmozsendinvitations"));
+    }
+
+    protected void fixAttendees(EWSMethod.Item responseItem, VObject vEvent) throws EWSException {
+        List<EWSMethod.Attendee> attendees = responseItem.getAttendees();
         if (attendees != null) {
             for (EWSMethod.Attendee attendee : attendees) {
                 VProperty attendeeProperty = new VProperty("ATTENDEE", "mailto:" + attendee.email);
                 attendeeProperty.addParam("CN", attendee.name);
-                String myResponseType = getItemMethod.getResponseItem().get(Field.get("myresponsetype").getResponseName());
+                String myResponseType = responseItem.get(Field.get("myresponsetype").getResponseName());
                 if (exchangeSession.getServerVersion().isExchange2007() && ewsExchangeSession.email.equalsIgnoreCase(attendee.email) && myResponseType != null) {
                     attendeeProperty.addParam("PARTSTAT", EWSMethod.responseTypeToPartstat(myResponseType));
                 } else {
@@ -50,6 +50,7 @@ import java.util.*;
 public class EwsExchangeSession extends ExchangeSession {
 
     protected static final int PAGE_SIZE = 100;
+    protected static final int SYNC_PAGE_SIZE = 512;
 
     protected static final String ARCHIVE_ROOT = "/archive/";
 
@@ -108,6 +109,17 @@ public class EwsExchangeSession extends ExchangeSession {
 
     protected Map<String, String> folderIdMap;
 
+    /**
+     * Folder path to folder id cache, cleared on folder hierarchy changes.
+     */
+    protected final Map<String, FolderId> folderIdCache = new HashMap<String, FolderId>();
+    protected volatile boolean folderIdCacheLoaded;
+
+    /**
+     * Folder change notifications, created on first IMAP IDLE.
+     */
+    protected volatile FolderNotifier folderNotifier;
+
     protected static class Folder extends davmail.exchange.entity.Folder {
         public FolderId folderId;
 
@@ -505,6 +517,129 @@ public class EwsExchangeSession extends ExchangeSession {
         return getContent(((EwsMessage) message).itemId);
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void writeContent(Message message, OutputStream outputStream) throws IOException {
+        writeContent(((EwsMessage) message).itemId, outputStream);
+    }
+
+    /**
+     * Download MimeContent of messages in a single GetItem request.
+     * Messages already available locally are skipped, missing items are
+     * loaded one by one later.
+     *
+     * @param messages message list
+     * @throws IOException on error
+     */
+    @Override
+    public void prefetchContent(List<Message> messages) throws IOException {
+        List<ItemId> itemIds = new ArrayList<ItemId>();
+        Map<String, Message> messagesById = new HashMap<String, Message>();
+        for (Message message : messages) {
+            if (!message.isContentAvailable()) {
+                ItemId itemId = ((EwsMessage) message).itemId;
+                itemIds.add(itemId);
+                messagesById.put(itemId.id, message);
+            }
+        }
+        // a single message is streamed by regular load
+        if (itemIds.size() > 1) {
+            GetItemMethod getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemIds, true);
+            try {
+                executeMethod(getItemMethod);
+            } catch (EWSException e) {
+                // some items failed, keep other responses
+                LOGGER.debug("Batch GetItem failed for some items: " + e.getMessage());
+            }
+            int count = 0;
+            if (getItemMethod.responseItems != null) {
+                for (EWSMethod.Item item : getItemMethod.responseItems) {
+                    Message message = messagesById.get(item.get("ItemId"));
+                    if (message != null && item.mimeContent != null) {
+                        message.setPrefetchedContent(item.mimeContent);
+                        count++;
+                    }
+                }
+            }
+            LOGGER.debug("Prefetched " + count + " of " + itemIds.size() + " messages");
+        }
+    }
+
+    /**
+     * Download message headers of messages in a single GetItem request,
+     * messages with content available locally are skipped.
+     *
+     * @param messages message list
+     * @throws IOException on error
+     */
+    @Override
+    public void prefetchHeaders(List<Message> messages) throws IOException {
+        List<ItemId> itemIds = new ArrayList<ItemId>();
+        Map<String, Message> messagesById = new HashMap<String, Message>();
+        for (Message message : messages) {
+            if (!message.hasPrefetchedHeaders() && !message.isContentAvailable()) {
+                ItemId itemId = ((EwsMessage) message).itemId;
+                itemIds.add(itemId);
+                messagesById.put(itemId.id, message);
+            }
+        }
+        if (itemIds.size() > 1) {
+            GetItemMethod getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemIds, false);
+            getItemMethod.addAdditionalProperty(Field.get("messageheaders"));
+            getItemMethod.addAdditionalProperty(Field.get("from"));
+            int count = 0;
+            for (EWSMethod.Item item : executeBatchGetItem(getItemMethod)) {
+                Message message = messagesById.get(item.get("ItemId"));
+                String messageHeaders = EwsMessage.getMessageHeaders(item);
+                if (message != null && messageHeaders != null) {
+                    message.setPrefetchedHeaders(messageHeaders.getBytes("UTF-8"));
+                    count++;
+                }
+            }
+            LOGGER.debug("Prefetched headers of " + count + " of " + itemIds.size() + " messages");
+        }
+    }
+
+    /**
+     * Download calendar item content in a single GetItem request with MimeContent,
+     * tasks, event messages and items with a cached body are loaded one by one.
+     *
+     * @param folderPath folder path
+     * @param items      item list
+     * @throws IOException on error
+     */
+    @Override
+    public void prefetchItemBodies(String folderPath, List<? extends Item> items) throws IOException {
+        ItemBodyCache itemBodyCache = getItemBodyCache();
+        List<ItemId> itemIds = new ArrayList<ItemId>();
+        Map<String, EwsEvent> eventsById = new HashMap<String, EwsEvent>();
+        for (Item item : items) {
+            if (item instanceof EwsEvent) {
+                EwsEvent event = (EwsEvent) item;
+                if (!"Task".equals(event.type) && !"Message".equals(event.type) && event.prefetchedResponse == null
+                        && itemBodyCache.get(folderPath, event.getName(), event.getEtag()) == null) {
+                    itemIds.add(event.itemId);
+                    eventsById.put(event.itemId.id, event);
+                }
+            }
+        }
+        if (itemIds.size() > 1) {
+            GetItemMethod getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemIds, true);
+            EwsEvent.addEventProperties(getItemMethod);
+            int count = 0;
+            for (EWSMethod.Item item : executeBatchGetItem(getItemMethod)) {
+                EwsEvent event = eventsById.get(item.get("ItemId"));
+                if (event != null && item.mimeContent != null) {
+                    event.prefetchedResponse = item;
+                    count++;
+                }
+            }
+            LOGGER.debug("Prefetched " + count + " of " + itemIds.size() + " event bodies");
+        }
+    }
+
     /**
      * Get item content.
      *
@@ -513,19 +648,38 @@ public class EwsExchangeSession extends ExchangeSession {
      * @throws IOException on error
      */
     protected byte[] getContent(ItemId itemId) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        writeContent(itemId, baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Write item content to output stream, MimeContent is decoded while parsing the GetItem response.
+     *
+     * @param itemId       EWS item id
+     * @param outputStream output stream
+     * @throws IOException on error
+     */
+    protected void writeContent(ItemId itemId, OutputStream outputStream) throws IOException {
         GetItemMethod getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemId, true);
-        byte[] mimeContent = null;
+        getItemMethod.setMimeContentOutputStream(outputStream);
+        boolean hasMimeContent = false;
         try {
             executeMethod(getItemMethod);
-            mimeContent = getItemMethod.getMimeContent();
+            hasMimeContent = getItemMethod.getMimeContentSize() >= 0;
         } catch (EWSException e) {
             LOGGER.warn("GetItem with MimeContent failed: " + e.getMessage());
+            if (getItemMethod.getMimeContentSize() > 0) {
+                // content partially written, can not rebuild message
+                throw new IOException("GetItem with MimeContent failed: " + e.getMessage());
+            }
         }
         if (getItemMethod.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
             throw new HttpNotFoundException("Item " + itemId + " not found");
         }
-        if (mimeContent == null) {
+        if (!hasMimeContent) {
             LOGGER.warn("MimeContent not available, trying to rebuild from properties");
+            byte[] mimeContent = null;
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemId, false);
@@ -571,8 +725,8 @@ public class EwsExchangeSession extends ExchangeSession {
             if (mimeContent == null) {
                 throw new IOException("GetItem returned null MimeContent");
             }
+            outputStream.write(mimeContent);
         }
-        return mimeContent;
     }
 
     protected EwsMessage buildMessage(EWSMethod.Item response) throws DavMailException {
@@ -635,6 +789,134 @@ public class EwsExchangeSession extends ExchangeSession {
         return messages;
     }
 
+    @Override
+    public MessageList syncMessages(FolderState folderState) throws IOException {
+        if (!Settings.getBooleanProperty("davmail.imapIncrementalSync", true)
+                // folder size limit needs a sorted listing
+                || Settings.getIntProperty("davmail.folderSizeLimit", 0) > 0) {
+            return null;
+        }
+        if (folderState.syncState != null) {
+            // messages built from current folder index, shared index is not modified
+            MessageList messages = folderState.getMessages();
+            if (messages != null) {
+                try {
+                    folderState.syncState = syncFolderItems(folderState.folderPath, messages, folderState.syncState);
+                    return messages;
+                } catch (EWSException e) {
+                    // sync state expired or invalid, start over
+                    LOGGER.warn("Incremental synchronization of " + folderState.folderPath + " failed, reloading messages: " + e.getMessage());
+                }
+            }
+        }
+        MessageList messages = new MessageList();
+        folderState.syncState = syncFolderItems(folderState.folderPath, messages, null);
+        return messages;
+    }
+
+    /**
+     * Apply folder item changes since sync state to message list, keep unchanged messages in place.
+     *
+     * @param folderPath folder path
+     * @param messages   current message list
+     * @param syncState  previous sync state, null to list all folder items
+     * @return new sync state
+     * @throws IOException on error
+     */
+    protected String syncFolderItems(String folderPath, MessageList messages, String syncState) throws IOException {
+        FolderId folderId = getFolderId(folderPath);
+        HashMap<String, EwsMessage> changedMessages = new HashMap<String, EwsMessage>();
+        HashSet<String> deletedItemIds = new HashSet<String>();
+        HashMap<String, Boolean> readFlagChanges = new HashMap<String, Boolean>();
+        String currentSyncState = syncState;
+        SyncFolderItemsMethod syncFolderItemsMethod;
+        do {
+            syncFolderItemsMethod = new SyncFolderItemsMethod(BaseShape.ID_ONLY, folderId, currentSyncState, SYNC_PAGE_SIZE);
+            for (String attribute : IMAP_MESSAGE_ATTRIBUTES) {
+                syncFolderItemsMethod.addAdditionalProperty(Field.get(attribute));
+            }
+            executeMethod(syncFolderItemsMethod);
+            // apply changes in response order, a later change always wins
+            for (SyncFolderItemsMethod.Change change : syncFolderItemsMethod.getChanges()) {
+                if (change.type == SyncFolderItemsMethod.ChangeType.DELETE) {
+                    changedMessages.remove(change.itemId);
+                    readFlagChanges.remove(change.itemId);
+                    deletedItemIds.add(change.itemId);
+                } else if (change.type == SyncFolderItemsMethod.ChangeType.READ_FLAG) {
+                    EwsMessage changedMessage = changedMessages.get(change.itemId);
+                    if (changedMessage != null) {
+                        changedMessage.read = change.read;
+                        changedMessage.recent = changedMessage.recent && !change.read;
+                    } else {
+                        readFlagChanges.put(change.itemId, change.read);
+                    }
+                } else if (MESSAGE_TYPES.contains(change.item.type)) {
+                    EwsMessage message = buildMessage(change.item);
+                    message.messageList = messages;
+                    changedMessages.put(message.getPermanentId(), message);
+                    deletedItemIds.remove(message.getPermanentId());
+                    // created or updated message has current read flag
+                    readFlagChanges.remove(message.getPermanentId());
+                }
+            }
+            currentSyncState = syncFolderItemsMethod.getSyncState();
+            if (Thread.interrupted()) {
+                LOGGER.debug("Sync folder items failed: Interrupted by client");
+                throw new IOException("Sync folder items failed: Interrupted by client");
+            }
+        } while (!syncFolderItemsMethod.includesLastItemInRange());
+
+        if (!changedMessages.isEmpty() || !deletedItemIds.isEmpty() || !readFlagChanges.isEmpty()) {
+            LOGGER.debug("Synchronized " + folderPath + ": " + changedMessages.size() + " created or updated, "
+                    + deletedItemIds.size() + " deleted, " + readFlagChanges.size() + " read flag changes");
+            // rebuild list in a single pass, unchanged messages keep their position
+            List<Message> currentMessages = new ArrayList<Message>(messages);
+            messages.clear();
+            for (Message message : currentMessages) {
+                String itemId = message.getPermanentId();
+                if (!deletedItemIds.contains(itemId)) {
+                    EwsMessage changedMessage = changedMessages.remove(itemId);
+                    if (changedMessage != null) {
+                        message = changedMessage;
+                    }
+                    Boolean read = readFlagChanges.get(itemId);
+                    if (read != null) {
+                        message.read = read;
+                        message.recent = message.recent && !read;
+                    }
+                    messages.add(message);
+                }
+            }
+            // remaining changes are new messages
+            if (!changedMessages.isEmpty()) {
+                messages.addAll(changedMessages.values());
+                Collections.sort(messages);
+            }
+        }
+        return currentSyncState;
+    }
+
+    @Override
+    public boolean addFolderListener(String folderPath, FolderListener listener) throws IOException {
+        if (!Settings.getBooleanProperty("davmail.imapIdleNotifications", true)) {
+            return false;
+        }
+        synchronized (this) {
+            if (folderNotifier == null) {
+                folderNotifier = new FolderNotifier(this);
+            }
+        }
+        folderNotifier.addListener(folderPath, listener);
+        return true;
+    }
+
+    @Override
+    public void removeFolderListener(String folderPath, FolderListener listener) {
+        if (folderNotifier != null) {
+            folderNotifier.removeListener(folderPath, listener);
+        }
+    }
+
     protected List<EWSMethod.Item> searchItems(String folderPath, Set<String> attributes, Condition condition, FolderQueryTraversal folderQueryTraversal, int maxCount) throws IOException {
         int offset = 0;
         List<EWSMethod.Item> results = new ArrayList<EWSMethod.Item>();
@@ -889,6 +1171,13 @@ public class EwsExchangeSession extends ExchangeSession {
         FOLDER_PROPERTIES.add(Field.get("highestUid"));
     }
 
+    protected static final HashSet<FieldURI> FOLDER_ID_PROPERTIES = new HashSet<FieldURI>();
+
+    static {
+        FOLDER_ID_PROPERTIES.add(Field.get("folderDisplayName"));
+        FOLDER_ID_PROPERTIES.add(Field.get("folderParentId"));
+    }
+
     protected Folder buildFolder(EWSMethod.Item item) {
         Folder folder = new Folder(this);
         folder.folderId = new FolderId(item);
@@ -920,6 +1209,12 @@ public class EwsExchangeSession extends ExchangeSession {
         }
         List<davmail.exchange.entity.Folder> folders = new ArrayList<davmail.exchange.entity.Folder>();
         appendSubFolders(folders, baseFolderPath, getFolderId(folderPath), condition, recursive);
+        if (!folderPath.startsWith(USERS_ROOT)) {
+            // listed folders are cached for later path resolution
+            for (davmail.exchange.entity.Folder folder : folders) {
+                cacheFolderId(null, folder.folderPath, ((Folder) folder).folderId);
+            }
+        }
         return folders;
     }
 
@@ -959,9 +1254,24 @@ public class EwsExchangeSession extends ExchangeSession {
     @Override
     protected EwsExchangeSession.Folder internalGetFolder(String folderPath) throws IOException {
         FolderId folderId = getFolderId(folderPath);
-        GetFolderMethod getFolderMethod = new GetFolderMethod(BaseShape.ID_ONLY, folderId, FOLDER_PROPERTIES);
-        executeMethod(getFolderMethod);
-        EWSMethod.Item item = getFolderMethod.getResponseItem();
+        EWSMethod.Item item;
+        EWSException folderException = null;
+        try {
+            item = getFolderItem(folderId);
+        } catch (EWSException e) {
+            item = null;
+            folderException = e;
+        }
+        if (item == null) {
+            // cached folder id may be obsolete after a change made by another client
+            clearFolderIdCache();
+            FolderId currentFolderId = getFolderId(folderPath);
+            if (!currentFolderId.value.equals(folderId.value)) {
+                item = getFolderItem(currentFolderId);
+            } else if (folderException != null) {
+                throw folderException;
+            }
+        }
         Folder folder;
         if (item != null) {
             folder = buildFolder(item);
@@ -972,6 +1282,12 @@ public class EwsExchangeSession extends ExchangeSession {
         return folder;
     }
 
+    protected EWSMethod.Item getFolderItem(FolderId folderId) throws IOException {
+        GetFolderMethod getFolderMethod = new GetFolderMethod(BaseShape.ID_ONLY, folderId, FOLDER_PROPERTIES);
+        executeMethod(getFolderMethod);
+        return getFolderMethod.getResponseItem();
+    }
+
     /**
      * @inheritDoc
      */
@@ -984,6 +1300,7 @@ public class EwsExchangeSession extends ExchangeSession {
         folder.put("DisplayName", path.folderName);
         // TODO: handle properties
         CreateFolderMethod createFolderMethod = new CreateFolderMethod(getFolderId(path.parentPath), folder);
+        clearFolderIdCache();
         executeMethod(createFolderMethod);
         return HttpStatus.SC_CREATED;
     }
@@ -1011,6 +1328,7 @@ public class EwsExchangeSession extends ExchangeSession {
         FolderId folderId = getFolderIdIfExists(folderPath);
         if (folderId != null) {
             DeleteFolderMethod deleteFolderMethod = new DeleteFolderMethod(folderId);
+            clearFolderIdCache();
             executeMethod(deleteFolderMethod);
         } else {
             LOGGER.debug("Folder " + folderPath + " not found");
@@ -1045,6 +1363,7 @@ public class EwsExchangeSession extends ExchangeSession {
         FolderId folderId = getFolderId(folderPath);
         FolderId toFolderId = getFolderId(targetPath.parentPath);
         toFolderId.changeKey = null;
+        clearFolderIdCache();
         // move folder
         if (!path.parentPath.equals(targetPath.parentPath)) {
             MoveFolderMethod moveFolderMethod = new MoveFolderMethod(folderId, toFolderId);
@@ -1235,6 +1554,118 @@ public class EwsExchangeSession extends ExchangeSession {
 
     }
 
+    /**
+     * Get items with a multiple ItemId GetItem request for item id names and a single FindItem request
+     * for other names, contact properties are retrieved with another multiple ItemId GetItem request.
+     * Items not found in folder fall back to getItem to look for items in the tasks folder.
+     */
+    @Override
+    public Map<String, Item> getItems(String folderPath, List<String> itemNames) throws IOException {
+        Map<String, Item> items = new HashMap<String, Item>();
+        Map<String, EWSMethod.Item> ewsItems = new HashMap<String, EWSMethod.Item>();
+        Map<String, String> itemNamesById = new HashMap<String, String>();
+        Map<String, String> itemNamesByUrlcompname = new HashMap<String, String>();
+        List<ItemId> itemIds = new ArrayList<ItemId>();
+        List<Condition> conditions = new ArrayList<Condition>();
+        for (String itemName : itemNames) {
+            String urlcompname = convertItemNameToEML(itemName);
+            if (isItemId(urlcompname)) {
+                ItemId itemId = new ItemId(StringUtil.urlToBase64(urlcompname.substring(0, urlcompname.indexOf('.'))));
+                itemIds.add(itemId);
+                itemNamesById.put(itemId.id, itemName);
+            } else {
+                conditions.add(isEqualTo("urlcompname", urlcompname));
+                itemNamesByUrlcompname.put(urlcompname, itemName);
+            }
+        }
+        if (!itemIds.isEmpty()) {
+            GetItemMethod getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemIds, false);
+            for (String attribute : EVENT_REQUEST_PROPERTIES) {
+                getItemMethod.addAdditionalProperty(Field.get(attribute));
+            }
+            for (EWSMethod.Item item : executeBatchGetItem(getItemMethod)) {
+                String itemName = itemNamesById.get(item.get("ItemId"));
+                if (itemName != null) {
+                    ewsItems.put(itemName, item);
+                }
+            }
+        }
+        if (!conditions.isEmpty()) {
+            List<EWSMethod.Item> responses = searchItems(folderPath, EVENT_REQUEST_PROPERTIES,
+                    or(conditions.toArray(new Condition[conditions.size()])), FolderQueryTraversal.SHALLOW, 0);
+            for (EWSMethod.Item item : responses) {
+                String itemName = itemNamesByUrlcompname.get(StringUtil.decodeUrlcompname(item.get(Field.get("urlcompname").getResponseName())));
+                if (itemName != null) {
+                    ewsItems.put(itemName, item);
+                }
+            }
+        }
+
+        // retrieve Contact properties
+        List<ItemId> contactIds = new ArrayList<ItemId>();
+        Map<String, String> contactNamesById = new HashMap<String, String>();
+        for (Map.Entry<String, EWSMethod.Item> entry : ewsItems.entrySet()) {
+            EWSMethod.Item item = entry.getValue();
+            String itemType = item.type;
+            if ("Contact".equals(itemType)) {
+                ItemId itemId = new ItemId(item);
+                contactIds.add(itemId);
+                contactNamesById.put(itemId.id, entry.getKey());
+            } else if ("CalendarItem".equals(itemType)
+                    || "MeetingRequest".equals(itemType)
+                    || "Task".equals(itemType)
+                    // VTODOs appear as Messages
+                    || "Message".equals(itemType)) {
+                items.put(entry.getKey(), new EwsEvent(this, item));
+            }
+        }
+        if (!contactIds.isEmpty()) {
+            GetItemMethod getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, contactIds, false);
+            for (String attribute : CONTACT_ATTRIBUTES) {
+                getItemMethod.addAdditionalProperty(Field.get(attribute));
+            }
+            for (EWSMethod.Item item : executeBatchGetItem(getItemMethod)) {
+                String itemName = contactNamesById.get(item.get("ItemId"));
+                if (itemName != null) {
+                    items.put(itemName, new EwsContact(this, item));
+                }
+            }
+        }
+
+        int foundCount = items.size();
+        for (String itemName : itemNames) {
+            if (!items.containsKey(itemName) && !ewsItems.containsKey(itemName)) {
+                try {
+                    items.put(itemName, getItem(folderPath, itemName));
+                } catch (HttpNotFoundException e) {
+                    LOGGER.debug(itemName + " not found in " + folderPath);
+                }
+            }
+        }
+        LOGGER.debug("Retrieved " + foundCount + " of " + itemNames.size() + " items in bulk requests from " + folderPath);
+        return items;
+    }
+
+    /**
+     * Execute a multiple ItemId GetItem request, keep responses of found items.
+     *
+     * @param getItemMethod GetItem method
+     * @return response items
+     * @throws IOException on error
+     */
+    protected List<EWSMethod.Item> executeBatchGetItem(GetItemMethod getItemMethod) throws IOException {
+        try {
+            executeMethod(getItemMethod);
+        } catch (EWSException e) {
+            // some items failed, keep other responses
+            LOGGER.debug("Batch GetItem failed for some items: " + e.getMessage());
+        }
+        if (getItemMethod.responseItems == null) {
+            return new ArrayList<EWSMethod.Item>();
+        }
+        return getItemMethod.responseItems;
+    }
+
     @Override
     public ContactPhoto getContactPhoto(Contact contact) throws IOException {
         ContactPhoto contactPhoto = null;
@@ -1266,6 +1697,7 @@ public class EwsExchangeSession extends ExchangeSession {
 
     @Override
     public void deleteItem(String folderPath, String itemName) throws IOException {
+        getItemBodyCache().remove(folderPath, itemName);
         EWSMethod.Item item = getEwsItem(folderPath, itemName);
         if (item == null && isMainCalendar(folderPath)) {
             // look for item in task folder
@@ -1460,57 +1892,171 @@ public class EwsExchangeSession extends ExchangeSession {
     }
 
     protected FolderId getSubFolderIdIfExists(String mailbox, String folderPath) throws IOException {
-        String[] folderNames;
         FolderId currentFolderId;
+        int rootLength;
 
         if (folderPath.startsWith(PUBLIC_ROOT)) {
             currentFolderId = DistinguishedFolderId.getInstance(mailbox, DistinguishedFolderId.Name.publicfoldersroot);
-            folderNames = folderPath.substring(PUBLIC_ROOT.length()).split("/");
+            rootLength = PUBLIC_ROOT.length();
         } else if (folderPath.startsWith(ARCHIVE_ROOT)) {
             currentFolderId = DistinguishedFolderId.getInstance(mailbox, DistinguishedFolderId.Name.archivemsgfolderroot);
-            folderNames = folderPath.substring(ARCHIVE_ROOT.length()).split("/");
+            rootLength = ARCHIVE_ROOT.length();
         } else if (folderPath.startsWith(INBOX) || folderPath.startsWith(LOWER_CASE_INBOX)) {
             currentFolderId = DistinguishedFolderId.getInstance(mailbox, DistinguishedFolderId.Name.inbox);
-            folderNames = folderPath.substring(INBOX.length()).split("/");
+            rootLength = INBOX.length();
         } else if (folderPath.startsWith(CALENDAR)) {
             currentFolderId = DistinguishedFolderId.getInstance(mailbox, DistinguishedFolderId.Name.calendar);
-            folderNames = folderPath.substring(CALENDAR.length()).split("/");
+            rootLength = CALENDAR.length();
         } else if (folderPath.startsWith(TASKS)) {
             currentFolderId = DistinguishedFolderId.getInstance(mailbox, DistinguishedFolderId.Name.tasks);
-            folderNames = folderPath.substring(TASKS.length()).split("/");
+            rootLength = TASKS.length();
         } else if (folderPath.startsWith(CONTACTS)) {
             currentFolderId = DistinguishedFolderId.getInstance(mailbox, DistinguishedFolderId.Name.contacts);
-            folderNames = folderPath.substring(CONTACTS.length()).split("/");
+            rootLength = CONTACTS.length();
         } else if (folderPath.startsWith(SENT)) {
             currentFolderId = DistinguishedFolderId.getInstance(mailbox, DistinguishedFolderId.Name.sentitems);
-            folderNames = folderPath.substring(SENT.length()).split("/");
+            rootLength = SENT.length();
         } else if (folderPath.startsWith(DRAFTS)) {
             currentFolderId = DistinguishedFolderId.getInstance(mailbox, DistinguishedFolderId.Name.drafts);
-            folderNames = folderPath.substring(DRAFTS.length()).split("/");
+            rootLength = DRAFTS.length();
         } else if (folderPath.startsWith(TRASH)) {
             currentFolderId = DistinguishedFolderId.getInstance(mailbox, DistinguishedFolderId.Name.deleteditems);
-            folderNames = folderPath.substring(TRASH.length()).split("/");
+            rootLength = TRASH.length();
         } else if (folderPath.startsWith(JUNK)) {
             currentFolderId = DistinguishedFolderId.getInstance(mailbox, DistinguishedFolderId.Name.junkemail);
-            folderNames = folderPath.substring(JUNK.length()).split("/");
+            rootLength = JUNK.length();
         } else if (folderPath.startsWith(UNSENT)) {
             currentFolderId = DistinguishedFolderId.getInstance(mailbox, DistinguishedFolderId.Name.outbox);
-            folderNames = folderPath.substring(UNSENT.length()).split("/");
+            rootLength = UNSENT.length();
         } else {
             currentFolderId = DistinguishedFolderId.getInstance(mailbox, DistinguishedFolderId.Name.msgfolderroot);
-            folderNames = folderPath.split("/");
+            rootLength = 0;
+        }
+        String[] folderNames = folderPath.substring(rootLength).split("/");
+        // warm cache with a single deep traversal instead of one request per uncached path level
+        if (mailbox == null && rootLength < folderPath.length() && !folderPath.startsWith(PUBLIC_ROOT) && !folderPath.startsWith(ARCHIVE_ROOT)
+                && !folderIdCacheLoaded && getCachedFolderId(null, folderPath) == null) {
+            try {
+                loadFolderIdCache();
+            } catch (IOException e) {
+                // some servers reject deep traversal, do not retry until next hierarchy change
+                LOGGER.warn("Unable to load folder ids, using per level folder lookup: " + e.getMessage());
+                folderIdCacheLoaded = true;
+            }
         }
+        StringBuilder currentPath = new StringBuilder(folderPath.substring(0, rootLength));
         for (String folderName : folderNames) {
             if (folderName.length() > 0) {
-                currentFolderId = getSubFolderByName(currentFolderId, folderName);
-                if (currentFolderId == null) {
-                    break;
+                if (currentPath.length() > 0 && currentPath.charAt(currentPath.length() - 1) != '/') {
+                    currentPath.append('/');
+                }
+                currentPath.append(folderName);
+                FolderId cachedFolderId = getCachedFolderId(mailbox, currentPath.toString());
+                if (cachedFolderId != null) {
+                    currentFolderId = cachedFolderId;
+                } else {
+                    currentFolderId = getSubFolderByName(currentFolderId, folderName);
+                    if (currentFolderId == null) {
+                        break;
+                    }
+                    currentFolderId = cacheFolderId(mailbox, currentPath.toString(), currentFolderId);
                 }
             }
         }
         return currentFolderId;
     }
 
+    protected String getFolderIdCacheKey(String mailbox, String folderPath) {
+        if (mailbox == null) {
+            return folderPath;
+        } else {
+            return USERS_ROOT + mailbox.toLowerCase() + ':' + folderPath;
+        }
+    }
+
+    /**
+     * Get folder id from path to folder id cache.
+     *
+     * @param mailbox    mailbox name, null for current mailbox
+     * @param folderPath folder path relative to mailbox
+     * @return cached folder id or null
+     */
+    protected FolderId getCachedFolderId(String mailbox, String folderPath) {
+        synchronized (folderIdCache) {
+            return folderIdCache.get(getFolderIdCacheKey(mailbox, folderPath));
+        }
+    }
+
+    /**
+     * Store folder id in path to folder id cache, without change key as it changes with folder content.
+     *
+     * @param mailbox    mailbox name, null for current mailbox
+     * @param folderPath folder path relative to mailbox
+     * @param folderId   folder id
+     * @return cached folder id
+     */
+    protected FolderId cacheFolderId(String mailbox, String folderPath, FolderId folderId) {
+        FolderId cachedFolderId = new FolderId(folderId.name, folderId.value, null, folderId.mailbox);
+        synchronized (folderIdCache) {
+            folderIdCache.put(getFolderIdCacheKey(mailbox, folderPath), cachedFolderId);
+        }
+        return cachedFolderId;
+    }
+
+    /**
+     * Clear path to folder id cache after a folder hierarchy change.
+     */
+    protected void clearFolderIdCache() {
+        synchronized (folderIdCache) {
+            folderIdCache.clear();
+            folderIdCacheLoaded = false;
+        }
+    }
+
+    /**
+     * Load all current mailbox folder ids in path to folder id cache with a single deep FindFolder request.
+     *
+     * @throws IOException on error
+     */
+    protected void loadFolderIdCache() throws IOException {
+        FindFolderMethod findFolderMethod = new FindFolderMethod(FolderQueryTraversal.DEEP, BaseShape.ID_ONLY,
+                DistinguishedFolderId.getInstance(null, DistinguishedFolderId.Name.msgfolderroot), FOLDER_ID_PROPERTIES);
+        executeMethod(findFolderMethod);
+        HashMap<String, EWSMethod.Item> itemsById = new HashMap<String, EWSMethod.Item>();
+        for (EWSMethod.Item item : findFolderMethod.getResponseItems()) {
+            itemsById.put(item.get("FolderId"), item);
+        }
+        HashMap<String, String> pathsById = new HashMap<String, String>();
+        for (String id : itemsById.keySet()) {
+            String folderPath = getFolderPath(id, itemsById, pathsById);
+            cacheFolderId(null, folderPath, new FolderId("t:FolderId", id, null));
+        }
+        synchronized (folderIdCache) {
+            folderIdCacheLoaded = true;
+        }
+        LOGGER.debug("Loaded " + itemsById.size() + " folder ids");
+    }
+
+    protected String getFolderPath(String id, Map<String, EWSMethod.Item> itemsById, Map<String, String> pathsById) {
+        String folderPath = pathsById.get(id);
+        if (folderPath == null) {
+            folderPath = folderIdMap.get(id);
+            if (folderPath == null) {
+                EWSMethod.Item item = itemsById.get(id);
+                String displayName = item.get(Field.get("folderDisplayName").getResponseName());
+                String parentId = item.get(Field.get("folderParentId").getResponseName());
+                if (parentId == null || !itemsById.containsKey(parentId)) {
+                    // direct child of message folder root
+                    folderPath = displayName;
+                } else {
+                    folderPath = getFolderPath(parentId, itemsById, pathsById) + '/' + displayName;
+                }
+            }
+            pathsById.put(id, folderPath);
+        }
+        return folderPath;
+    }
+
     protected FolderId getSubFolderByName(FolderId parentFolderId, String folderName) throws IOException {
         FolderId folderId = null;
         FindFolderMethod findFolderMethod = new FindFolderMethod(
@@ -1532,11 +2078,18 @@ public class EwsExchangeSession extends ExchangeSession {
     protected void executeMethod(EWSMethod ewsMethod) throws IOException {
         try {
             ewsMethod.setServerVersion(serverVersion);
-            httpClient.executeMethod(ewsMethod);
+            int status = httpClient.executeMethod(ewsMethod);
+            if (status == HttpStatus.SC_UNAUTHORIZED || status == 440) {
+                // authentication lost, force session check on next request
+                invalidate();
+            }
             if (serverVersion == null) {
                 serverVersion = ewsMethod.getServerVersion();
             }
             ewsMethod.checkSuccess();
+            if (status == HttpStatus.SC_OK) {
+                setValidated();
+            }
         } finally {
             ewsMethod.releaseConnection();
         }
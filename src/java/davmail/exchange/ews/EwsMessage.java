@@ -24,6 +24,16 @@ class EwsMessage extends davmail.exchange.entity.Message {
         return itemId.id;
     }
 
+    @Override
+    public String getChangeKey() {
+        return itemId.changeKey;
+    }
+
+    @Override
+    protected void setIds(String permanentId, String changeKey) {
+        itemId = new ItemId("ItemId", permanentId, changeKey);
+    }
+
     @Override
     protected InputStream getMimeHeaders() {
         InputStream result = null;
@@ -34,16 +44,8 @@ class EwsMessage extends davmail.exchange.entity.Message {
             ewsExchangeSession.executeMethod(getItemMethod);
             EWSMethod.Item item = getItemMethod.getResponseItem();
 
-            String messageHeaders = item.get(Field.get("messageheaders").getResponseName());
-            if (messageHeaders != null
-                    // workaround for broken message headers on Exchange 2010
-                    && messageHeaders.toLowerCase().contains("message-id:")) {
-                // workaround for messages in Sent folder
-                if (messageHeaders.indexOf("From:") < 0) {
-                    String from = item.get(Field.get("from").getResponseName());
-                    messageHeaders = "From: " + from + "\n" + messageHeaders;
-                }
-
+            String messageHeaders = getMessageHeaders(item);
+            if (messageHeaders != null) {
                 result = new ByteArrayInputStream(messageHeaders.getBytes("UTF-8"));
             }
         } catch (Exception e) {
@@ -52,4 +54,25 @@ class EwsMessage extends davmail.exchange.entity.Message {
 
         return result;
     }
+
+    /**
+     * Get message headers from a GetItem response item with messageheaders and from properties.
+     *
+     * @param item response item
+     * @return message headers or null if headers are not available
+     */
+    static String getMessageHeaders(EWSMethod.Item item) {
+        String messageHeaders = item.get(Field.get("messageheaders").getResponseName());
+        if (messageHeaders != null
+                // workaround for broken message headers on Exchange 2010
+                && messageHeaders.toLowerCase().contains("message-id:")) {
+            // workaround for messages in Sent folder
+            if (messageHeaders.indexOf("From:") < 0) {
+                String from = item.get(Field.get("from").getResponseName());
+                messageHeaders = "From: " + from + "\n" + messageHeaders;
+            }
+            return messageHeaders;
+        }
+        return null;
+    }
 }
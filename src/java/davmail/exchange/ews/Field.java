@@ -45,6 +45,7 @@ public final class Field {
 
         FIELD_MAP.put("hassubs", new ExtendedFieldURI(0x360a, ExtendedFieldURI.PropertyType.Boolean)); // PR_SUBFOLDERS
         FIELD_MAP.put("folderDisplayName", new UnindexedFieldURI("folder:DisplayName"));
+        FIELD_MAP.put("folderParentId", new UnindexedFieldURI("folder:ParentFolderId"));
 
         FIELD_MAP.put("uidNext", new ExtendedFieldURI(0x6751, ExtendedFieldURI.PropertyType.Integer)); // PR_ARTICLE_NUM_NEXT
         FIELD_MAP.put("highestUid", new ExtendedFieldURI(0x6752, ExtendedFieldURI.PropertyType.Integer)); // PR_IMAP_LAST_ARTICLE_ID
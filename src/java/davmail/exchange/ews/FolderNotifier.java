@@ -0,0 +1,236 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2010  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange.ews;
+
+import davmail.Settings;
+import davmail.exchange.FolderListener;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Folder change notifications over EWS pull subscriptions.
+ * One subscription per folder is shared by all listeners of a session,
+ * a single thread polls subscriptions every davmail.imapIdleNotificationDelay seconds
+ * and notifies listeners of changed folders.
+ */
+public class FolderNotifier implements Runnable {
+    protected static final Logger LOGGER = Logger.getLogger(FolderNotifier.class);
+
+    /**
+     * Subscription timeout in minutes, Exchange drops subscriptions not polled within this delay.
+     */
+    protected static final int SUBSCRIPTION_TIMEOUT = 10;
+    /**
+     * Keep subscriptions without listeners during this delay, IDLE clients issue a new IDLE after each command.
+     */
+    protected static final long RELEASE_DELAY = 5 * 60 * 1000L;
+
+    protected static class Subscription {
+        protected final String folderPath;
+        protected String subscriptionId;
+        protected String watermark;
+        protected final Set<FolderListener> listeners = new HashSet<FolderListener>();
+        protected long lastUsed;
+
+        protected Subscription(String folderPath) {
+            this.folderPath = folderPath;
+        }
+    }
+
+    protected final EwsExchangeSession session;
+    protected final long pollDelay;
+    protected final HashMap<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+    protected Thread notifierThread;
+
+    /**
+     * Create folder notifier for session.
+     *
+     * @param session EWS session
+     */
+    public FolderNotifier(EwsExchangeSession session) {
+        this.session = session;
+        this.pollDelay = Math.max(1, Settings.getIntProperty("davmail.imapIdleNotificationDelay", 5)) * 1000L;
+    }
+
+    /**
+     * Register folder listener, subscribe to folder on first listener.
+     *
+     * @param folderPath folder path
+     * @param listener   folder listener
+     * @throws IOException on error
+     */
+    public synchronized void addListener(String folderPath, FolderListener listener) throws IOException {
+        Subscription subscription = subscriptions.get(folderPath);
+        if (subscription == null) {
+            subscription = new Subscription(folderPath);
+            subscribe(subscription);
+            subscriptions.put(folderPath, subscription);
+        }
+        subscription.listeners.add(listener);
+        if (notifierThread == null) {
+            notifierThread = new Thread(this, "FolderNotifier");
+            notifierThread.setDaemon(true);
+            notifierThread.start();
+        }
+    }
+
+    /**
+     * Unregister folder listener, subscription is released later if unused.
+     *
+     * @param folderPath folder path
+     * @param listener   folder listener
+     */
+    public synchronized void removeListener(String folderPath, FolderListener listener) {
+        Subscription subscription = subscriptions.get(folderPath);
+        if (subscription != null && subscription.listeners.remove(listener) && subscription.listeners.isEmpty()) {
+            subscription.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(pollDelay);
+                if (!pollSubscriptions()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.debug("Folder notifier interrupted");
+        }
+    }
+
+    /**
+     * Poll all subscriptions once, release unused subscriptions.
+     *
+     * @return false when no subscription is left and notifier thread exited
+     */
+    protected boolean pollSubscriptions() {
+        List<Subscription> currentSubscriptions;
+        List<Subscription> releasedSubscriptions = new ArrayList<Subscription>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Subscription> iterator = subscriptions.values().iterator();
+            while (iterator.hasNext()) {
+                Subscription subscription = iterator.next();
+                if (subscription.listeners.isEmpty() && now - subscription.lastUsed > RELEASE_DELAY) {
+                    iterator.remove();
+                    releasedSubscriptions.add(subscription);
+                }
+            }
+            currentSubscriptions = new ArrayList<Subscription>(subscriptions.values());
+            if (currentSubscriptions.isEmpty()) {
+                notifierThread = null;
+            }
+        }
+        for (Subscription subscription : releasedSubscriptions) {
+            unsubscribe(subscription);
+        }
+        for (Subscription subscription : currentSubscriptions) {
+            if (poll(subscription)) {
+                notifyListeners(subscription);
+            }
+        }
+        return !currentSubscriptions.isEmpty();
+    }
+
+    /**
+     * Get subscription events.
+     *
+     * @param subscription folder subscription
+     * @return true if folder changed or changes may have been missed
+     */
+    protected boolean poll(Subscription subscription) {
+        boolean changed = false;
+        try {
+            if (subscription.subscriptionId == null) {
+                // previous subscription lost
+                subscribe(subscription);
+                return true;
+            }
+            GetEventsMethod getEventsMethod;
+            do {
+                getEventsMethod = new GetEventsMethod(subscription.subscriptionId, subscription.watermark);
+                executeMethod(getEventsMethod);
+                if (getEventsMethod.getWatermark() != null) {
+                    subscription.watermark = getEventsMethod.getWatermark();
+                }
+                changed = changed || getEventsMethod.getEventCount() > 0;
+            } while (getEventsMethod.hasMoreEvents());
+        } catch (IOException e) {
+            // expired subscription or invalid watermark, notify listeners once and subscribe again on next poll
+            if (subscription.subscriptionId != null) {
+                LOGGER.debug("Lost notification subscription on " + subscription.folderPath + ": " + e.getMessage());
+                subscription.subscriptionId = null;
+                changed = true;
+            } else {
+                LOGGER.debug("Unable to subscribe to " + subscription.folderPath + ": " + e.getMessage());
+            }
+        }
+        return changed;
+    }
+
+    protected void notifyListeners(Subscription subscription) {
+        List<FolderListener> listeners;
+        synchronized (this) {
+            listeners = new ArrayList<FolderListener>(subscription.listeners);
+        }
+        LOGGER.debug("Folder " + subscription.folderPath + " changed, notify " + listeners.size() + " listeners");
+        for (FolderListener listener : listeners) {
+            listener.folderChanged(subscription.folderPath);
+        }
+    }
+
+    protected void subscribe(Subscription subscription) throws IOException {
+        SubscribeMethod subscribeMethod = new SubscribeMethod(getFolderId(subscription.folderPath), SUBSCRIPTION_TIMEOUT);
+        executeMethod(subscribeMethod);
+        if (subscribeMethod.getSubscriptionId() == null) {
+            throw new EWSException("Subscribe returned no subscription id");
+        }
+        subscription.watermark = subscribeMethod.getWatermark();
+        subscription.subscriptionId = subscribeMethod.getSubscriptionId();
+        LOGGER.debug("Subscribed to " + subscription.folderPath + " changes");
+    }
+
+    protected void unsubscribe(Subscription subscription) {
+        if (subscription.subscriptionId != null) {
+            try {
+                executeMethod(new UnsubscribeMethod(subscription.subscriptionId));
+                LOGGER.debug("Unsubscribed from " + subscription.folderPath + " changes");
+            } catch (IOException e) {
+                LOGGER.debug("Unable to unsubscribe from " + subscription.folderPath + ": " + e.getMessage());
+            }
+        }
+    }
+
+    protected FolderId getFolderId(String folderPath) throws IOException {
+        return session.getFolderId(folderPath);
+    }
+
+    protected void executeMethod(EWSMethod ewsMethod) throws IOException {
+        session.executeMethod(ewsMethod);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2010  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange.ews;
+
+import davmail.exchange.XMLStreamUtil;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Get Events method, poll a pull notification subscription.
+ */
+public class GetEventsMethod extends EWSMethod {
+    protected final String subscriptionId;
+    protected final String watermark;
+    protected String lastWatermark;
+    protected boolean moreEvents;
+    protected int eventCount;
+
+    /**
+     * Get events since watermark.
+     *
+     * @param subscriptionId subscription id
+     * @param watermark      last watermark
+     */
+    public GetEventsMethod(String subscriptionId, String watermark) {
+        super("Notification", "GetEvents");
+        this.subscriptionId = subscriptionId;
+        this.watermark = watermark;
+    }
+
+    @Override
+    protected void writeSoapBody(Writer writer) throws IOException {
+        writer.write("<m:SubscriptionId>");
+        writer.write(subscriptionId);
+        writer.write("</m:SubscriptionId>");
+        writer.write("<m:Watermark>");
+        writer.write(watermark);
+        writer.write("</m:Watermark>");
+    }
+
+    @Override
+    protected void handleCustom(XMLStreamReader reader) throws XMLStreamException {
+        if (XMLStreamUtil.isStartTag(reader, "MoreEvents")) {
+            moreEvents = "true".equals(XMLStreamUtil.getElementText(reader));
+        } else if (XMLStreamUtil.isStartTag(reader, "Watermark")) {
+            lastWatermark = XMLStreamUtil.getElementText(reader);
+        } else if (XMLStreamUtil.isStartTag(reader) && reader.getLocalName().endsWith("Event")
+                && !"StatusEvent".equals(reader.getLocalName())) {
+            eventCount++;
+        }
+    }
+
+    /**
+     * Watermark of the last returned event, null if no event was returned.
+     *
+     * @return watermark
+     */
+    public String getWatermark() {
+        return lastWatermark;
+    }
+
+    /**
+     * True if more events are available on subscription.
+     *
+     * @return true if more events are available
+     */
+    public boolean hasMoreEvents() {
+        return moreEvents;
+    }
+
+    /**
+     * Number of folder content events, status (keep alive) events excluded.
+     *
+     * @return event count
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+}
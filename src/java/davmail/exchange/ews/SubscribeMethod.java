@@ -0,0 +1,97 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2010  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange.ews;
+
+import davmail.exchange.XMLStreamUtil;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Subscribe method, create a pull notification subscription on a folder.
+ */
+public class SubscribeMethod extends EWSMethod {
+    protected static final String[] EVENT_TYPES = {
+            "NewMailEvent", "CreatedEvent", "DeletedEvent", "ModifiedEvent", "MovedEvent", "CopiedEvent"
+    };
+
+    protected final int timeout;
+    protected String subscriptionId;
+    protected String watermark;
+
+    /**
+     * Pull subscription on folder item events.
+     *
+     * @param folderId folder id
+     * @param timeout  subscription timeout in minutes if not polled
+     */
+    public SubscribeMethod(FolderId folderId, int timeout) {
+        super("Subscription", "Subscribe");
+        this.folderId = folderId;
+        this.timeout = timeout;
+    }
+
+    @Override
+    protected void writeSoapBody(Writer writer) throws IOException {
+        writer.write("<m:PullSubscriptionRequest>");
+        writer.write("<t:FolderIds>");
+        folderId.write(writer);
+        writer.write("</t:FolderIds>");
+        writer.write("<t:EventTypes>");
+        for (String eventType : EVENT_TYPES) {
+            writer.write("<t:EventType>");
+            writer.write(eventType);
+            writer.write("</t:EventType>");
+        }
+        writer.write("</t:EventTypes>");
+        writer.write("<t:Timeout>");
+        writer.write(String.valueOf(timeout));
+        writer.write("</t:Timeout>");
+        writer.write("</m:PullSubscriptionRequest>");
+    }
+
+    @Override
+    protected void handleCustom(XMLStreamReader reader) throws XMLStreamException {
+        if (XMLStreamUtil.isStartTag(reader, "SubscriptionId")) {
+            subscriptionId = XMLStreamUtil.getElementText(reader);
+        } else if (XMLStreamUtil.isStartTag(reader, "Watermark")) {
+            watermark = XMLStreamUtil.getElementText(reader);
+        }
+    }
+
+    /**
+     * Subscription id.
+     *
+     * @return subscription id
+     */
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    /**
+     * Initial watermark.
+     *
+     * @return watermark
+     */
+    public String getWatermark() {
+        return watermark;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2010  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange.ews;
+
+import davmail.exchange.XMLStreamUtil;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sync Folder Items method, get folder item changes since previous sync state.
+ * Created and updated items are returned as response items, all changes are also available in response order.
+ */
+public class SyncFolderItemsMethod extends EWSMethod {
+    /**
+     * Folder item change type.
+     */
+    public static enum ChangeType {
+        CREATE, UPDATE, DELETE, READ_FLAG
+    }
+
+    /**
+     * Folder item change.
+     */
+    public static class Change {
+        /**
+         * Change type.
+         */
+        public final ChangeType type;
+        /**
+         * Changed item id.
+         */
+        public final String itemId;
+        /**
+         * Created or updated item, null for other changes.
+         */
+        public final Item item;
+        /**
+         * New read flag of a read flag change.
+         */
+        public final boolean read;
+
+        protected Change(ChangeType type, String itemId, Item item, boolean read) {
+            this.type = type;
+            this.itemId = itemId;
+            this.item = item;
+            this.read = read;
+        }
+    }
+
+    protected final String syncState;
+    protected String newSyncState;
+    protected final List<Change> changes = new ArrayList<Change>();
+    protected final List<String> deletedItemIds = new ArrayList<String>();
+    protected final Map<String, Boolean> readFlagChanges = new HashMap<String, Boolean>();
+
+    /**
+     * Sync folder items method.
+     *
+     * @param baseShape base item shape
+     * @param folderId  folder id
+     * @param syncState previous sync state, null for initial synchronization
+     * @param maxCount  maximum change count
+     */
+    public SyncFolderItemsMethod(BaseShape baseShape, FolderId folderId, String syncState, int maxCount) {
+        super("Item", "SyncFolderItems");
+        this.baseShape = baseShape;
+        this.folderId = folderId;
+        this.syncState = syncState;
+        this.maxCount = maxCount;
+    }
+
+    @Override
+    protected void writeSoapBody(Writer writer) throws IOException {
+        writeShape(writer);
+        writer.write("<m:SyncFolderId>");
+        folderId.write(writer);
+        writer.write("</m:SyncFolderId>");
+        if (syncState != null) {
+            writer.write("<m:SyncState>");
+            writer.write(syncState);
+            writer.write("</m:SyncState>");
+        }
+        writer.write("<m:MaxChangesReturned>");
+        writer.write(String.valueOf(maxCount));
+        writer.write("</m:MaxChangesReturned>");
+    }
+
+    @Override
+    protected void handleCustom(XMLStreamReader reader) throws XMLStreamException {
+        if (XMLStreamUtil.isStartTag(reader, "SyncState")) {
+            newSyncState = XMLStreamUtil.getElementText(reader);
+        } else if (XMLStreamUtil.isStartTag(reader, "IncludesLastItemInRange")) {
+            includesLastItemInRange = "true".equals(XMLStreamUtil.getElementText(reader));
+        } else if (XMLStreamUtil.isStartTag(reader, "Create")) {
+            handleItemChange(reader, "Create", ChangeType.CREATE);
+        } else if (XMLStreamUtil.isStartTag(reader, "Update")) {
+            handleItemChange(reader, "Update", ChangeType.UPDATE);
+        } else if (XMLStreamUtil.isStartTag(reader, "Delete")) {
+            handleDelete(reader);
+        } else if (XMLStreamUtil.isStartTag(reader, "ReadFlagChange")) {
+            handleReadFlagChange(reader);
+        }
+    }
+
+    protected void handleItemChange(XMLStreamReader reader, String tagName, ChangeType changeType) throws XMLStreamException {
+        while (reader.hasNext() && !XMLStreamUtil.isEndTag(reader, tagName)) {
+            reader.next();
+            if (XMLStreamUtil.isStartTag(reader)) {
+                Item item = handleItem(reader);
+                responseItems.add(item);
+                changes.add(new Change(changeType, item.get("ItemId"), item, false));
+            }
+        }
+    }
+
+    protected void handleDelete(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext() && !XMLStreamUtil.isEndTag(reader, "Delete")) {
+            reader.next();
+            if (XMLStreamUtil.isStartTag(reader, "ItemId")) {
+                String id = getAttributeValue(reader, "Id");
+                deletedItemIds.add(id);
+                changes.add(new Change(ChangeType.DELETE, id, null, false));
+            }
+        }
+    }
+
+    protected void handleReadFlagChange(XMLStreamReader reader) throws XMLStreamException {
+        String id = null;
+        String isRead = null;
+        while (reader.hasNext() && !XMLStreamUtil.isEndTag(reader, "ReadFlagChange")) {
+            reader.next();
+            if (XMLStreamUtil.isStartTag(reader, "ItemId")) {
+                id = getAttributeValue(reader, "Id");
+            } else if (XMLStreamUtil.isStartTag(reader, "IsRead")) {
+                isRead = XMLStreamUtil.getElementText(reader);
+            }
+        }
+        if (id != null && isRead != null) {
+            readFlagChanges.put(id, "true".equals(isRead));
+            changes.add(new Change(ChangeType.READ_FLAG, id, null, "true".equals(isRead)));
+        }
+    }
+
+    /**
+     * Sync state to send on next synchronization.
+     *
+     * @return new sync state
+     */
+    public String getSyncState() {
+        return newSyncState;
+    }
+
+    /**
+     * True if all changes were returned.
+     *
+     * @return false if more changes are available
+     */
+    public boolean includesLastItemInRange() {
+        return includesLastItemInRange;
+    }
+
+    /**
+     * All item changes in response order.
+     *
+     * @return change list
+     */
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Deleted item ids.
+     *
+     * @return deleted item id list
+     */
+    public List<String> getDeletedItemIds() {
+        return deletedItemIds;
+    }
+
+    /**
+     * Read flag changes by item id.
+     *
+     * @return read flag map
+     */
+    public Map<String, Boolean> getReadFlagChanges() {
+        return readFlagChanges;
+    }
+}
@@ -32,9 +32,12 @@ import davmail.exchange.*;
 import davmail.exchange.condition.Condition;
 import davmail.exchange.condition.MultiCondition;
 import davmail.exchange.entity.Folder;
+import davmail.exchange.entity.FolderIndex;
+import davmail.exchange.entity.FolderStatus;
 import davmail.exchange.entity.Message;
 import davmail.io.PartOutputStream;
 import davmail.io.PartialOutputStream;
+import davmail.io.SpoolOutputStream;
 import davmail.ui.tray.DavGatewayTray;
 import davmail.util.IOUtil;
 import davmail.util.StringUtil;
@@ -51,6 +54,11 @@ import java.net.SocketTimeoutException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * Dav Gateway IMAP connection implementation.
@@ -63,6 +71,28 @@ public class ImapConnection extends AbstractConnection {
 
     protected String baseMailboxPath;
     protected Folder currentFolder;
+    // pending IDLE command in connection engine mode
+    protected volatile String idleCommandId;
+    // command line read ahead while collecting a pipeline, handled on next loop
+    protected String pendingLine;
+    // response buffer of a pipelined command running on a session worker thread
+    protected final ThreadLocal<ByteArrayOutputStream> pipelineBuffer = new ThreadLocal<ByteArrayOutputStream>();
+    // CONDSTORE: send MODSEQ with flags, QRESYNC: send VANISHED instead of EXPUNGE
+    protected boolean condstoreEnabled;
+    protected boolean qresyncEnabled;
+    // folder change notifications during IDLE
+    protected volatile boolean folderChanged;
+    protected ExchangeSession notificationSession;
+    protected String notificationFolderPath;
+    protected final FolderListener folderListener = new FolderListener() {
+        public void folderChanged(String folderPath) {
+            folderChanged = true;
+            // late notifications after DONE must not resume the command loop
+            if (engine != null && idleCommandId != null) {
+                engine.wakeup(ImapConnection.this);
+            }
+        }
+    };
 
     /**
      * Initialize the streams and start the thread.
@@ -74,9 +104,9 @@ public class ImapConnection extends AbstractConnection {
 
         imapIdleDelay = Settings.getIntProperty("davmail.imapIdleDelay") * 60;
         if (imapIdleDelay > 0) {
-            capabilities = "CAPABILITY IMAP4REV1 AUTH=LOGIN IDLE MOVE";
+            capabilities = "CAPABILITY IMAP4REV1 AUTH=LOGIN IDLE MOVE ENABLE CONDSTORE QRESYNC";
         } else {
-            capabilities = "CAPABILITY IMAP4REV1 AUTH=LOGIN MOVE";
+            capabilities = "CAPABILITY IMAP4REV1 AUTH=LOGIN MOVE ENABLE CONDSTORE QRESYNC";
         }
     }
 
@@ -85,11 +115,30 @@ public class ImapConnection extends AbstractConnection {
         String line;
         String commandId = null;
         IMAPTokenizer tokens;
+        boolean parked = false;
         try {
-            sessionFactory.checkConfig();
-            sendClient("* OK [" + capabilities + "] IMAP4rev1 DavMail " + DavGateway.getCurrentVersion() + " server ready");
+            if (!resumed) {
+                sessionFactory.checkConfig();
+                sendClient("* OK [" + capabilities + "] IMAP4rev1 DavMail " + DavGateway.getCurrentVersion() + " server ready");
+            }
             for (; ; ) {
-                line = readClient();
+                if (idleCommandId != null) {
+                    commandId = idleCommandId;
+                    if (resumeIdle()) {
+                        parked = true;
+                        return;
+                    }
+                }
+                if (pendingLine != null) {
+                    line = pendingLine;
+                    pendingLine = null;
+                } else {
+                    if (parkUntilReadable()) {
+                        parked = true;
+                        return;
+                    }
+                    line = readClient();
+                }
                 // unable to read line, connection closed ?
                 if (line == null) {
                     break;
@@ -127,12 +176,19 @@ public class ImapConnection extends AbstractConnection {
                             } else {
                                 // check for expired session
                                 session = sessionFactory.getInstance(session, userName, password);
-                                if ("lsub".equalsIgnoreCase(command) || "list".equalsIgnoreCase(command)) {
+                                if (isPipelineCommand(command, line) && in.available() > 0
+                                        && Settings.getIntProperty("davmail.imapPipelineSize", 16) > 1) {
+                                    handlePipeline(line);
+
+                                } else if ("lsub".equalsIgnoreCase(command) || "list".equalsIgnoreCase(command)) {
                                     handleList(tokens, commandId, command);
 
                                 } else if ("select".equalsIgnoreCase(command) || "examine".equalsIgnoreCase(command)) {
                                     handleSelect(tokens, commandId, command);
 
+                                } else if ("enable".equalsIgnoreCase(command)) {
+                                    handleEnable(tokens, commandId);
+
                                 } else if ("expunge".equalsIgnoreCase(command)) {
                                     if (expunge(false)) {
                                         // need to refresh folder to avoid 404 errors
@@ -181,8 +237,13 @@ public class ImapConnection extends AbstractConnection {
                                 } else if ("store".equalsIgnoreCase(command)) {
                                     RangeIterator rangeIterator = new RangeIterator(currentFolder.messages, tokens.nextToken());
                                     String action = tokens.nextToken();
+                                    long unchangedSince = -1;
+                                    if (action.toUpperCase().startsWith("UNCHANGEDSINCE ")) {
+                                        unchangedSince = Long.parseLong(action.substring("UNCHANGEDSINCE ".length()).trim());
+                                        action = tokens.nextToken();
+                                    }
                                     String flags = tokens.nextToken();
-                                    handleStore(commandId, rangeIterator, action, flags);
+                                    handleStore(commandId, rangeIterator, action, flags, unchangedSince);
 
                                 } else if ("copy".equalsIgnoreCase(command) || "move".equalsIgnoreCase(command)) {
                                     handleCopyOrMove(tokens, commandId, command);
@@ -191,14 +252,21 @@ public class ImapConnection extends AbstractConnection {
                                     handleAppend(tokens, commandId, command);
 
                                 } else if ("idle".equalsIgnoreCase(command) && imapIdleDelay > 0) {
-                                    handleIdle(commandId, command);
+                                    if (engine != null) {
+                                        if (startIdle(commandId)) {
+                                            parked = true;
+                                            return;
+                                        }
+                                    } else {
+                                        handleIdle(commandId, command);
+                                    }
 
                                 } else if ("noop".equalsIgnoreCase(command) || "check".equalsIgnoreCase(command)) {
                                     if (currentFolder != null) {
                                         DavGatewayTray.debug(new BundleMessage("LOG_IMAP_COMMAND", command, currentFolder.folderPath));
-                                        TreeMap<Long, String> previousImapFlagMap = currentFolder.getImapFlagMap();
+                                        FolderIndex previousIndex = currentFolder.getIndex();
                                         if (session.refreshFolder(currentFolder)) {
-                                            handleRefresh(previousImapFlagMap, currentFolder.getImapFlagMap());
+                                            handleRefresh(previousIndex);
                                         }
                                     }
                                     sendClient(commandId + " OK " + command + " completed");
@@ -245,11 +313,136 @@ public class ImapConnection extends AbstractConnection {
                 DavGatewayTray.warn(new BundleMessage("LOG_EXCEPTION_SENDING_ERROR_TO_CLIENT"), e2);
             }
         } finally {
-            close();
+            if (!parked) {
+                close();
+            }
         }
         DavGatewayTray.resetIcon();
     }
 
+    /**
+     * Send message to client, or to the response buffer of the current pipelined command.
+     *
+     * @param prefix  prefix
+     * @param message message
+     * @throws IOException on error
+     */
+    @Override
+    public void sendClient(String prefix, String message) throws IOException {
+        ByteArrayOutputStream buffer = pipelineBuffer.get();
+        if (buffer == null) {
+            super.sendClient(prefix, message);
+        } else {
+            if (prefix != null) {
+                buffer.write(prefix.getBytes());
+            }
+            buffer.write(message.getBytes());
+            buffer.write(13);
+            buffer.write(10);
+        }
+    }
+
+    /**
+     * Check if command can run concurrently with other pipelined commands:
+     * read-only commands that do not depend on the selected folder state.
+     *
+     * @param command command name
+     * @param line    full command line
+     * @return true if command can be pipelined
+     */
+    protected boolean isPipelineCommand(String command, String line) {
+        // literal needs a continuation request
+        return !line.endsWith("}")
+                && ("status".equalsIgnoreCase(command) || "list".equalsIgnoreCase(command) || "lsub".equalsIgnoreCase(command)
+                || (currentFolder == null && ("noop".equalsIgnoreCase(command) || "check".equalsIgnoreCase(command))));
+    }
+
+    /**
+     * Execute a pipeline of read-only commands already sent by the client concurrently on the session
+     * worker pool, see davmail.imapPipelineSize and davmail.imapPipelineThreads.
+     * Each command response is buffered and sent in command order, the first command line that can not be
+     * pipelined is kept for the next loop.
+     *
+     * @param firstLine first pipelined command line
+     * @throws IOException on error
+     */
+    protected void handlePipeline(String firstLine) throws IOException {
+        int pipelineSize = Settings.getIntProperty("davmail.imapPipelineSize", 16);
+        List<String> lines = new ArrayList<String>();
+        lines.add(firstLine);
+        while (lines.size() < pipelineSize && in.available() > 0) {
+            String line = readClient();
+            if (line == null) {
+                break;
+            }
+            IMAPTokenizer tokens = new IMAPTokenizer(line);
+            if (tokens.hasMoreTokens()) {
+                tokens.nextToken();
+            }
+            if (!tokens.hasMoreTokens() || !isPipelineCommand(tokens.nextToken(), line)) {
+                pendingLine = line;
+                break;
+            }
+            checkInfiniteLoop(line);
+            lines.add(line);
+        }
+        LOGGER.debug("Executing " + lines.size() + " pipelined commands");
+
+        List<Future<byte[]>> responses = new ArrayList<Future<byte[]>>();
+        ExecutorService executor = session.getCommandExecutor();
+        for (final String line : lines) {
+            responses.add(executor.submit(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    return executePipelineCommand(line);
+                }
+            }));
+        }
+        for (Future<byte[]> response : responses) {
+            try {
+                sendClient(response.get());
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted pipeline");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage());
+            }
+        }
+    }
+
+    /**
+     * Execute a pipelined command on a worker thread, unexpected errors are reported to the client
+     * as a tagged BAD response for this command only.
+     *
+     * @param line command line
+     * @return command response
+     */
+    protected byte[] executePipelineCommand(String line) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        pipelineBuffer.set(buffer);
+        IMAPTokenizer tokens = new IMAPTokenizer(line);
+        String commandId = tokens.nextToken();
+        String command = tokens.nextToken();
+        try {
+            if ("status".equalsIgnoreCase(command)) {
+                handleStatus(tokens, commandId, command);
+            } else if ("list".equalsIgnoreCase(command) || "lsub".equalsIgnoreCase(command)) {
+                handleList(tokens, commandId, command);
+            } else {
+                sendClient(commandId + " OK " + command + " completed");
+            }
+        } catch (Exception e) {
+            DavGatewayTray.log(e);
+            try {
+                String message = ((e.getMessage() == null) ? e.toString() : e.getMessage()).replaceAll("\\n", " ");
+                sendClient(commandId + " BAD unable to handle request: " + message);
+            } catch (IOException e2) {
+                // buffered response, can not happen
+            }
+        } finally {
+            pipelineBuffer.remove();
+        }
+        return buffer.toByteArray();
+    }
+
     protected void handleLogin(IMAPTokenizer tokens, final String commandId, final String command) throws IOException {
         parseCredentials(tokens);
         // detect shared mailbox access
@@ -365,6 +558,14 @@ public class ImapConnection extends AbstractConnection {
             if (baseMailboxPath != null && !folderName.startsWith("/")) {
                 folderName = baseMailboxPath + folderName;
             }
+            // optional CONDSTORE or QRESYNC parameters
+            String selectParameters = null;
+            if (tokens.hasMoreTokens()) {
+                selectParameters = tokens.nextToken().toUpperCase();
+                if (selectParameters.startsWith("CONDSTORE") || selectParameters.startsWith("QRESYNC")) {
+                    condstoreEnabled = true;
+                }
+            }
             try {
                 currentFolder = session.getFolder(folderName);
                 if (currentFolder.count() <= 500) {
@@ -388,6 +589,12 @@ public class ImapConnection extends AbstractConnection {
                 }
                 sendClient("* FLAGS (\\Answered \\Deleted \\Draft \\Flagged \\Seen $Forwarded Junk)");
                 sendClient("* OK [PERMANENTFLAGS (\\Answered \\Deleted \\Draft \\Flagged \\Seen $Forwarded Junk \\*)]");
+                if (condstoreEnabled) {
+                    sendClient("* OK [HIGHESTMODSEQ " + currentFolder.highestModSeq + ']');
+                }
+                if (qresyncEnabled && selectParameters != null && selectParameters.startsWith("QRESYNC")) {
+                    handleQResync(selectParameters.substring("QRESYNC".length()).trim());
+                }
                 if ("select".equalsIgnoreCase(command)) {
                     sendClient(commandId + " OK [READ-WRITE] " + command + " completed");
                 } else {
@@ -403,6 +610,160 @@ public class ImapConnection extends AbstractConnection {
         }
     }
 
+    /**
+     * Quick resynchronization on SELECT: send messages expunged and changed since client mod-sequence.
+     *
+     * @param parameters QRESYNC parameters (uidvalidity modseq [known-uids [seq-match]])
+     * @throws IOException on error
+     */
+    protected void handleQResync(String parameters) throws IOException {
+        StringTokenizer qresyncTokens = new StringTokenizer(StringUtil.removeQuotes(parameters));
+        long uidValidity = Long.parseLong(qresyncTokens.nextToken());
+        long modSeq = Long.parseLong(qresyncTokens.nextToken());
+        String knownUids = "1:*";
+        if (qresyncTokens.hasMoreTokens()) {
+            String token = qresyncTokens.nextToken();
+            // ignore sequence match data
+            if (!token.startsWith("(")) {
+                knownUids = token;
+            }
+        }
+        if (uidValidity == 1) {
+            String vanishedUids = getVanishedUids(knownUids, currentFolder.messages, currentFolder.getUidNext() - 1);
+            if (vanishedUids.length() > 0) {
+                sendClient("* VANISHED (EARLIER) " + vanishedUids);
+            }
+            if (!currentFolder.messages.isEmpty()) {
+                ChangedSinceIterator iterator = new ChangedSinceIterator(new UIDRangeIterator(currentFolder.messages, knownUids), modSeq);
+                while (iterator.hasNext()) {
+                    Message message = iterator.next();
+                    sendClient("* " + iterator.getCurrentIndex() + " FETCH (UID " + message.getImapUid()
+                            + " FLAGS (" + message.getImapFlags() + ") MODSEQ (" + message.modSeq + "))");
+                }
+            }
+        }
+    }
+
+    protected void handleEnable(IMAPTokenizer tokens, String commandId) throws IOException {
+        StringBuilder buffer = new StringBuilder("* ENABLED");
+        while (tokens.hasMoreTokens()) {
+            String capability = tokens.nextToken().toUpperCase();
+            if ("CONDSTORE".equals(capability) || "QRESYNC".equals(capability)) {
+                // QRESYNC implies CONDSTORE
+                condstoreEnabled = true;
+                if ("QRESYNC".equals(capability)) {
+                    qresyncEnabled = true;
+                }
+                buffer.append(' ').append(capability);
+            }
+        }
+        sendClient(buffer.toString());
+        sendClient(commandId + " OK ENABLE completed");
+    }
+
+    /**
+     * First CONDSTORE command on a selected folder, report highest mod-sequence.
+     *
+     * @throws IOException on error
+     */
+    protected void enableCondstore() throws IOException {
+        if (!condstoreEnabled) {
+            condstoreEnabled = true;
+            if (currentFolder != null) {
+                sendClient("* OK [HIGHESTMODSEQ " + currentFolder.highestModSeq + ']');
+            }
+        }
+    }
+
+    /**
+     * Uids in uid set that do not exist in folder, in IMAP sequence set format.
+     *
+     * @param uidSet   IMAP uid set
+     * @param messages folder messages sorted by uid
+     * @param maxUid   highest uid that may have existed in folder
+     * @return missing uids, empty if none
+     */
+    static String getVanishedUids(String uidSet, MessageList messages, long maxUid) {
+        long[] uids = new long[messages.size()];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = messages.getImapUid(i);
+        }
+        StringBuilder buffer = new StringBuilder();
+        for (String range : uidSet.split(",")) {
+            long start;
+            long end;
+            int colonIndex = range.indexOf(':');
+            if (colonIndex > 0) {
+                start = parseUid(range.substring(0, colonIndex), maxUid);
+                end = parseUid(range.substring(colonIndex + 1), maxUid);
+                if (end < start) {
+                    long swap = end;
+                    end = start;
+                    start = swap;
+                }
+            } else {
+                start = end = parseUid(range, maxUid);
+            }
+            end = Math.min(end, maxUid);
+            int index = Arrays.binarySearch(uids, start);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            long next = start;
+            while (next <= end) {
+                if (index >= uids.length || uids[index] > end) {
+                    appendRange(buffer, next, end);
+                    break;
+                }
+                if (uids[index] > next) {
+                    appendRange(buffer, next, uids[index] - 1);
+                }
+                next = uids[index++] + 1;
+            }
+        }
+        return buffer.toString();
+    }
+
+    protected static long parseUid(String value, long maxUid) {
+        if ("*".equals(value)) {
+            return maxUid;
+        } else {
+            return Long.parseLong(value);
+        }
+    }
+
+    protected static void appendRange(StringBuilder buffer, long start, long end) {
+        if (buffer.length() > 0) {
+            buffer.append(',');
+        }
+        buffer.append(start);
+        if (end > start) {
+            buffer.append(':').append(end);
+        }
+    }
+
+    /**
+     * FETCH modifiers: CONDSTORE CHANGEDSINCE and QRESYNC VANISHED.
+     */
+    static final class FetchModifiers {
+        long changedSince = -1;
+        boolean vanished;
+
+        FetchModifiers(String modifiers) {
+            if (modifiers != null) {
+                StringTokenizer modifierTokens = new StringTokenizer(modifiers.toUpperCase());
+                while (modifierTokens.hasMoreTokens()) {
+                    String modifier = modifierTokens.nextToken();
+                    if ("CHANGEDSINCE".equals(modifier) && modifierTokens.hasMoreTokens()) {
+                        changedSince = Long.parseLong(modifierTokens.nextToken());
+                    } else if ("VANISHED".equals(modifier)) {
+                        vanished = true;
+                    }
+                }
+            }
+        }
+    }
+
     protected void handleUid(IMAPTokenizer tokens, final String commandId, final String command) throws IOException, MessagingException {
         if (tokens.hasMoreTokens()) {
             String subcommand = tokens.nextToken();
@@ -418,41 +779,64 @@ public class ImapConnection extends AbstractConnection {
                         if (tokens.hasMoreTokens()) {
                             parameters = tokens.nextToken();
                         }
-                        UIDRangeIterator uidRangeIterator = new UIDRangeIterator(currentFolder.messages, ranges);
-                        while (uidRangeIterator.hasNext()) {
-                            DavGatewayTray.switchIcon();
-                            Message message = uidRangeIterator.next();
-                            try {
-                                handleFetchOne(message, uidRangeIterator.currentIndex, parameters);
-                            } catch (HttpNotFoundException e) {
-                                LOGGER.warn("Ignore missing message " + uidRangeIterator.currentIndex);
-                            } catch (SocketException e) {
-                                // client closed connection
-                                throw e;
-                            } catch (IOException e) {
-                                DavGatewayTray.log(e);
-                                sendClient(commandId + " NO Unable to retrieve message: " + e.getMessage());
+                        FetchModifiers modifiers = new FetchModifiers(tokens.hasMoreTokens() ? tokens.nextToken() : null);
+                        parameters = handleFetchModifiers(parameters, modifiers);
+                        if (modifiers.vanished && modifiers.changedSince >= 0 && qresyncEnabled) {
+                            String vanishedUids = getVanishedUids(ranges, currentFolder.messages, currentFolder.getUidNext() - 1);
+                            if (vanishedUids.length() > 0) {
+                                sendClient("* VANISHED (EARLIER) " + vanishedUids);
                             }
                         }
+                        AbstractRangeIterator uidRangeIterator = new UIDRangeIterator(currentFolder.messages, ranges);
+                        if (modifiers.changedSince >= 0) {
+                            uidRangeIterator = new ChangedSinceIterator(uidRangeIterator, modifiers.changedSince);
+                        }
+                        uidRangeIterator = getFetchIterator(uidRangeIterator, parameters);
+                        try {
+                            while (uidRangeIterator.hasNext()) {
+                                DavGatewayTray.switchIcon();
+                                Message message = uidRangeIterator.next();
+                                try {
+                                    handleFetchOne(message, uidRangeIterator.currentIndex, parameters);
+                                } catch (HttpNotFoundException e) {
+                                    LOGGER.warn("Ignore missing message " + uidRangeIterator.currentIndex);
+                                } catch (SocketException e) {
+                                    // client closed connection
+                                    throw e;
+                                } catch (IOException e) {
+                                    DavGatewayTray.log(e);
+                                    sendClient(commandId + " NO Unable to retrieve message: " + e.getMessage());
+                                }
+                            }
+                        } finally {
+                            uidRangeIterator.release();
+                        }
                         sendClient(commandId + " OK UID FETCH completed");
                     }
                 }
 
             } else if ("search".equalsIgnoreCase(subcommand)) {
-                List<Long> uidList = handleSearch(tokens);
+                SearchConditions conditions = new SearchConditions();
+                long[] uidList = handleSearch(tokens, conditions);
                 StringBuilder buffer = new StringBuilder("* SEARCH");
                 for (long uid : uidList) {
                     buffer.append(' ');
                     buffer.append(uid);
                 }
+                appendSearchModSeq(buffer, conditions, uidList);
                 sendClient(buffer.toString());
                 sendClient(commandId + " OK SEARCH completed");
 
             } else if ("store".equalsIgnoreCase(subcommand)) {
                 UIDRangeIterator uidRangeIterator = new UIDRangeIterator(currentFolder.messages, tokens.nextToken());
                 String action = tokens.nextToken();
+                long unchangedSince = -1;
+                if (action.toUpperCase().startsWith("UNCHANGEDSINCE ")) {
+                    unchangedSince = Long.parseLong(action.substring("UNCHANGEDSINCE ".length()).trim());
+                    action = tokens.nextToken();
+                }
                 String flags = tokens.nextToken();
-                handleStore(commandId, uidRangeIterator, action, flags);
+                handleStore(commandId, uidRangeIterator, action, flags, unchangedSince);
             } else if ("copy".equalsIgnoreCase(subcommand) || "move".equalsIgnoreCase(subcommand)) {
                 try {
                     UIDRangeIterator uidRangeIterator = new UIDRangeIterator(currentFolder.messages, tokens.nextToken());
@@ -469,6 +853,8 @@ public class ImapConnection extends AbstractConnection {
                                 session.moveMessage(message, targetName);
                             }
                         }
+                        session.invalidateFolderStatus(targetName);
+                        session.invalidateFolderStatus(currentFolder.folderPath);
                         sendClient(commandId + " OK " + subcommand + " completed");
                     }
                 } catch (HttpException e) {
@@ -484,18 +870,19 @@ public class ImapConnection extends AbstractConnection {
         if (currentFolder == null) {
             sendClient(commandId + " NO no folder selected");
         } else {
-            List<Long> uidList = handleSearch(tokens);
-            if (uidList.isEmpty()) {
-                sendClient("* SEARCH");
-            } else {
-                int currentIndex = 0;
-                for (Message message : currentFolder.messages) {
-                    currentIndex++;
-                    if (uidList.contains(message.getImapUid())) {
-                        sendClient("* SEARCH " + currentIndex);
+            SearchConditions conditions = new SearchConditions();
+            long[] uidList = handleSearch(tokens, conditions);
+            StringBuilder buffer = new StringBuilder("* SEARCH");
+            if (uidList.length > 0) {
+                MessageList messages = currentFolder.messages;
+                for (int i = 0; i < messages.size(); i++) {
+                    if (Arrays.binarySearch(uidList, messages.getImapUid(i)) >= 0) {
+                        buffer.append(' ').append(i + 1);
                     }
                 }
             }
+            appendSearchModSeq(buffer, conditions, uidList);
+            sendClient(buffer.toString());
             sendClient(commandId + " OK SEARCH completed");
         }
     }
@@ -504,25 +891,36 @@ public class ImapConnection extends AbstractConnection {
         if (currentFolder == null) {
             sendClient(commandId + " NO no folder selected");
         } else {
-            RangeIterator rangeIterator = new RangeIterator(currentFolder.messages, tokens.nextToken());
+            String ranges = tokens.nextToken();
             String parameters = null;
             if (tokens.hasMoreTokens()) {
                 parameters = tokens.nextToken();
             }
-            while (rangeIterator.hasNext()) {
-                DavGatewayTray.switchIcon();
-                Message message = rangeIterator.next();
-                try {
-                    handleFetchOne(message, rangeIterator.currentIndex, parameters);
-                } catch (HttpNotFoundException e) {
-                    LOGGER.warn("Ignore missing message " + rangeIterator.currentIndex);
-                } catch (SocketException e) {
-                    // client closed connection, rethrow exception
-                    throw e;
-                } catch (IOException e) {
-                    DavGatewayTray.log(e);
-                    sendClient(commandId + " NO Unable to retrieve message: " + e.getMessage());
+            FetchModifiers modifiers = new FetchModifiers(tokens.hasMoreTokens() ? tokens.nextToken() : null);
+            parameters = handleFetchModifiers(parameters, modifiers);
+            AbstractRangeIterator rangeIterator = new RangeIterator(currentFolder.messages, ranges);
+            if (modifiers.changedSince >= 0) {
+                rangeIterator = new ChangedSinceIterator(rangeIterator, modifiers.changedSince);
+            }
+            rangeIterator = getFetchIterator(rangeIterator, parameters);
+            try {
+                while (rangeIterator.hasNext()) {
+                    DavGatewayTray.switchIcon();
+                    Message message = rangeIterator.next();
+                    try {
+                        handleFetchOne(message, rangeIterator.currentIndex, parameters);
+                    } catch (HttpNotFoundException e) {
+                        LOGGER.warn("Ignore missing message " + rangeIterator.currentIndex);
+                    } catch (SocketException e) {
+                        // client closed connection, rethrow exception
+                        throw e;
+                    } catch (IOException e) {
+                        DavGatewayTray.log(e);
+                        sendClient(commandId + " NO Unable to retrieve message: " + e.getMessage());
+                    }
                 }
+            } finally {
+                rangeIterator.release();
             }
             sendClient(commandId + " OK FETCH completed");
         }
@@ -544,6 +942,8 @@ public class ImapConnection extends AbstractConnection {
                         session.moveMessage(message, targetName);
                     }
                 }
+                session.invalidateFolderStatus(targetName);
+                session.invalidateFolderStatus(currentFolder.folderPath);
                 sendClient(commandId + " OK " + command + " completed");
             }
         } catch (HttpException e) {
@@ -628,6 +1028,7 @@ public class ImapConnection extends AbstractConnection {
         String messageName = UUID.randomUUID().toString() + ".EML";
         try {
             MessageCreateThread.createMessage(session, folderName, messageName, properties, mimeMessage, os, capabilities);
+            session.invalidateFolderStatus(folderName);
             sendClient(commandId + " OK APPEND completed");
         } catch (InsufficientStorageException e) {
             sendClient(commandId + " NO " + e.getMessage());
@@ -640,15 +1041,14 @@ public class ImapConnection extends AbstractConnection {
             // clear cache before going to idle mode
             currentFolder.clearCache();
             DavGatewayTray.resetIcon();
+            startFolderNotifications();
             try {
                 int count = 0;
                 while (in.available() == 0) {
-                    if (++count >= imapIdleDelay) {
+                    // refresh on folder change, poll every imapIdleDelay in case notifications are lost
+                    if (folderChanged || ++count >= imapIdleDelay) {
                         count = 0;
-                        TreeMap<Long, String> previousImapFlagMap = currentFolder.getImapFlagMap();
-                        if (session.refreshFolder(currentFolder)) {
-                            handleRefresh(previousImapFlagMap, currentFolder.getImapFlagMap());
-                        }
+                        refreshIdleFolder();
                     }
                     // sleep 1 second
                     Thread.sleep(1000);
@@ -663,47 +1063,143 @@ public class ImapConnection extends AbstractConnection {
             } catch (IOException e) {
                 // client connection closed
                 throw new SocketException(e.getMessage());
+            } finally {
+                stopFolderNotifications();
             }
         } else {
             sendClient(commandId + " NO no folder selected");
         }
     }
 
+    /**
+     * Enter IDLE mode in connection engine mode: park connection until client sends DONE,
+     * wake up on folder change notification or every imapIdleDelay to refresh current folder.
+     *
+     * @param commandId IDLE command id
+     * @return true if connection is parked
+     * @throws IOException on error
+     */
+    protected boolean startIdle(String commandId) throws IOException {
+        if (currentFolder != null) {
+            sendClient("+ idling ");
+            // clear cache before going to idle mode
+            currentFolder.clearCache();
+            DavGatewayTray.resetIcon();
+            idleCommandId = commandId;
+            startFolderNotifications();
+            return resumeIdle();
+        } else {
+            sendClient(commandId + " NO no folder selected");
+            return false;
+        }
+    }
+
+    /**
+     * Resume IDLE mode after connection engine wake up.
+     *
+     * @return true if connection is parked again
+     * @throws IOException on error
+     */
+    protected boolean resumeIdle() throws IOException {
+        boolean timedOut = isParkTimedOut();
+        // refresh on folder change, poll every imapIdleDelay in case notifications are lost
+        if (folderChanged || timedOut) {
+            try {
+                refreshIdleFolder();
+            } catch (IOException e) {
+                stopFolderNotifications();
+                // client connection closed
+                throw new SocketException(e.getMessage());
+            }
+        }
+        if (parkUntilReadable(imapIdleDelay * 1000L)) {
+            if (folderChanged) {
+                // notification received before park, resume immediately
+                engine.wakeup(this);
+            }
+            return true;
+        }
+        stopFolderNotifications();
+        // read DONE line
+        String line = readClient();
+        if ("DONE".equals(line)) {
+            sendClient(idleCommandId + " OK IDLE terminated");
+        } else {
+            sendClient(idleCommandId + " BAD command unrecognized");
+        }
+        idleCommandId = null;
+        return false;
+    }
+
+    protected void refreshIdleFolder() throws IOException {
+        folderChanged = false;
+        FolderIndex previousIndex = currentFolder.getIndex();
+        if (session.refreshFolder(currentFolder)) {
+            handleRefresh(previousIndex);
+        }
+    }
+
+    /**
+     * Listen to current folder changes during IDLE, current folder is still polled every imapIdleDelay
+     * in case the session does not support notifications or loses its subscription.
+     */
+    protected void startFolderNotifications() {
+        folderChanged = false;
+        try {
+            if (session.addFolderListener(currentFolder.folderPath, folderListener)) {
+                notificationSession = session;
+                notificationFolderPath = currentFolder.folderPath;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to listen to " + currentFolder.folderPath + " changes, polling folder: " + e.getMessage());
+        }
+    }
+
+    protected void stopFolderNotifications() {
+        if (notificationSession != null) {
+            notificationSession.removeFolderListener(notificationFolderPath, folderListener);
+            notificationSession = null;
+            notificationFolderPath = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        stopFolderNotifications();
+        super.close();
+    }
+
     protected void handleStatus(IMAPTokenizer tokens, String commandId, String command) throws IOException {
         try {
             String encodedFolderName = tokens.nextToken();
             String folderName = BASE64MailboxDecoder.decode(encodedFolderName);
-            Folder folder = session.getFolder(folderName);
-            // must retrieve messages
-            folder.loadMessages();
             String parameters = tokens.nextToken();
+            FolderStatus folderStatus = getFolderStatus(folderName, parameters.toUpperCase().contains("HIGHESTMODSEQ"));
             StringBuilder answer = new StringBuilder();
             StringTokenizer parametersTokens = new StringTokenizer(parameters);
             while (parametersTokens.hasMoreTokens()) {
                 String token = parametersTokens.nextToken();
                 if ("MESSAGES".equalsIgnoreCase(token)) {
-                    answer.append("MESSAGES ").append(folder.count()).append(' ');
+                    answer.append("MESSAGES ").append(folderStatus.messages).append(' ');
                 }
                 if ("RECENT".equalsIgnoreCase(token)) {
-                    answer.append("RECENT ").append(folder.recent).append(' ');
+                    answer.append("RECENT ").append(folderStatus.recent).append(' ');
                 }
                 if ("UIDNEXT".equalsIgnoreCase(token)) {
-                    if (folder.count() == 0) {
+                    if (folderStatus.messages == 0) {
                         answer.append("UIDNEXT 1 ");
                     } else {
-                        if (folder.count() == 0) {
-                            answer.append("UIDNEXT 1 ");
-                        } else {
-                            answer.append("UIDNEXT ").append(folder.getUidNext()).append(' ');
-                        }
+                        answer.append("UIDNEXT ").append(folderStatus.uidNext).append(' ');
                     }
-
                 }
                 if ("UIDVALIDITY".equalsIgnoreCase(token)) {
                     answer.append("UIDVALIDITY 1 ");
                 }
                 if ("UNSEEN".equalsIgnoreCase(token)) {
-                    answer.append("UNSEEN ").append(folder.unreadCount).append(' ');
+                    answer.append("UNSEEN ").append(folderStatus.unseen).append(' ');
+                }
+                if ("HIGHESTMODSEQ".equalsIgnoreCase(token)) {
+                    answer.append("HIGHESTMODSEQ ").append(folderStatus.highestModSeq).append(' ');
                 }
             }
             sendClient("* STATUS \"" + encodedFolderName + "\" (" + answer.toString().trim() + ')');
@@ -714,6 +1210,43 @@ public class ImapConnection extends AbstractConnection {
 
     }
 
+    /**
+     * Get STATUS values: from session status cache, from current session listing when folder did not change
+     * or from Exchange folder counters. Folder messages are only listed when Exchange does not provide uidNext
+     * or HIGHESTMODSEQ is requested, concurrent listings are bounded by davmail.imapStatusListingThreads.
+     *
+     * @param folderName      folder name
+     * @param modSeqRequested true if HIGHESTMODSEQ is requested
+     * @return folder status
+     * @throws IOException on error
+     */
+    protected FolderStatus getFolderStatus(String folderName, boolean modSeqRequested) throws IOException {
+        FolderStatus folderStatus = session.getFolderStatus(folderName);
+        if (folderStatus != null && (folderStatus.listed || !modSeqRequested)) {
+            return folderStatus;
+        }
+        Folder folder = session.getFolder(folderName);
+        folderStatus = folder.getFolderState().getStatus(folder);
+        if (folderStatus == null) {
+            if (modSeqRequested || folder.uidNext <= 0) {
+                Semaphore semaphore = session.getStatusListingSemaphore();
+                try {
+                    semaphore.acquire();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted STATUS listing");
+                }
+                try {
+                    folder.loadMessages();
+                } finally {
+                    semaphore.release();
+                }
+            }
+            folderStatus = FolderStatus.fromFolder(folder);
+        }
+        session.putFolderStatus(folderName, folderStatus);
+        return folderStatus;
+    }
+
     protected String lastCommand;
     protected int lastCommandCount;
 
@@ -770,17 +1303,34 @@ public class ImapConnection extends AbstractConnection {
      * @param imapFlagMap         uid list after refresh
      * @throws IOException on error
      */
-    private void handleRefresh(TreeMap<Long, String> previousImapFlagMap, TreeMap<Long, String> imapFlagMap) throws IOException {
+    private void handleRefresh(FolderIndex previousIndex) throws IOException {
+        // both indexes are sorted by uid: merge previous index with current index, build changed messages only
+        FolderIndex folderIndex = currentFolder.getIndex();
+        int currentIndex = 0;
         // send deleted message expunge notification
         int index = 1;
-        for (long previousImapUid : previousImapFlagMap.keySet()) {
-            if (!imapFlagMap.keySet().contains(previousImapUid)) {
-                sendClient("* " + index + " EXPUNGE");
+        for (int i = 0; i < previousIndex.size(); i++) {
+            long previousImapUid = previousIndex.getUid(i);
+            while (currentIndex < folderIndex.size() && folderIndex.getUid(currentIndex) < previousImapUid) {
+                currentIndex++;
+            }
+            if (currentIndex >= folderIndex.size() || folderIndex.getUid(currentIndex) != previousImapUid) {
+                if (qresyncEnabled) {
+                    sendClient("* VANISHED " + previousImapUid);
+                } else {
+                    sendClient("* " + index + " EXPUNGE");
+                }
             } else {
                 // send updated flags
-                if (!previousImapFlagMap.get(previousImapUid).equals(imapFlagMap.get(previousImapUid))) {
-                    sendClient("* " + index + " FETCH (UID " + previousImapUid + " FLAGS (" + imapFlagMap.get(previousImapUid) + "))");
+                if (!previousIndex.hasSameFlags(i, folderIndex, currentIndex)) {
+                    Message message = currentFolder.messages.get(currentIndex);
+                    if (condstoreEnabled) {
+                        sendClient("* " + index + " FETCH (UID " + previousImapUid + " FLAGS (" + message.getImapFlags() + ") MODSEQ (" + message.modSeq + "))");
+                    } else {
+                        sendClient("* " + index + " FETCH (UID " + previousImapUid + " FLAGS (" + message.getImapFlags() + "))");
+                    }
                 }
+                currentIndex++;
                 index++;
             }
         }
@@ -846,23 +1396,150 @@ public class ImapConnection extends AbstractConnection {
     }
 
 
+    /**
+     * Enable CONDSTORE on MODSEQ fetch, CHANGEDSINCE implies MODSEQ.
+     *
+     * @param parameters FETCH parameters
+     * @param modifiers  FETCH modifiers
+     * @return FETCH parameters
+     * @throws IOException on error
+     */
+    protected String handleFetchModifiers(String parameters, FetchModifiers modifiers) throws IOException {
+        String result = parameters;
+        if (modifiers.changedSince >= 0 && (result == null || !result.toUpperCase().contains("MODSEQ"))) {
+            result = result == null ? "MODSEQ" : result + " MODSEQ";
+        }
+        if (result != null && result.toUpperCase().contains("MODSEQ")) {
+            enableCondstore();
+        }
+        return result;
+    }
+
+    /**
+     * Download message content in batches and load next messages on the session worker pool
+     * when FETCH parameters need full message content, see davmail.imapPrefetchBatchSize,
+     * davmail.imapPrefetchMaxSize, davmail.imapReadAhead and davmail.imapReadAheadMaxSize.
+     *
+     * @param rangeIterator message range iterator
+     * @param parameters    FETCH parameters
+     * @return iterator
+     */
+    protected AbstractRangeIterator getFetchIterator(AbstractRangeIterator rangeIterator, String parameters) {
+        AbstractRangeIterator iterator = rangeIterator;
+        if (isContentRequest(parameters)) {
+            // content is only needed for BODYSTRUCTURE: skip messages with a cached body structure
+            boolean bodyStructureOnly = !isContentRequest(parameters.toUpperCase().replace("BODYSTRUCTURE", ""));
+            int batchSize = Settings.getIntProperty("davmail.imapPrefetchBatchSize", 10);
+            if (batchSize > 1) {
+                long maxBatchSize = Settings.getIntProperty("davmail.imapPrefetchMaxSize", 4) * 1024L * 1024L;
+                PrefetchIterator prefetchIterator = new PrefetchIterator(iterator, session, batchSize, maxBatchSize);
+                prefetchIterator.skipCachedBodyStructure = bodyStructureOnly;
+                iterator = prefetchIterator;
+            }
+            int readAheadCount = Settings.getIntProperty("davmail.imapReadAhead", 4);
+            if (readAheadCount > 0) {
+                long maxReadAheadSize = Settings.getIntProperty("davmail.imapReadAheadMaxSize", 8) * 1024L * 1024L;
+                ReadAheadIterator readAheadIterator = new ReadAheadIterator(iterator, session.getPrefetchExecutor(), readAheadCount, maxReadAheadSize);
+                readAheadIterator.skipCachedBodyStructure = bodyStructureOnly;
+                iterator = readAheadIterator;
+            }
+        } else if (isHeaderRequest(parameters)) {
+            int batchSize = Settings.getIntProperty("davmail.imapHeaderPrefetchBatchSize", 100);
+            if (batchSize > 1) {
+                PrefetchIterator prefetchIterator = new PrefetchIterator(iterator, session, batchSize, Long.MAX_VALUE);
+                prefetchIterator.headersOnly = true;
+                // headers are only needed for ENVELOPE: skip messages with a cached envelope
+                prefetchIterator.skipCachedEnvelope = !parameters.toUpperCase().contains("[HEADER.FIELDS");
+                iterator = prefetchIterator;
+            }
+        }
+        return iterator;
+    }
+
+    /**
+     * Check if FETCH parameters can be answered from message headers only.
+     *
+     * @param parameters FETCH parameters
+     * @return true on ENVELOPE or HEADER.FIELDS request
+     */
+    protected static boolean isHeaderRequest(String parameters) {
+        if (parameters == null) {
+            return false;
+        }
+        String upperCaseParameters = parameters.toUpperCase();
+        return upperCaseParameters.contains("ENVELOPE") || upperCaseParameters.contains("[HEADER.FIELDS");
+    }
+
+    /**
+     * Check if FETCH parameters need full message content,
+     * header fields requests are served from message headers.
+     *
+     * @param parameters FETCH parameters
+     * @return true if message content is loaded
+     */
+    protected static boolean isContentRequest(String parameters) {
+        if (parameters == null) {
+            return false;
+        }
+        String upperCaseParameters = parameters.toUpperCase();
+        boolean headerFieldsRequest = upperCaseParameters.contains("[HEADER.FIELDS");
+        // indexed size is sent when approximate size is allowed
+        boolean exactSizeRequest = !headerFieldsRequest && !Settings.getBooleanProperty("davmail.imapAlwaysApproxMsgSize");
+        if (upperCaseParameters.contains("BODYSTRUCTURE")
+                || (upperCaseParameters.contains("RFC822.SIZE") && exactSizeRequest)) {
+            return true;
+        }
+        int index = upperCaseParameters.indexOf("RFC822");
+        while (index >= 0) {
+            if (!upperCaseParameters.startsWith("RFC822.SIZE", index)) {
+                return true;
+            }
+            index = upperCaseParameters.indexOf("RFC822", index + 1);
+        }
+        // BODY[section] or BODY.PEEK[section]
+        index = upperCaseParameters.indexOf('[');
+        while (index >= 0) {
+            if (!upperCaseParameters.startsWith("[HEADER.FIELDS", index)) {
+                return true;
+            }
+            index = upperCaseParameters.indexOf('[', index + 1);
+        }
+        return false;
+    }
+
     private void handleFetchOne(Message message, int currentIndex, String parameters) throws IOException, MessagingException {
+        try {
+            writeFetchResponse(message, currentIndex, parameters);
+        } finally {
+            // do not keep message content in memory
+            message.dropMimeMessage();
+        }
+    }
+
+    private void writeFetchResponse(Message message, int currentIndex, String parameters) throws IOException, MessagingException {
         StringBuilder buffer = new StringBuilder();
         MessageWrapper messageWrapper = new MessageWrapper(os, buffer, message);
         buffer.append("* ").append(currentIndex).append(" FETCH (UID ").append(message.getImapUid());
         if (parameters != null) {
+            boolean modSeqRequested = parameters.toUpperCase().contains("MODSEQ");
             StringTokenizer paramTokens = new StringTokenizer(parameters);
             while (paramTokens.hasMoreTokens()) {
                 @SuppressWarnings({"NonConstantStringShouldBeStringBuffer"})
                 String param = paramTokens.nextToken().toUpperCase();
                 if ("FLAGS".equals(param)) {
                     buffer.append(" FLAGS (").append(message.getImapFlags()).append(')');
+                    if (condstoreEnabled && !modSeqRequested) {
+                        buffer.append(" MODSEQ (").append(message.modSeq).append(')');
+                    }
+                } else if ("MODSEQ".equals(param)) {
+                    buffer.append(" MODSEQ (").append(message.modSeq).append(')');
                 } else if ("RFC822.SIZE".equals(param)) {
                     int size;
-                    if (parameters.contains("BODY.PEEK[HEADER.FIELDS (")
+                    if ((parameters.contains("BODY.PEEK[HEADER.FIELDS (")
                             // exclude mutt header request
-                            && ! parameters.contains("X-LABEL")) {
-                        // Header request, send approximate size
+                            && ! parameters.contains("X-LABEL"))
+                            || Settings.getBooleanProperty("davmail.imapAlwaysApproxMsgSize")) {
+                        // Header request or approximate size allowed, send indexed size
                         size = message.size;
                     } else {
                         size = messageWrapper.getMimeMessageSize();
@@ -903,39 +1580,51 @@ public class ImapConnection extends AbstractConnection {
                         }
                     }
 
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    // selected content is buffered in memory or spooled to disk when size is unknown
+                    SpoolOutputStream partBuffer = new SpoolOutputStream();
                     InputStream partInputStream = null;
                     OutputStream partOutputStream = null;
+                    // full message size is known, stream content directly to client
+                    int directSize = -1;
+                    // direct content starts at startIndex unless already selected
+                    int directOffset = startIndex;
 
                     // try to parse message part index
                     String partIndexString = StringUtil.getToken(param, "[", "]");
                     if (("".equals(partIndexString) || partIndexString == null) && !"RFC822.HEADER".equals(param)) {
                         // write message with headers
-                        partOutputStream = new PartialOutputStream(baos, startIndex, maxSize);
+                        directSize = Math.max(0, Math.min(maxSize, messageWrapper.getMimeMessageSize() - startIndex));
                         partInputStream = messageWrapper.getRawInputStream();
+                        if (partInputStream instanceof SharedInputStream && (startIndex > 0 || maxSize != Integer.MAX_VALUE)) {
+                            // partial fetch: read range from cached or spooled content only
+                            InputStream rawInputStream = partInputStream;
+                            partInputStream = IOUtil.getRange((SharedInputStream) rawInputStream, startIndex, maxSize);
+                            rawInputStream.close();
+                            directOffset = 0;
+                        }
                     } else if ("TEXT".equals(partIndexString)) {
                         // write message without headers
-                        partOutputStream = new PartOutputStream(baos, false, true, startIndex, maxSize);
+                        partOutputStream = new PartOutputStream(partBuffer, false, true, startIndex, maxSize);
                         partInputStream = messageWrapper.getRawInputStream();
                     } else if ("RFC822.HEADER".equals(param) || partIndexString.startsWith("HEADER")) {
                         // Header requested fetch  headers
                         String[] requestedHeaders = getRequestedHeaders(partIndexString);
                         // OSX Lion special flags request
                         if (requestedHeaders != null && requestedHeaders.length == 1 && "content-class".equals(requestedHeaders[0]) && message.contentClass != null) {
-                            baos.write("Content-class: ".getBytes("UTF-8"));
-                            baos.write(message.contentClass.getBytes("UTF-8"));
-                            baos.write(13);
-                            baos.write(10);
+                            partBuffer.write("Content-class: ".getBytes("UTF-8"));
+                            partBuffer.write(message.contentClass.getBytes("UTF-8"));
+                            partBuffer.write(13);
+                            partBuffer.write(10);
                         } else if (requestedHeaders == null) {
                             // load message and write all headers
-                            partOutputStream = new PartOutputStream(baos, true, false, startIndex, maxSize);
+                            partOutputStream = new PartOutputStream(partBuffer, true, false, startIndex, maxSize);
                             partInputStream = messageWrapper.getRawInputStream();
                         } else {
                             Enumeration headerEnumeration = messageWrapper.getMatchingHeaderLines(requestedHeaders);
                             while (headerEnumeration.hasMoreElements()) {
-                                baos.write(((String) headerEnumeration.nextElement()).getBytes("UTF-8"));
-                                baos.write(13);
-                                baos.write(10);
+                                partBuffer.write(((String) headerEnumeration.nextElement()).getBytes("UTF-8"));
+                                partBuffer.write(13);
+                                partBuffer.write(10);
                             }
                         }
                     } else {
@@ -968,38 +1657,58 @@ public class ImapConnection extends AbstractConnection {
                         }
 
                         // write selected part, without headers
-                        partOutputStream = new PartialOutputStream(baos, startIndex, maxSize);
                         if (bodyPart instanceof MimeMessage) {
                             partInputStream = ((MimeMessage) bodyPart).getRawInputStream();
                         } else {
                             partInputStream = ((MimeBodyPart) bodyPart).getRawInputStream();
                         }
+                        if (partInputStream instanceof SharedInputStream) {
+                            // part content is a range of message content: send selected range directly
+                            InputStream rawInputStream = partInputStream;
+                            partInputStream = IOUtil.getRange((SharedInputStream) rawInputStream, startIndex, maxSize);
+                            rawInputStream.close();
+                            directSize = partInputStream.available();
+                            directOffset = 0;
+                        } else {
+                            partOutputStream = new PartialOutputStream(partBuffer, startIndex, maxSize);
+                        }
                     }
 
-                    // copy selected content to baos
-                    if (partInputStream != null && partOutputStream != null) {
-                        IOUtil.write(partInputStream, partOutputStream);
-                        partInputStream.close();
-                        partOutputStream.close();
-                    }
-                    baos.close();
+                    try {
+                        // copy selected content to partBuffer
+                        if (partInputStream != null && partOutputStream != null) {
+                            IOUtil.write(partInputStream, partOutputStream);
+                            partInputStream.close();
+                            partOutputStream.close();
+                        }
+                        partBuffer.close();
 
-                    if ("RFC822.HEADER".equals(param)) {
-                        buffer.append(" RFC822.HEADER ");
-                    } else {
-                        buffer.append(" BODY[").append(partIndexString).append(']');
-                    }
-                    // partial
-                    if (startIndex > 0 || maxSize != Integer.MAX_VALUE) {
-                        buffer.append('<').append(startIndex).append('>');
-                    }
-                    buffer.append(" {").append(baos.size()).append('}');
-                    sendClient(buffer.toString());
-                    // log content if less than 2K
-                    if (LOGGER.isDebugEnabled() && baos.size() < 2048) {
-                        LOGGER.debug(new String(baos.toByteArray(), "UTF-8"));
+                        if ("RFC822.HEADER".equals(param)) {
+                            buffer.append(" RFC822.HEADER ");
+                        } else {
+                            buffer.append(" BODY[").append(partIndexString).append(']');
+                        }
+                        // partial
+                        if (startIndex > 0 || maxSize != Integer.MAX_VALUE) {
+                            buffer.append('<').append(startIndex).append('>');
+                        }
+                        if (directSize >= 0) {
+                            buffer.append(" {").append(directSize).append('}');
+                            sendClient(buffer.toString());
+                            IOUtil.write(partInputStream, new PartialOutputStream(os, directOffset, directSize));
+                            partInputStream.close();
+                        } else {
+                            buffer.append(" {").append(partBuffer.size()).append('}');
+                            sendClient(buffer.toString());
+                            // log content if less than 2K
+                            if (LOGGER.isDebugEnabled() && partBuffer.size() < 2048) {
+                                LOGGER.debug(new String(partBuffer.toByteArray(), "UTF-8"));
+                            }
+                            partBuffer.writeTo(os);
+                        }
+                    } finally {
+                        partBuffer.delete();
                     }
-                    os.write(baos.toByteArray());
                     os.flush();
                     buffer.setLength(0);
                 }
@@ -1007,8 +1716,6 @@ public class ImapConnection extends AbstractConnection {
         }
         buffer.append(')');
         sendClient(buffer.toString());
-        // do not keep message content in memory
-        message.dropMimeMessage();
     }
 
     protected String[] getRequestedHeaders(String partIndexString) {
@@ -1025,12 +1732,32 @@ public class ImapConnection extends AbstractConnection {
         }
     }
 
-    protected void handleStore(String commandId, AbstractRangeIterator rangeIterator, String action, String flags) throws IOException {
+    protected void handleStore(String commandId, AbstractRangeIterator rangeIterator, String action, String flags, long unchangedSince) throws IOException {
+        if (unchangedSince >= 0) {
+            enableCondstore();
+        }
+        StringBuilder modified = new StringBuilder();
         while (rangeIterator.hasNext()) {
             DavGatewayTray.switchIcon();
             Message message = rangeIterator.next();
+            if (unchangedSince >= 0 && message.modSeq > unchangedSince) {
+                // conditional store failed: message changed since client mod-sequence
+                if (modified.length() > 0) {
+                    modified.append(',');
+                }
+                modified.append(rangeIterator instanceof UIDRangeIterator ? message.getImapUid() : rangeIterator.getCurrentIndex());
+                continue;
+            }
             updateFlags(message, action, flags);
-            sendClient("* " + (rangeIterator.getCurrentIndex()) + " FETCH (UID " + message.getImapUid() + " FLAGS (" + (message.getImapFlags()) + "))");
+            currentFolder.touch(message);
+            StringBuilder buffer = new StringBuilder();
+            buffer.append("* ").append(rangeIterator.getCurrentIndex()).append(" FETCH (UID ").append(message.getImapUid())
+                    .append(" FLAGS (").append(message.getImapFlags()).append(')');
+            if (condstoreEnabled) {
+                buffer.append(" MODSEQ (").append(message.modSeq).append(')');
+            }
+            buffer.append(')');
+            sendClient(buffer.toString());
         }
         // auto expunge
         if (Settings.getBooleanProperty("davmail.imapAutoExpunge")) {
@@ -1038,10 +1765,28 @@ public class ImapConnection extends AbstractConnection {
                 session.refreshFolder(currentFolder);
             }
         }
-        sendClient(commandId + " OK STORE completed");
+        session.invalidateFolderStatus(currentFolder.folderPath);
+        if (modified.length() > 0) {
+            sendClient(commandId + " OK [MODIFIED " + modified + "] STORE completed");
+        } else {
+            sendClient(commandId + " OK STORE completed");
+        }
     }
 
     protected Condition buildConditions(SearchConditions conditions, IMAPTokenizer tokens) throws IOException {
+        return buildConditions(conditions, tokens, true);
+    }
+
+    /**
+     * Build Exchange search condition, size criteria of a top level AND are left to the client side filter.
+     *
+     * @param conditions     client side search conditions
+     * @param tokens         search criteria
+     * @param clientSideSize true if size criteria can be checked against the folder index
+     * @return Exchange condition
+     * @throws IOException on error
+     */
+    protected Condition buildConditions(SearchConditions conditions, IMAPTokenizer tokens, boolean clientSideSize) throws IOException {
         MultiCondition condition = null;
         while (tokens.hasMoreTokens()) {
             String token = tokens.nextQuotedToken().toUpperCase();
@@ -1050,8 +1795,9 @@ public class ImapConnection extends AbstractConnection {
                 if (condition == null) {
                     condition = session.and();
                 }
-                condition.add(buildConditions(conditions, new IMAPTokenizer(token.substring(1, token.length() - 1))));
+                condition.add(buildConditions(conditions, new IMAPTokenizer(token.substring(1, token.length() - 1)), clientSideSize));
             } else if ("OR".equals(token)) {
+                clientSideSize = false;
                 condition = session.or();
             } else if (token.startsWith("OR ")) {
                 condition = appendOrSearchParams(token, conditions);
@@ -1060,6 +1806,10 @@ public class ImapConnection extends AbstractConnection {
                 if (!("ASCII".equals(charset) || "UTF-8".equals(charset))) {
                     throw new IOException("Unsupported charset " + charset);
                 }
+            } else if (clientSideSize && "LARGER".equals(token)) {
+                conditions.larger = Integer.valueOf(tokens.nextToken());
+            } else if (clientSideSize && "SMALLER".equals(token)) {
+                conditions.smaller = Integer.valueOf(tokens.nextToken());
             } else {
                 if (condition == null) {
                     condition = session.and();
@@ -1071,64 +1821,184 @@ public class ImapConnection extends AbstractConnection {
     }
 
 
-    protected List<Long> handleSearch(IMAPTokenizer tokens) throws IOException {
-        List<Long> uidList = new ArrayList<Long>();
-        List<Long> localMessagesUidList = null;
-        SearchConditions conditions = new SearchConditions();
+    /**
+     * Search with MODSEQ criteria returns highest mod-sequence of matching messages.
+     *
+     * @param buffer     SEARCH response
+     * @param conditions search conditions
+     * @param uidList    sorted matching uids
+     */
+    protected void appendSearchModSeq(StringBuilder buffer, SearchConditions conditions, long[] uidList) {
+        if (conditions.modSeq != null && uidList.length > 0) {
+            long highestModSeq = 0;
+            FolderIndex folderIndex = currentFolder.getIndex();
+            for (int i = 0; i < folderIndex.size(); i++) {
+                if (folderIndex.getModSeq(i) > highestModSeq && Arrays.binarySearch(uidList, folderIndex.getUid(i)) >= 0) {
+                    highestModSeq = folderIndex.getModSeq(i);
+                }
+            }
+            buffer.append(" (MODSEQ ").append(highestModSeq).append(')');
+        }
+    }
+
+    /**
+     * Search current folder messages.
+     *
+     * @param tokens     search criteria
+     * @param conditions client side search conditions
+     * @return sorted matching IMAP uids
+     * @throws IOException on error
+     */
+    protected long[] handleSearch(IMAPTokenizer tokens, SearchConditions conditions) throws IOException {
         Condition condition = buildConditions(conditions, tokens);
+        if (conditions.modSeq != null) {
+            enableCondstore();
+        }
         session.refreshFolder(currentFolder);
-        MessageList localMessages = currentFolder.searchMessages(condition);
+        MessageList localMessages;
+        if (condition == null || condition.isEmpty()) {
+            // client side criteria only, search folder index
+            localMessages = currentFolder.messages;
+        } else {
+            localMessages = currentFolder.searchMessages(condition);
+        }
         Iterator<Message> iterator;
+        long[] localMessagesUids = null;
         if (conditions.uidRange != null) {
             iterator = new UIDRangeIterator(localMessages, conditions.uidRange);
         } else if (conditions.indexRange != null) {
             // range iterator is on folder messages, not messages returned from search
             iterator = new RangeIterator(currentFolder.messages, conditions.indexRange);
-            localMessagesUidList = new ArrayList<Long>();
-            // build search result uid list
-            for (Message message : localMessages) {
-                localMessagesUidList.add(message.getImapUid());
+            if (localMessages != currentFolder.messages) {
+                localMessagesUids = getSortedUids(localMessages);
             }
         } else {
             iterator = localMessages.iterator();
         }
-        // TODO Below is perfect usecase for Guava Filter
+        return filterSearchResult(iterator, localMessagesUids, conditions);
+    }
+
+    /**
+     * Build sorted IMAP uid set from messages.
+     *
+     * @param messages message list
+     * @return sorted uids without duplicates
+     */
+    static long[] getSortedUids(List<Message> messages) {
+        long[] uids = new long[messages.size()];
+        int count = 0;
+        for (Message message : messages) {
+            uids[count++] = message.getImapUid();
+        }
+        return toSortedSet(uids, count);
+    }
+
+    /**
+     * Sort uids and remove duplicates.
+     *
+     * @param uids  uid array
+     * @param count uid count in array
+     * @return sorted uid set
+     */
+    static long[] toSortedSet(long[] uids, int count) {
+        Arrays.sort(uids, 0, count);
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (size == 0 || uids[size - 1] != uids[i]) {
+                uids[size++] = uids[i];
+            }
+        }
+        return size == uids.length ? uids : copyOf(uids, size);
+    }
+
+    static long[] copyOf(long[] uids, int length) {
+        long[] result = new long[length];
+        System.arraycopy(uids, 0, result, 0, Math.min(uids.length, length));
+        return result;
+    }
+
+    /**
+     * Apply client side criteria to search result.
+     *
+     * @param iterator       candidate messages
+     * @param searchUids     sorted uids returned by server search, null if iterator is already on search result
+     * @param conditions     client side criteria: draft flag, minimum mod-sequence and size range
+     * @return sorted matching uids
+     */
+    static long[] filterSearchResult(Iterator<Message> iterator, long[] searchUids, SearchConditions conditions) {
+        long[] uids = new long[searchUids == null ? 16 : searchUids.length];
+        int count = 0;
         while (iterator.hasNext()) {
             Message message = iterator.next();
-            if ((conditions.flagged == null || message.flagged == conditions.flagged)
-                    && (conditions.answered == null || message.answered == conditions.answered)
-                    && (conditions.draft == null || message.draft == conditions.draft)
+            if ((conditions.draft == null || message.draft == conditions.draft)
+                    && (conditions.modSeq == null || message.modSeq >= conditions.modSeq)
+                    && (conditions.larger == null || message.size > conditions.larger)
+                    && (conditions.smaller == null || message.size < conditions.smaller)
                     // range iterator: include messages available in search result
-                    && (localMessagesUidList == null || localMessagesUidList.contains(message.getImapUid()))) {
-                uidList.add(message.getImapUid());
+                    && (searchUids == null || Arrays.binarySearch(searchUids, message.getImapUid()) >= 0)) {
+                if (count == uids.length) {
+                    uids = copyOf(uids, count * 2);
+                }
+                uids[count++] = message.getImapUid();
             }
         }
-        return uidList;
+        return toSortedSet(uids, count);
     }
 
     protected void appendEnvelope(StringBuilder buffer, MessageWrapper message) throws IOException {
-
-        try {
-            MimeMessage mimeMessage = message.getMimeMessage();
-            buffer.append(" ENVELOPE (");
-            // Envelope for date, subject, from, sender, reply-to, to, cc, bcc,in-reply-to, message-id
-            appendEnvelopeHeader(buffer, mimeMessage.getHeader("Date"));
-            appendEnvelopeHeader(buffer, mimeMessage.getHeader("Subject"));
-            appendMailEnvelopeHeader(buffer, mimeMessage.getHeader("From"));
-            appendMailEnvelopeHeader(buffer, mimeMessage.getHeader("Sender"));
-            appendMailEnvelopeHeader(buffer, mimeMessage.getHeader("Reply-To"));
-            appendMailEnvelopeHeader(buffer, mimeMessage.getHeader("To"));
-            appendMailEnvelopeHeader(buffer, mimeMessage.getHeader("CC"));
-            appendMailEnvelopeHeader(buffer, mimeMessage.getHeader("BCC"));
-            appendEnvelopeHeader(buffer, mimeMessage.getHeader("In-Reply-To"));
-            appendEnvelopeHeader(buffer, mimeMessage.getHeader("Message-Id"));
-            buffer.append(')');
-
-        } catch (MessagingException me) {
-            DavGatewayTray.warn(me);
-            // send fake envelope
-            buffer.append(" ENVELOPE (NIL NIL NIL NIL NIL NIL NIL NIL NIL NIL)");
+        MessageStructureCache structureCache = session.getMessageStructureCache();
+        String permanentId = message.message.getPermanentId();
+        String changeKey = message.message.getChangeKey();
+        String envelope = structureCache.getEnvelope(permanentId, changeKey);
+        if (envelope == null) {
+            try {
+                InternetHeaders headers = null;
+                if (!message.message.isContentAvailable()) {
+                    // avoid full message download
+                    headers = message.message.getInternetHeaders();
+                }
+                if (headers == null) {
+                    headers = new InternetHeaders();
+                    Enumeration<?> headerLines = message.getMimeMessage().getAllHeaderLines();
+                    while (headerLines.hasMoreElements()) {
+                        headers.addHeaderLine((String) headerLines.nextElement());
+                    }
+                }
+                envelope = getEnvelope(headers);
+                structureCache.putEnvelope(permanentId, changeKey, envelope);
+            } catch (MessagingException me) {
+                DavGatewayTray.warn(me);
+                // send fake envelope
+                envelope = "(NIL NIL NIL NIL NIL NIL NIL NIL NIL NIL)";
+            }
         }
+        buffer.append(" ENVELOPE ").append(envelope);
+    }
+
+    /**
+     * Build IMAP envelope from message headers.
+     *
+     * @param headers message headers
+     * @return envelope list
+     * @throws MessagingException on error
+     * @throws UnsupportedEncodingException on error
+     */
+    protected String getEnvelope(InternetHeaders headers) throws MessagingException, UnsupportedEncodingException {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append('(');
+        // Envelope for date, subject, from, sender, reply-to, to, cc, bcc,in-reply-to, message-id
+        appendEnvelopeHeader(buffer, headers.getHeader("Date"));
+        appendEnvelopeHeader(buffer, headers.getHeader("Subject"));
+        appendMailEnvelopeHeader(buffer, headers.getHeader("From"));
+        appendMailEnvelopeHeader(buffer, headers.getHeader("Sender"));
+        appendMailEnvelopeHeader(buffer, headers.getHeader("Reply-To"));
+        appendMailEnvelopeHeader(buffer, headers.getHeader("To"));
+        appendMailEnvelopeHeader(buffer, headers.getHeader("CC"));
+        appendMailEnvelopeHeader(buffer, headers.getHeader("BCC"));
+        appendEnvelopeHeader(buffer, headers.getHeader("In-Reply-To"));
+        appendEnvelopeHeader(buffer, headers.getHeader("Message-Id"));
+        buffer.append(')');
+        return buffer.toString();
     }
 
     protected void appendEnvelopeHeader(StringBuilder buffer, String[] value) throws UnsupportedEncodingException {
@@ -1201,26 +2071,34 @@ public class ImapConnection extends AbstractConnection {
     }
 
     protected void appendBodyStructure(StringBuilder buffer, MessageWrapper message) throws IOException {
-
-        buffer.append(" BODYSTRUCTURE ");
-        try {
-            MimeMessage mimeMessage = message.getMimeMessage();
-            Object mimeBody = mimeMessage.getContent();
-            if (mimeBody instanceof MimeMultipart) {
-                appendBodyStructure(buffer, (MimeMultipart) mimeBody);
-            } else {
-                // no multipart, single body
-                appendBodyStructure(buffer, mimeMessage);
+        MessageStructureCache structureCache = session.getMessageStructureCache();
+        String permanentId = message.message.getPermanentId();
+        String changeKey = message.message.getChangeKey();
+        String bodyStructure = structureCache.getBodyStructure(permanentId, changeKey);
+        if (bodyStructure == null) {
+            StringBuilder bodyStructureBuffer = new StringBuilder();
+            try {
+                MimeMessage mimeMessage = message.getMimeMessage();
+                Object mimeBody = mimeMessage.getContent();
+                if (mimeBody instanceof MimeMultipart) {
+                    appendBodyStructure(bodyStructureBuffer, (MimeMultipart) mimeBody);
+                } else {
+                    // no multipart, single body
+                    appendBodyStructure(bodyStructureBuffer, mimeMessage);
+                }
+                bodyStructure = bodyStructureBuffer.toString();
+                structureCache.putBodyStructure(permanentId, changeKey, bodyStructure);
+            } catch (UnsupportedEncodingException e) {
+                DavGatewayTray.warn(e);
+                // failover: send default bodystructure
+                bodyStructure = "(\"TEXT\" \"PLAIN\" (\"CHARSET\" \"US-ASCII\") NIL NIL NIL NIL NIL)";
+            } catch (MessagingException me) {
+                DavGatewayTray.warn(me);
+                // failover: send default bodystructure
+                bodyStructure = "(\"TEXT\" \"PLAIN\" (\"CHARSET\" \"US-ASCII\") NIL NIL NIL NIL NIL)";
             }
-        } catch (UnsupportedEncodingException e) {
-            DavGatewayTray.warn(e);
-            // failover: send default bodystructure
-            buffer.append("(\"TEXT\" \"PLAIN\" (\"CHARSET\" \"US-ASCII\") NIL NIL NIL NIL NIL)");
-        } catch (MessagingException me) {
-            DavGatewayTray.warn(me);
-            // failover: send default bodystructure
-            buffer.append("(\"TEXT\" \"PLAIN\" (\"CHARSET\" \"US-ASCII\") NIL NIL NIL NIL NIL)");
         }
+        buffer.append(" BODYSTRUCTURE ").append(bodyStructure);
     }
 
     protected void appendBodyStructure(StringBuilder buffer, MimeMultipart multiPart) throws IOException, MessagingException {
@@ -1375,13 +2253,32 @@ public class ImapConnection extends AbstractConnection {
      * client side search conditions
      */
     static final class SearchConditions {
-        Boolean flagged;
-        Boolean answered;
+        /**
+         * Draft flag is not available as an Exchange condition.
+         */
         Boolean draft;
+        /**
+         * Mod-sequences are not Exchange properties.
+         */
+        Long modSeq;
+        /**
+         * Top level LARGER and SMALLER criteria are checked against indexed message size.
+         */
+        Integer larger;
+        Integer smaller;
         String indexRange;
         String uidRange;
     }
 
+    /**
+     * Last verb executed is reply to sender or reply to all.
+     *
+     * @return answered condition
+     */
+    protected Condition getAnsweredCondition() {
+        return session.or(session.isEqualTo("lastVerbExecuted", 102), session.isEqualTo("lastVerbExecuted", 103));
+    }
+
     protected MultiCondition appendOrSearchParams(String token, SearchConditions conditions) throws IOException {
         MultiCondition orCondition = session.or();
         IMAPTokenizer innerTokens = new IMAPTokenizer(token);
@@ -1444,13 +2341,14 @@ public class ImapConnection extends AbstractConnection {
             // conditions.deleted = Boolean.FALSE;
             return session.isNull("deleted");
         } else if ("FLAGGED".equals(token)) {
-            conditions.flagged = Boolean.TRUE;
+            return session.isEqualTo("flagStatus", 2);
         } else if ("UNFLAGGED".equals(token) || "NEW".equals(token)) {
-            conditions.flagged = Boolean.FALSE;
+            // missing property means not flagged
+            return session.or(session.isNull("flagStatus"), session.not(session.isEqualTo("flagStatus", 2)));
         } else if ("ANSWERED".equals(token)) {
-            conditions.answered = Boolean.TRUE;
+            return getAnsweredCondition();
         } else if ("UNANSWERED".equals(token)) {
-            conditions.answered = Boolean.FALSE;
+            return session.or(session.isNull("lastVerbExecuted"), session.not(getAnsweredCondition()));
         } else if ("HEADER".equals(token)) {
             String headerName = tokens.nextToken().toLowerCase();
             String value = tokens.nextToken();
@@ -1458,6 +2356,14 @@ public class ImapConnection extends AbstractConnection {
                 value = '<' + value + '>';
             }
             return session.headerIsEqualTo(headerName, value);
+        } else if ("MODSEQ".equals(token)) {
+            String value = tokens.nextToken();
+            if (value.startsWith("/")) {
+                // skip metadata entry name and type
+                tokens.nextToken();
+                value = tokens.nextToken();
+            }
+            conditions.modSeq = Long.parseLong(value);
         } else if ("UID".equals(token)) {
             String range = tokens.nextToken();
             if ("1:*".equals(range)) {
@@ -1515,11 +2421,16 @@ public class ImapConnection extends AbstractConnection {
         boolean hasDeleted = false;
         if (currentFolder.messages != null) {
             int index = 1;
-            for (Message message : currentFolder.messages) {
-                if (message.deleted) {
+            // deleted flags are indexed, build deleted messages only
+            FolderIndex folderIndex = currentFolder.getIndex();
+            for (int i = 0; i < folderIndex.size(); i++) {
+                if (folderIndex.isDeleted(i)) {
+                    Message message = currentFolder.messages.get(i);
                     message.delete();
                     hasDeleted = true;
-                    if (!silent) {
+                    if (qresyncEnabled) {
+                        sendClient("* VANISHED " + message.getImapUid());
+                    } else if (!silent) {
                         sendClient("* " + index + " EXPUNGE");
                     }
                 } else {
@@ -1527,6 +2438,9 @@ public class ImapConnection extends AbstractConnection {
                 }
             }
         }
+        if (hasDeleted) {
+            session.invalidateFolderStatus(currentFolder.folderPath);
+        }
         return hasDeleted;
     }
 
@@ -1736,6 +2650,13 @@ public class ImapConnection extends AbstractConnection {
         protected int getCurrentIndex() {
             return currentIndex;
         }
+
+        /**
+         * Release resources held by iterator when fetch loop exits.
+         */
+        protected void release() {
+            // nothing to release
+        }
     }
 
     protected static class UIDRangeIterator extends AbstractRangeIterator {
@@ -1770,11 +2691,11 @@ public class ImapConnection extends AbstractConnection {
                         startUid = swap;
                     }
                 } else if ("*".equals(currentRange)) {
-                    startUid = endUid = messages.get(messages.size() - 1).getImapUid();
+                    startUid = endUid = messages.getImapUid(messages.size() - 1);
                 } else {
                     startUid = endUid = convertToLong(currentRange);
                 }
-                while (currentIndex < messages.size() && messages.get(currentIndex).getImapUid() < startUid) {
+                while (currentIndex < messages.size() && messages.getImapUid(currentIndex) < startUid) {
                     currentIndex++;
                 }
             } else {
@@ -1783,7 +2704,7 @@ public class ImapConnection extends AbstractConnection {
         }
 
         protected boolean hasNextInRange() {
-            return hasNextIndex() && messages.get(currentIndex).getImapUid() <= endUid;
+            return hasNextIndex() && messages.getImapUid(currentIndex) <= endUid;
         }
 
         protected boolean hasNextIndex() {
@@ -1899,4 +2820,255 @@ public class ImapConnection extends AbstractConnection {
         }
     }
 
+    /**
+     * Skip messages not changed since client mod-sequence (CONDSTORE CHANGEDSINCE).
+     */
+    protected static class ChangedSinceIterator extends AbstractRangeIterator {
+        final AbstractRangeIterator rangeIterator;
+        final long changedSince;
+        Message nextMessage;
+        int nextIndex;
+
+        protected ChangedSinceIterator(AbstractRangeIterator rangeIterator, long changedSince) {
+            super(rangeIterator.messages);
+            this.rangeIterator = rangeIterator;
+            this.changedSince = changedSince;
+        }
+
+        public boolean hasNext() {
+            while (nextMessage == null && rangeIterator.hasNext()) {
+                Message message = rangeIterator.next();
+                if (message.modSeq > changedSince) {
+                    nextMessage = message;
+                    nextIndex = rangeIterator.getCurrentIndex();
+                }
+            }
+            return nextMessage != null;
+        }
+
+        public Message next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Message message = nextMessage;
+            nextMessage = null;
+            currentIndex = nextIndex;
+            return message;
+        }
+
+        @Override
+        protected void release() {
+            rangeIterator.release();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Iterate over a FETCH range and download upcoming message content in batched requests.
+     * A batch is limited by message count and by cumulative message size.
+     */
+    protected static class PrefetchIterator extends AbstractRangeIterator {
+        final AbstractRangeIterator rangeIterator;
+        final ExchangeSession session;
+        final int batchSize;
+        final long maxBatchSize;
+        final LinkedList<Message> batch = new LinkedList<Message>();
+        final LinkedList<Integer> batchIndexes = new LinkedList<Integer>();
+        Message pendingMessage;
+        int pendingIndex;
+        // BODYSTRUCTURE only request: do not download messages with a cached body structure
+        boolean skipCachedBodyStructure;
+        // ENVELOPE and HEADER.FIELDS request: download headers instead of content
+        boolean headersOnly;
+        // ENVELOPE only request: do not download headers of messages with a cached envelope
+        boolean skipCachedEnvelope;
+
+        protected PrefetchIterator(AbstractRangeIterator rangeIterator, ExchangeSession session, int batchSize, long maxBatchSize) {
+            super(rangeIterator.messages);
+            this.rangeIterator = rangeIterator;
+            this.session = session;
+            this.batchSize = batchSize;
+            this.maxBatchSize = maxBatchSize;
+        }
+
+        public boolean hasNext() {
+            return !batch.isEmpty() || pendingMessage != null || rangeIterator.hasNext();
+        }
+
+        protected void fillBatch() {
+            long batchBytes = 0;
+            if (pendingMessage != null) {
+                batch.add(pendingMessage);
+                batchIndexes.add(pendingIndex);
+                batchBytes = pendingMessage.size;
+                pendingMessage = null;
+            }
+            while (batch.size() < batchSize && rangeIterator.hasNext()) {
+                Message message = rangeIterator.next();
+                if (!batch.isEmpty() && batchBytes + message.size > maxBatchSize) {
+                    // message starts next batch
+                    pendingMessage = message;
+                    pendingIndex = rangeIterator.getCurrentIndex();
+                    break;
+                }
+                batch.add(message);
+                batchIndexes.add(rangeIterator.getCurrentIndex());
+                batchBytes += message.size;
+            }
+            List<Message> prefetchMessages = new ArrayList<Message>(batch);
+            if (skipCachedBodyStructure || skipCachedEnvelope) {
+                Iterator<Message> iterator = prefetchMessages.iterator();
+                while (iterator.hasNext()) {
+                    Message message = iterator.next();
+                    if ((skipCachedBodyStructure && message.isBodyStructureCached())
+                            || (skipCachedEnvelope && message.isEnvelopeCached())) {
+                        iterator.remove();
+                    }
+                }
+            }
+            if (prefetchMessages.size() > 1) {
+                try {
+                    if (headersOnly) {
+                        session.prefetchHeaders(prefetchMessages);
+                    } else {
+                        session.prefetchContent(prefetchMessages);
+                    }
+                } catch (IOException e) {
+                    // messages will be loaded one by one
+                    LOGGER.debug("Unable to prefetch messages: " + e.getMessage());
+                }
+            }
+        }
+
+        public Message next() {
+            if (batch.isEmpty()) {
+                fillBatch();
+            }
+            currentIndex = batchIndexes.removeFirst();
+            return batch.removeFirst();
+        }
+
+        @Override
+        protected void release() {
+            for (Message message : batch) {
+                message.setPrefetchedContent(null);
+                message.setPrefetchedHeaders(null);
+            }
+            if (pendingMessage != null) {
+                pendingMessage.setPrefetchedContent(null);
+                pendingMessage.setPrefetchedHeaders(null);
+            }
+            batch.clear();
+            batchIndexes.clear();
+            rangeIterator.release();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Load upcoming message content on the session worker pool while current message is sent to the client.
+     * Read ahead is limited by message count and by cumulative message size.
+     */
+    protected static class ReadAheadIterator extends AbstractRangeIterator {
+        final AbstractRangeIterator rangeIterator;
+        final ExecutorService executor;
+        final int readAheadCount;
+        final long maxReadAheadSize;
+        final LinkedList<ReadAheadEntry> entries = new LinkedList<ReadAheadEntry>();
+        long readAheadSize;
+        // BODYSTRUCTURE only request: do not load messages with a cached body structure
+        boolean skipCachedBodyStructure;
+
+        protected ReadAheadIterator(AbstractRangeIterator rangeIterator, ExecutorService executor, int readAheadCount, long maxReadAheadSize) {
+            super(rangeIterator.messages);
+            this.rangeIterator = rangeIterator;
+            this.executor = executor;
+            this.readAheadCount = readAheadCount;
+            this.maxReadAheadSize = maxReadAheadSize;
+        }
+
+        public boolean hasNext() {
+            return !entries.isEmpty() || rangeIterator.hasNext();
+        }
+
+        protected void fill() {
+            while ((entries.isEmpty() || (entries.size() < readAheadCount && readAheadSize < maxReadAheadSize))
+                    && rangeIterator.hasNext()) {
+                final Message message = rangeIterator.next();
+                Future<?> future = null;
+                if (!message.isLoaded() && !(skipCachedBodyStructure && message.isBodyStructureCached())) {
+                    future = executor.submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            message.loadMimeMessage();
+                            return null;
+                        }
+                    });
+                }
+                entries.add(new ReadAheadEntry(message, rangeIterator.getCurrentIndex(), future));
+                readAheadSize += message.size;
+            }
+        }
+
+        public Message next() {
+            fill();
+            ReadAheadEntry entry = entries.removeFirst();
+            readAheadSize -= entry.message.size;
+            if (entry.future != null) {
+                try {
+                    entry.future.get();
+                } catch (ExecutionException e) {
+                    // message load is retried by fetch, which reports the error
+                    LOGGER.debug("Unable to load message " + entry.message.getImapUid() + " ahead: " + e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            // start loading next messages before current message is sent
+            fill();
+            currentIndex = entry.index;
+            return entry.message;
+        }
+
+        @Override
+        protected void release() {
+            for (ReadAheadEntry entry : entries) {
+                if (entry.future != null && !entry.future.cancel(false)) {
+                    try {
+                        entry.future.get();
+                    } catch (ExecutionException e) {
+                        // ignore
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                entry.message.releaseMimeMessage();
+            }
+            entries.clear();
+            readAheadSize = 0;
+            rangeIterator.release();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    protected static class ReadAheadEntry {
+        final Message message;
+        final int index;
+        final Future<?> future;
+
+        protected ReadAheadEntry(Message message, int index, Future<?> future) {
+            this.message = message;
+            this.index = index;
+            this.future = future;
+        }
+    }
+
 }
\ No newline at end of file
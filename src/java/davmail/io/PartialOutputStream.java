@@ -27,4 +27,16 @@ public final class PartialOutputStream extends FilterOutputStream {
             bufferSize++;
         }
     }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        // skip content before startIndex
+        int skipCount = Math.max(0, Math.min(length, startIndex - size));
+        int count = Math.min(length - skipCount, maxSize - bufferSize);
+        if (count > 0) {
+            out.write(bytes, offset + skipCount, count);
+            bufferSize += count;
+        }
+        size += length;
+    }
 }
@@ -0,0 +1,220 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.io;
+
+import davmail.util.IOUtil;
+
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Spool output stream: keep content in memory up to threshold, then switch to a temporary file.
+ * Used to bound heap usage on large message content.
+ */
+public class SpoolOutputStream extends OutputStream {
+    /**
+     * Default threshold, larger content is spooled to disk.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+    private final int threshold;
+    private ByteArrayOutputStream memoryOutputStream = new ByteArrayOutputStream();
+    private File file;
+    private OutputStream fileOutputStream;
+    private long size;
+    private boolean closed;
+
+    /**
+     * Create spool output stream with default threshold.
+     */
+    public SpoolOutputStream() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Create spool output stream.
+     *
+     * @param threshold memory threshold in bytes
+     */
+    public SpoolOutputStream(int threshold) {
+        this.threshold = threshold;
+    }
+
+    protected OutputStream getOutputStream(int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (fileOutputStream == null && size + length > threshold) {
+            file = File.createTempFile("davmail", ".spool");
+            fileOutputStream = new BufferedOutputStream(new FileOutputStream(file));
+            memoryOutputStream.writeTo(fileOutputStream);
+            memoryOutputStream = null;
+        }
+        if (fileOutputStream != null) {
+            return fileOutputStream;
+        } else {
+            return memoryOutputStream;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        getOutputStream(1).write(b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        getOutputStream(length).write(bytes, offset, length);
+        size += length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            if (fileOutputStream != null) {
+                fileOutputStream.close();
+            }
+        }
+    }
+
+    /**
+     * Content size.
+     *
+     * @return size in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * True if content was spooled to a temporary file.
+     *
+     * @return true if content is on disk
+     */
+    public boolean isSpooled() {
+        return file != null;
+    }
+
+    /**
+     * Write content to output stream.
+     *
+     * @param outputStream output stream
+     * @throws IOException on error
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        close();
+        if (file != null) {
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                IOUtil.write(inputStream, outputStream);
+            } finally {
+                inputStream.close();
+            }
+        } else if (memoryOutputStream != null) {
+            memoryOutputStream.writeTo(outputStream);
+        }
+    }
+
+    /**
+     * Get content as byte array, should only be used on small content.
+     *
+     * @return content
+     * @throws IOException on error
+     */
+    public byte[] toByteArray() throws IOException {
+        if (file != null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            writeTo(baos);
+            return baos.toByteArray();
+        } else if (memoryOutputStream != null) {
+            return memoryOutputStream.toByteArray();
+        } else {
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Get content as a shared input stream suitable for MimeMessage parsing:
+     * a SharedByteArrayInputStream for in memory content or a SharedFileInputStream
+     * that deletes the temporary file when closed.
+     *
+     * @return shared input stream
+     * @throws IOException on error
+     */
+    public InputStream getInputStream() throws IOException {
+        close();
+        if (file != null) {
+            final File spoolFile = file;
+            // temporary file now belongs to input stream
+            file = null;
+            memoryOutputStream = null;
+            return new SharedFileInputStream(spoolFile) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (spoolFile.exists() && !spoolFile.delete()) {
+                            spoolFile.deleteOnExit();
+                        }
+                    }
+                }
+            };
+        } else if (memoryOutputStream != null) {
+            return new SharedByteArrayInputStream(memoryOutputStream.toByteArray());
+        } else {
+            throw new IOException("Stream content already released");
+        }
+    }
+
+    /**
+     * Close stream and delete temporary file.
+     */
+    public void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            // ignore
+        }
+        if (file != null) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            file = null;
+        }
+        memoryOutputStream = null;
+    }
+}
@@ -402,6 +402,16 @@ public class LdapConnection extends AbstractConnection {
         }
     }
 
+    /**
+     * LDAP requests are read from a binary stream, connection keeps its own thread.
+     *
+     * @return false
+     */
+    @Override
+    protected boolean isParkable() {
+        return false;
+    }
+
     protected boolean isLdapV3() {
         return ldapVersion == LDAP_VERSION3;
     }
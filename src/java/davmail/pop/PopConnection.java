@@ -90,12 +90,19 @@ public class PopConnection extends AbstractConnection {
     public void run() {
         String line;
         StringTokenizer tokens;
+        boolean parked = false;
 
         try {
-            sessionFactory.checkConfig();
-            sendOK("DavMail " + DavGateway.getCurrentVersion() + " POP ready at " + new Date());
+            if (!resumed) {
+                sessionFactory.checkConfig();
+                sendOK("DavMail " + DavGateway.getCurrentVersion() + " POP ready at " + new Date());
+            }
 
             for (; ;) {
+                if (parkUntilReadable()) {
+                    parked = true;
+                    return;
+                }
                 line = readClient();
                 // unable to read line, connection closed ?
                 if (line == null) {
@@ -162,7 +169,9 @@ public class PopConnection extends AbstractConnection {
                 DavGatewayTray.debug(new BundleMessage("LOG_EXCEPTION_SENDING_ERROR_TO_CLIENT"), e2);
             }
         } finally {
-            close();
+            if (!parked) {
+                close();
+            }
         }
         DavGatewayTray.resetIcon();
     }
@@ -266,6 +275,8 @@ public class PopConnection extends AbstractConnection {
                 DoubleDotOutputStream doubleDotOutputStream = new DoubleDotOutputStream(os);
                 IOUtil.write(message.getRawInputStream(), doubleDotOutputStream);
                 doubleDotOutputStream.close();
+                // do not keep message content in memory
+                message.dropMimeMessage();
                 if (Settings.getBooleanProperty("davmail.popMarkReadOnRetr")) {
                     message.markRead();
                 }
@@ -310,6 +321,7 @@ public class PopConnection extends AbstractConnection {
             DoubleDotOutputStream doubleDotOutputStream = new DoubleDotOutputStream(os);
             IOUtil.write(m.getRawInputStream(), new TopOutputStream(doubleDotOutputStream, lines));
             doubleDotOutputStream.close();
+            m.dropMimeMessage();
         } catch (NumberFormatException e) {
             sendERR("invalid command");
         } catch (IndexOutOfBoundsException e) {
@@ -57,11 +57,18 @@ public class SmtpConnection extends AbstractConnection {
 
     @Override
     public void run() {
+        boolean parked = false;
 
         try {
-            sessionFactory.checkConfig();
-            sendClient("220 DavMail " + DavGateway.getCurrentVersion() + " SMTP ready at " + new Date());
+            if (!resumed) {
+                sessionFactory.checkConfig();
+                sendClient("220 DavMail " + DavGateway.getCurrentVersion() + " SMTP ready at " + new Date());
+            }
             for (; ;) {
+                if (parkUntilReadable()) {
+                    parked = true;
+                    return;
+                }
                 String line = readClient();
                 // unable to read line, connection closed ?
                 if (line == null) {
@@ -125,7 +132,9 @@ public class SmtpConnection extends AbstractConnection {
                 DavGatewayTray.debug(new BundleMessage("LOG_EXCEPTION_SENDING_ERROR_TO_CLIENT"), e2);
             }
         } finally {
-            close();
+            if (!parked) {
+                close();
+            }
         }
         DavGatewayTray.resetIcon();
     }
@@ -19,6 +19,7 @@
 package davmail.util;
 
 import javax.imageio.ImageIO;
+import javax.mail.internet.SharedInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
@@ -46,6 +47,23 @@ public final class IOUtil {
     }
 
 
+    /**
+     * Select a byte range of shared content (message content in memory or spooled to a file),
+     * bytes before range are not read and content is not copied.
+     *
+     * @param inputStream shared input stream at start position
+     * @param startIndex  range start
+     * @param maxSize     maximum range length
+     * @return range input stream
+     * @throws IOException on error
+     */
+    public static InputStream getRange(SharedInputStream inputStream, int startIndex, int maxSize) throws IOException {
+        long length = ((InputStream) inputStream).available();
+        long start = Math.min(startIndex, length);
+        long end = Math.min(start + maxSize, length);
+        return inputStream.newStream(start, end);
+    }
+
     /**
      * Resize image bytes to a max width or height image size.
      *
@@ -0,0 +1,76 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange;
+
+import junit.framework.TestCase;
+
+/**
+ * Test rendered CalDAV item body cache.
+ */
+public class TestItemBodyCache extends TestCase {
+    public void testGet() {
+        ItemBodyCache itemBodyCache = new ItemBodyCache("user", 1000, null);
+        itemBodyCache.put("calendar", "event1.ics", "etag1", "BEGIN:VCALENDAR");
+        assertEquals("BEGIN:VCALENDAR", itemBodyCache.get("calendar", "event1.ics", "etag1"));
+        // item updated on server
+        assertNull(itemBodyCache.get("calendar", "event1.ics", "etag2"));
+        assertNull(itemBodyCache.get("calendar", "event1.ics", null));
+        assertNull(itemBodyCache.get("contacts", "event1.ics", "etag1"));
+        // new etag replaces previous entry
+        itemBodyCache.put("calendar", "event1.ics", "etag2", "BEGIN:VCALENDAR2");
+        assertEquals(1, itemBodyCache.getCount());
+        assertEquals("BEGIN:VCALENDAR2".length() * 2L, itemBodyCache.getSize());
+    }
+
+    public void testSizeEviction() {
+        ItemBodyCache itemBodyCache = new ItemBodyCache("user", 40, null);
+        itemBodyCache.put("calendar", "event1.ics", "etag", "0123456789");
+        assertEquals(20, itemBodyCache.getSize());
+        itemBodyCache.put("calendar", "event2.ics", "etag", "0123456789");
+        itemBodyCache.put("calendar", "event3.ics", "etag", "0123456789");
+        assertEquals(2, itemBodyCache.getCount());
+        assertEquals(40, itemBodyCache.getSize());
+        assertNull(itemBodyCache.get("calendar", "event1.ics", "etag"));
+        // larger than cache
+        itemBodyCache.put("calendar", "event4.ics", "etag", "012345678901234567890");
+        assertNull(itemBodyCache.get("calendar", "event4.ics", "etag"));
+    }
+
+    public void testInvalidation() {
+        ItemBodyCache itemBodyCache = new ItemBodyCache("user", 1000, null);
+        itemBodyCache.checkCtag("calendar", "ctag1");
+        itemBodyCache.put("calendar", "event1.ics", "etag", "event1");
+        itemBodyCache.put("calendar", "event2.ics", "etag", "event2");
+        itemBodyCache.put("contacts", "contact1.vcf", "etag", "contact1");
+        itemBodyCache.checkCtag("calendar", "ctag1");
+        assertEquals(3, itemBodyCache.getCount());
+
+        // local update does not drop other folder items on next ctag check
+        itemBodyCache.remove("calendar", "event1.ics");
+        assertNull(itemBodyCache.get("calendar", "event1.ics", "etag"));
+        itemBodyCache.checkCtag("calendar", "ctag2");
+        assertEquals("event2", itemBodyCache.get("calendar", "event2.ics", "etag"));
+
+        // folder changed on server
+        itemBodyCache.checkCtag("calendar", "ctag3");
+        assertNull(itemBodyCache.get("calendar", "event2.ics", "etag"));
+        assertEquals("contact1", itemBodyCache.get("contacts", "contact1.vcf", "etag"));
+        assertEquals(8 * 2L, itemBodyCache.getSize());
+    }
+}
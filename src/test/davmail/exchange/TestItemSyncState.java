@@ -0,0 +1,78 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Test sync-collection snapshots.
+ */
+public class TestItemSyncState extends TestCase {
+    protected HashMap<String, String> getEtags(String... values) {
+        HashMap<String, String> etags = new HashMap<String, String>();
+        for (int i = 0; i < values.length; i += 2) {
+            etags.put(values[i], values[i + 1]);
+        }
+        return etags;
+    }
+
+    public void testSnapshots() {
+        ItemSyncState itemSyncState = new ItemSyncState(2);
+        ItemSyncState.Snapshot snapshot1 = itemSyncState.addSnapshot("calendar", "ctag1", getEtags("event1.ics", "e1"));
+        assertSame(snapshot1, itemSyncState.getSnapshot("calendar", snapshot1.getToken()));
+        assertSame(snapshot1, itemSyncState.getCurrentSnapshot("calendar", "ctag1"));
+        assertNull(itemSyncState.getCurrentSnapshot("calendar", "ctag2"));
+        // same content, same token
+        assertSame(snapshot1, itemSyncState.addSnapshot("calendar", "ctag1", getEtags("event1.ics", "e1")));
+        // token of another folder
+        assertNull(itemSyncState.getSnapshot("contacts", snapshot1.getToken()));
+        assertNull(itemSyncState.getSnapshot("calendar", "invalid"));
+        assertNull(itemSyncState.getSnapshot("calendar", ItemSyncState.TOKEN_PREFIX + "x"));
+
+        ItemSyncState.Snapshot snapshot2 = itemSyncState.addSnapshot("calendar", "ctag2", getEtags("event1.ics", "e2"));
+        assertFalse(snapshot1.getToken().equals(snapshot2.getToken()));
+        itemSyncState.addSnapshot("calendar", "ctag3", getEtags());
+        // expired
+        assertNull(itemSyncState.getSnapshot("calendar", snapshot1.getToken()));
+        assertSame(snapshot2, itemSyncState.getSnapshot("calendar", snapshot2.getToken()));
+    }
+
+    public void testChanges() {
+        List<String> changed = new ArrayList<String>();
+        List<String> removed = new ArrayList<String>();
+        ItemSyncState.getChanges(getEtags("event1.ics", "e1", "event2.ics", "e2", "event3.ics", "e3"),
+                getEtags("event1.ics", "e1", "event2.ics", "e2b", "event4.ics", "e4"), changed, removed);
+        assertEquals(2, changed.size());
+        assertTrue(changed.contains("event2.ics"));
+        assertTrue(changed.contains("event4.ics"));
+        assertEquals(1, removed.size());
+        assertEquals("event3.ics", removed.get(0));
+
+        // initial synchronization
+        changed.clear();
+        removed.clear();
+        ItemSyncState.getChanges(null, getEtags("event1.ics", "e1"), changed, removed);
+        assertEquals(1, changed.size());
+        assertTrue(removed.isEmpty());
+    }
+}
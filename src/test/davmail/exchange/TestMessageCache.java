@@ -0,0 +1,79 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange;
+
+import junit.framework.TestCase;
+
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * Test session message cache.
+ */
+public class TestMessageCache extends TestCase {
+    protected SharedByteArrayInputStream buildContent(int size) {
+        return new SharedByteArrayInputStream(new byte[size]);
+    }
+
+    public void testGet() {
+        MessageCache messageCache = new MessageCache(1000);
+        messageCache.put(MessageCache.getKey("id1", "ck1"), buildContent(100));
+        assertNotNull(messageCache.get(MessageCache.getKey("id1", "ck1")));
+        // message updated
+        assertNull(messageCache.get(MessageCache.getKey("id1", "ck2")));
+        assertEquals(100, messageCache.getSize());
+    }
+
+    public void testIndependentStreams() {
+        MessageCache messageCache = new MessageCache(1000);
+        messageCache.put("id1", buildContent(100));
+        SharedByteArrayInputStream first = messageCache.get("id1");
+        first.skip(50);
+        assertEquals(50, first.available());
+        assertEquals(100, messageCache.get("id1").available());
+    }
+
+    public void testLruEviction() {
+        MessageCache messageCache = new MessageCache(300);
+        messageCache.put("id1", buildContent(100));
+        messageCache.put("id2", buildContent(100));
+        messageCache.put("id3", buildContent(100));
+        // access id1 to make id2 eldest
+        assertNotNull(messageCache.get("id1"));
+        messageCache.put("id4", buildContent(100));
+        assertNull(messageCache.get("id2"));
+        assertNotNull(messageCache.get("id1"));
+        assertEquals(3, messageCache.getCount());
+        assertEquals(300, messageCache.getSize());
+    }
+
+    public void testOversizedContent() {
+        MessageCache messageCache = new MessageCache(300);
+        messageCache.put("id1", buildContent(100));
+        messageCache.put("id2", buildContent(400));
+        assertNull(messageCache.get("id2"));
+        assertNotNull(messageCache.get("id1"));
+    }
+
+    public void testDisabled() {
+        MessageCache messageCache = new MessageCache(0);
+        messageCache.put("id1", buildContent(100));
+        assertNull(messageCache.get("id1"));
+        assertEquals(0, messageCache.getSize());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Test persistent message store.
+ */
+public class TestMessageStore extends TestCase {
+    protected File directory;
+
+    @Override
+    public void setUp() throws IOException {
+        directory = File.createTempFile("davmail", "store");
+        directory.delete();
+    }
+
+    @Override
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    protected byte[] buildContent(int size, int value) {
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) value);
+        return content;
+    }
+
+    public void testGet() throws IOException {
+        MessageStore messageStore = new MessageStore(directory, 10000, 1000);
+        messageStore.put("user", "id1", "ck1", buildContent(100, 1));
+        assertTrue(Arrays.equals(buildContent(100, 1), messageStore.get("user", "id1", "ck1")));
+        // changed message
+        assertNull(messageStore.get("user", "id1", "ck2"));
+        // other user
+        assertNull(messageStore.get("other", "id1", "ck1"));
+        messageStore.close();
+    }
+
+    public void testReopen() throws IOException {
+        MessageStore messageStore = new MessageStore(directory, 10000, 1000);
+        for (int i = 0; i < 20; i++) {
+            messageStore.put("user", "id" + i, "ck", buildContent(100, i));
+        }
+        messageStore.put("user", "id0", "ck2", buildContent(50, 99));
+        messageStore.close();
+
+        messageStore = new MessageStore(directory, 10000, 1000);
+        assertEquals(20, messageStore.getCount());
+        assertTrue(Arrays.equals(buildContent(100, 5), messageStore.get("user", "id5", "ck")));
+        assertNull(messageStore.get("user", "id0", "ck"));
+        assertTrue(Arrays.equals(buildContent(50, 99), messageStore.get("user", "id0", "ck2")));
+        messageStore.close();
+    }
+
+    public void testTruncatedSegment() throws IOException {
+        MessageStore messageStore = new MessageStore(directory, 10000, 1000);
+        messageStore.put("user", "id1", "ck", buildContent(100, 1));
+        messageStore.put("user", "id2", "ck", buildContent(100, 2));
+        messageStore.close();
+
+        File segmentFile = new File(directory, "segment-1.dat");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(segmentFile, "rw");
+        randomAccessFile.setLength(randomAccessFile.length() - 10);
+        randomAccessFile.close();
+
+        messageStore = new MessageStore(directory, 10000, 1000);
+        assertNotNull(messageStore.get("user", "id1", "ck"));
+        assertNull(messageStore.get("user", "id2", "ck"));
+        messageStore.put("user", "id3", "ck", buildContent(100, 3));
+        assertTrue(Arrays.equals(buildContent(100, 3), messageStore.get("user", "id3", "ck")));
+        messageStore.close();
+    }
+
+    public void testSizeLimit() throws IOException {
+        MessageStore messageStore = new MessageStore(directory, 2000, 500);
+        for (int i = 0; i < 50; i++) {
+            messageStore.put("user", "id" + i, "ck", buildContent(100, i));
+        }
+        assertTrue(messageStore.getSize() <= 2000);
+        // oldest messages dropped
+        assertNull(messageStore.get("user", "id0", "ck"));
+        assertNotNull(messageStore.get("user", "id49", "ck"));
+        messageStore.close();
+    }
+
+    public void testCompaction() throws IOException {
+        MessageStore messageStore = new MessageStore(directory, 100000, 500);
+        for (int i = 0; i < 4; i++) {
+            messageStore.put("user", "id" + i, "ck", buildContent(100, i));
+        }
+        // update most messages of first segment
+        for (int i = 0; i < 3; i++) {
+            messageStore.put("user", "id" + i, "ck2", buildContent(100, i));
+        }
+        for (int i = 4; i < 12; i++) {
+            messageStore.put("user", "id" + i, "ck", buildContent(100, i));
+        }
+        assertFalse(new File(directory, "segment-1.dat").exists());
+        assertTrue(Arrays.equals(buildContent(100, 3), messageStore.get("user", "id3", "ck")));
+        assertTrue(Arrays.equals(buildContent(100, 1), messageStore.get("user", "id1", "ck2")));
+        assertEquals(12, messageStore.getCount());
+        messageStore.close();
+    }
+
+    public void testWriteToPinnedSegment() throws IOException {
+        final MessageStore messageStore = new MessageStore(directory, 2000, 500);
+        messageStore.put("user", "id0", "ck", buildContent(100, 1));
+        final File segmentFile = new File(directory, "segment-1.dat");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) {
+                // fill store while message is copied: first segment is dropped
+                for (int i = 1; i < 50; i++) {
+                    messageStore.put("user", "id" + i, "ck", buildContent(100, i));
+                }
+                assertNull(messageStore.get("user", "id0", "ck"));
+                assertTrue(segmentFile.exists());
+                super.write(bytes, offset, length);
+            }
+        };
+        assertTrue(messageStore.writeTo("user", "id0", "ck", outputStream));
+        assertTrue(Arrays.equals(buildContent(100, 1), outputStream.toByteArray()));
+        // deleted on unpin
+        assertFalse(segmentFile.exists());
+        messageStore.close();
+    }
+
+    public void testCompactionDeferredWhilePinned() throws IOException {
+        final MessageStore messageStore = new MessageStore(directory, 100000, 500);
+        for (int i = 0; i < 4; i++) {
+            messageStore.put("user", "id" + i, "ck", buildContent(100, i));
+        }
+        final File segmentFile = new File(directory, "segment-1.dat");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) {
+                for (int i = 0; i < 3; i++) {
+                    messageStore.put("user", "id" + i, "ck2", buildContent(100, i));
+                }
+                for (int i = 4; i < 12; i++) {
+                    messageStore.put("user", "id" + i, "ck", buildContent(100, i));
+                }
+                // sparse segment is pinned, not compacted
+                assertTrue(segmentFile.exists());
+                super.write(bytes, offset, length);
+            }
+        };
+        assertTrue(messageStore.writeTo("user", "id3", "ck", outputStream));
+        assertTrue(Arrays.equals(buildContent(100, 3), outputStream.toByteArray()));
+        messageStore.put("user", "id12", "ck", buildContent(100, 12));
+        assertFalse(segmentFile.exists());
+        assertTrue(Arrays.equals(buildContent(100, 3), messageStore.get("user", "id3", "ck")));
+        messageStore.close();
+    }
+
+    public void testEmptySegmentDeletedOnStart() throws IOException {
+        MessageStore messageStore = new MessageStore(directory, 10000, 1000);
+        messageStore.put("user", "id1", "ck", buildContent(100, 1));
+        messageStore.close();
+        // segment truncated on drop, file delete failed
+        File segmentFile = new File(directory, "segment-2.dat");
+        new RandomAccessFile(segmentFile, "rw").close();
+
+        messageStore = new MessageStore(directory, 10000, 1000);
+        assertFalse(segmentFile.exists());
+        assertEquals(1, messageStore.getCount());
+        messageStore.put("user", "id2", "ck", buildContent(100, 2));
+        assertTrue(Arrays.equals(buildContent(100, 2), messageStore.get("user", "id2", "ck")));
+        messageStore.close();
+    }
+}
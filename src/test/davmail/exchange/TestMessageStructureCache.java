@@ -0,0 +1,91 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Test IMAP envelope and body structure cache.
+ */
+public class TestMessageStructureCache extends TestCase {
+    protected File directory;
+
+    @Override
+    public void setUp() throws IOException {
+        directory = File.createTempFile("davmail", "structure");
+        directory.delete();
+    }
+
+    @Override
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testGet() {
+        MessageStructureCache structureCache = new MessageStructureCache("user", 10, null);
+        structureCache.putEnvelope("id1", "ck1", "(NIL \"subject\")");
+        assertEquals("(NIL \"subject\")", structureCache.getEnvelope("id1", "ck1"));
+        assertNull(structureCache.getBodyStructure("id1", "ck1"));
+        structureCache.putBodyStructure("id1", "ck1", "(\"TEXT\" \"PLAIN\")");
+        assertEquals("(NIL \"subject\")", structureCache.getEnvelope("id1", "ck1"));
+        assertTrue(structureCache.containsBodyStructure("id1", "ck1"));
+        // message updated
+        assertNull(structureCache.getEnvelope("id1", "ck2"));
+        assertFalse(structureCache.containsBodyStructure("id1", "ck2"));
+    }
+
+    public void testLruEviction() {
+        MessageStructureCache structureCache = new MessageStructureCache("user", 2, null);
+        structureCache.putEnvelope("id1", "ck", "(1)");
+        structureCache.putEnvelope("id2", "ck", "(2)");
+        // access id1 to make id2 eldest
+        assertNotNull(structureCache.getEnvelope("id1", "ck"));
+        structureCache.putEnvelope("id3", "ck", "(3)");
+        assertEquals(2, structureCache.getCount());
+        assertNull(structureCache.getEnvelope("id2", "ck"));
+        assertNotNull(structureCache.getEnvelope("id1", "ck"));
+    }
+
+    public void testPersistentStore() throws IOException {
+        MessageStore messageStore = new MessageStore(directory, 100000, 10000);
+        MessageStructureCache structureCache = new MessageStructureCache("user", 10, messageStore);
+        structureCache.putEnvelope("id1", "ck1", "(NIL \"subject\")");
+        structureCache.putBodyStructure("id1", "ck1", "(\"TEXT\" \"PLAIN\")");
+        messageStore.close();
+
+        // new session after restart
+        messageStore = new MessageStore(directory, 100000, 10000);
+        structureCache = new MessageStructureCache("user", 10, messageStore);
+        assertEquals("(NIL \"subject\")", structureCache.getEnvelope("id1", "ck1"));
+        assertEquals("(\"TEXT\" \"PLAIN\")", structureCache.getBodyStructure("id1", "ck1"));
+        assertNull(structureCache.getEnvelope("id1", "ck2"));
+        // other user
+        assertNull(new MessageStructureCache("other", 10, messageStore).getEnvelope("id1", "ck1"));
+        messageStore.close();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Test VCalendar parsing and serialization.
+ */
+public class TestVCalendar extends TestCase {
+    protected String getRecurringEvent(int exceptionCount) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("BEGIN:VCALENDAR\r\n" +
+                "PRODID:Microsoft Exchange Server 2007\r\n" +
+                "VERSION:2.0\r\n" +
+                "BEGIN:VTIMEZONE\r\n" +
+                "TZID:Romance Standard Time\r\n" +
+                "BEGIN:STANDARD\r\n" +
+                "DTSTART:16010101T030000\r\n" +
+                "TZOFFSETFROM:+0200\r\n" +
+                "TZOFFSETTO:+0100\r\n" +
+                "RRULE:FREQ=YEARLY;INTERVAL=1;BYDAY=-1SU;BYMONTH=10\r\n" +
+                "END:STANDARD\r\n" +
+                "BEGIN:DAYLIGHT\r\n" +
+                "DTSTART:16010101T020000\r\n" +
+                "TZOFFSETFROM:+0100\r\n" +
+                "TZOFFSETTO:+0200\r\n" +
+                "RRULE:FREQ=YEARLY;INTERVAL=1;BYDAY=-1SU;BYMONTH=3\r\n" +
+                "END:DAYLIGHT\r\n" +
+                "END:VTIMEZONE\r\n");
+        for (int i = 0; i <= exceptionCount; i++) {
+            buffer.append("BEGIN:VEVENT\r\n" +
+                    "ORGANIZER;CN=\"Organizer, Test\":MAILTO:organizer@company.com\r\n" +
+                    "ATTENDEE;ROLE=REQ-PARTICIPANT;PARTSTAT=NEEDS-ACTION;RSVP=TRUE;CN=\"Attendee, Test\"\r\n" +
+                    " :MAILTO:attendee@company.com\r\n" +
+                    "DESCRIPTION;LANGUAGE=en-US:Weekly meeting description, long enough to be fo\r\n" +
+                    " lded on several lines by Exchange\\nsecond line of the description\\n\r\n" +
+                    "SUMMARY;LANGUAGE=en-US:Weekly meeting\r\n" +
+                    "LOCATION;LANGUAGE=en-US:Room 1\\, building 2\r\n" +
+                    "DTSTART;TZID=Romance Standard Time:20100104T100000\r\n" +
+                    "DTEND;TZID=Romance Standard Time:20100104T110000\r\n" +
+                    "UID:040000008200E00074C5B7101A82E00800000000B0B02F5A4E8DCA01000000000000000\r\n" +
+                    " 010000000A2B1C3C3D4E5F6A7B8C9D0E1F2A3B4C5\r\n");
+            if (i == 0) {
+                buffer.append("RRULE:FREQ=WEEKLY;INTERVAL=1;BYDAY=MO;WKST=MO\r\n");
+            } else {
+                buffer.append("RECURRENCE-ID;TZID=Romance Standard Time:2010").append(1000 + i).append("T100000\r\n");
+            }
+            buffer.append("CLASS:PUBLIC\r\n" +
+                    "PRIORITY:5\r\n" +
+                    "DTSTAMP:20100101T120000Z\r\n" +
+                    "TRANSP:OPAQUE\r\n" +
+                    "STATUS:CONFIRMED\r\n" +
+                    "SEQUENCE:0\r\n" +
+                    "X-MICROSOFT-CDO-BUSYSTATUS:BUSY\r\n" +
+                    "BEGIN:VALARM\r\n" +
+                    "ACTION:DISPLAY\r\n" +
+                    "DESCRIPTION:REMINDER\r\n" +
+                    "TRIGGER;RELATED=START:-PT15M\r\n" +
+                    "END:VALARM\r\n" +
+                    "END:VEVENT\r\n");
+        }
+        buffer.append("END:VCALENDAR\r\n");
+        return buffer.toString();
+    }
+
+    public void testWriteLineFolding() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 77; i++) {
+            line.append((char) ('a' + i % 26));
+        }
+        ICSBufferedWriter writer = new ICSBufferedWriter();
+        writer.writeLine(line.toString());
+        assertEquals(line + "\r\n", writer.toString());
+
+        line.append("0123456789");
+        writer = new ICSBufferedWriter();
+        writer.writeLine(line.toString());
+        assertEquals(line.substring(0, 77) + "\r\n " + line.substring(77) + "\r\n", writer.toString());
+    }
+
+    public void testLongLineRoundTrip() throws IOException {
+        // large inline attachment, folded in a single pass
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 300000; i++) {
+            value.append(i).append(' ');
+        }
+        ICSBufferedWriter writer = new ICSBufferedWriter();
+        writer.appendProperty("DESCRIPTION", value.toString());
+        for (String line : writer.toString().split("\r\n")) {
+            assertTrue(line.length() <= 77);
+        }
+        ICSBufferedReader reader = new ICSBufferedReader(new StringReader(writer.toString()));
+        assertEquals("DESCRIPTION:" + value, reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    public void testRoundTrip() throws IOException {
+        VCalendar vCalendar = new VCalendar(getRecurringEvent(2), "attendee@company.com", null);
+        String body = vCalendar.toString();
+        assertEquals(body, new VCalendar(body, "attendee@company.com", null).toString());
+
+        VObject firstEvent = vCalendar.vObjects.get(1);
+        assertEquals("Room 1, building 2", firstEvent.getPropertyValue("LOCATION"));
+        assertTrue(body.contains("LOCATION;LANGUAGE=en-US:Room 1\\, building 2\r\n"));
+        assertEquals("MAILTO:attendee@company.com", firstEvent.getProperty("ATTENDEE").getValue());
+        assertTrue(firstEvent.getPropertyValue("DESCRIPTION").endsWith("Exchange\nsecond line of the description\n"));
+        assertEquals(3, vCalendar.vObjects.size() - 1);
+    }
+
+    public void testLargeRecurringEvent() throws IOException {
+        String itemBody = getRecurringEvent(500);
+        String body = null;
+        // warm up
+        for (int i = 0; i < 20; i++) {
+            VCalendar vCalendar = new VCalendar(itemBody, "attendee@company.com", null);
+            vCalendar.fixVCalendar(true);
+            body = vCalendar.toString();
+        }
+        int count = 20;
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            VCalendar vCalendar = new VCalendar(itemBody, "attendee@company.com", null);
+            vCalendar.fixVCalendar(true);
+            body = vCalendar.toString();
+        }
+        System.out.println("Parse, fix and write " + itemBody.length() + " characters: "
+                + (System.currentTimeMillis() - startTime) / count + " ms");
+        assertEquals(502, new VCalendar(body, "attendee@company.com", null).vObjects.size());
+    }
+}
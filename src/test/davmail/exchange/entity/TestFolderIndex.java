@@ -0,0 +1,255 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange.entity;
+
+import davmail.exchange.MessageList;
+import junit.framework.TestCase;
+
+import java.io.InputStream;
+
+/**
+ * Test compact folder index.
+ */
+public class TestFolderIndex extends TestCase {
+    static class TestMessage extends Message {
+        String permanentId;
+        String changeKey;
+
+        TestMessage(long imapUid) {
+            super(null);
+            this.imapUid = imapUid;
+            this.permanentId = "id" + imapUid;
+            this.changeKey = "ck" + imapUid;
+        }
+
+        @Override
+        public String getPermanentId() {
+            return permanentId;
+        }
+
+        @Override
+        public String getChangeKey() {
+            return changeKey;
+        }
+
+        @Override
+        protected void setIds(String permanentId, String changeKey) {
+            this.permanentId = permanentId;
+            this.changeKey = changeKey;
+        }
+
+        @Override
+        protected InputStream getMimeHeaders() {
+            return null;
+        }
+    }
+
+    public void testIndex() {
+        MessageList messages = new MessageList();
+        for (int i = 1; i <= 5; i++) {
+            TestMessage message = new TestMessage(i * 10);
+            message.read = i % 2 == 0;
+            message.keywords = i == 3 ? "red,blue" : null;
+            messages.add(message);
+        }
+        FolderIndex index = new FolderIndex(messages);
+        assertEquals(5, index.size());
+        assertEquals(30, index.getUid(2));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(index.hasSameFlags(i, messages.get(i)));
+        }
+
+        messages.get(0).flagged = true;
+        assertFalse(index.hasSameFlags(0, messages.get(0)));
+        messages.get(1).read = false;
+        assertFalse(index.hasSameFlags(1, messages.get(1)));
+        messages.get(2).keywords = "red";
+        assertFalse(index.hasSameFlags(2, messages.get(2)));
+        messages.get(3).keywords = "red,blue";
+        assertFalse(index.hasSameFlags(3, messages.get(3)));
+        assertTrue(index.hasSameFlags(4, messages.get(4)));
+    }
+
+    public void testGetMessage() {
+        MessageList messages = new MessageList();
+        for (int i = 1; i <= 3; i++) {
+            TestMessage message = new TestMessage(i * 10);
+            message.size = i * 1000;
+            message.modSeq = i;
+            message.date = "2010-01-0" + i + "T00:00:00.000Z";
+            message.contentClass = new String("urn:content-classes:message");
+            message.flagged = i == 2;
+            message.keywords = i == 3 ? "red" : null;
+            messages.add(message);
+        }
+        FolderIndex index = new FolderIndex(messages);
+        assertEquals(2000, index.getSize(1));
+        assertSame(index.contentClasses[0], index.contentClasses[2]);
+
+        MessageList messageList = new MessageList();
+        for (int i = 0; i < 3; i++) {
+            Message message = index.getMessage(i, messageList);
+            Message listedMessage = messages.get(i);
+            assertNotSame(listedMessage, message);
+            assertSame(messageList, message.messageList);
+            assertEquals(listedMessage.getPermanentId(), message.getPermanentId());
+            assertEquals(listedMessage.getChangeKey(), message.getChangeKey());
+            assertEquals(listedMessage.getImapUid(), message.getImapUid());
+            assertEquals(listedMessage.size, message.size);
+            assertEquals(listedMessage.modSeq, message.modSeq);
+            assertEquals(listedMessage.date, message.date);
+            assertEquals(listedMessage.flagged, message.flagged);
+            assertEquals(listedMessage.keywords, message.keywords);
+            assertTrue(index.hasSameFlags(i, message));
+        }
+
+        // reload shares unchanged ids with previous index
+        MessageList reloadedMessages = new MessageList();
+        for (int i = 2; i <= 4; i++) {
+            reloadedMessages.add(new TestMessage(i * 10));
+        }
+        ((TestMessage) reloadedMessages.get(1)).changeKey = "changed";
+        FolderIndex reloadedIndex = new FolderIndex(reloadedMessages, index);
+        assertSame(index.permanentIds[1], reloadedIndex.permanentIds[0]);
+        assertSame(index.changeKeys[1], reloadedIndex.changeKeys[0]);
+        assertNotSame(reloadedMessages.get(0).getPermanentId(), reloadedIndex.permanentIds[0]);
+        assertEquals("changed", reloadedIndex.changeKeys[1]);
+        assertEquals(2, reloadedIndex.indexOf(40));
+        assertTrue(reloadedIndex.indexOf(10) < 0);
+    }
+
+    public void testCopy() {
+        MessageList messages = new MessageList();
+        TestMessage message = new TestMessage(10);
+        message.messageList = messages;
+        message.prefetchedContent = new byte[10];
+        MessageList copyList = new MessageList();
+        Message copy = message.copy(copyList);
+        assertEquals(10, copy.getImapUid());
+        assertSame(copyList, copy.messageList);
+        assertNull(copy.prefetchedContent);
+        copy.read = true;
+        assertFalse(message.read);
+    }
+
+    public void testMessageView() {
+        MessageList listedMessages = new MessageList();
+        for (int i = 1; i <= 3; i++) {
+            listedMessages.add(new TestMessage(i * 10));
+        }
+        FolderIndex index = new FolderIndex(listedMessages);
+        Folder folder = new Folder(null);
+        folder.setIndex(index, 1);
+        Folder otherFolder = new Folder(null);
+        otherFolder.setIndex(index, 1);
+        assertEquals(3, folder.messages.size());
+        assertEquals(30, folder.messages.getImapUid(2));
+        assertSame(index, folder.getIndex());
+
+        Message message = folder.messages.get(1);
+        assertEquals(20, message.getImapUid());
+        assertSame(folder.messages, message.messageList);
+        // range iterators get the same message
+        assertSame(message, folder.messages.get(1));
+
+        // connection local update
+        message.read = true;
+        message.modSeq = 5;
+        message.setPrefetchedContent(new byte[10]);
+        folder.updatedMessages.put(message.getImapUid(), message);
+        folder.messages.get(0);
+        assertSame(message, folder.messages.get(1));
+        assertFalse(otherFolder.messages.get(1).read);
+        assertNull(otherFolder.messages.get(1).prefetchedContent);
+
+        // local updates are in connection index only
+        FolderIndex localIndex = folder.getIndex();
+        assertNotSame(index, localIndex);
+        assertTrue(localIndex.hasSameFlags(1, message));
+        assertFalse(index.hasSameFlags(1, localIndex, 1));
+        assertTrue(index.hasSameFlags(0, localIndex, 0));
+        assertEquals(5, localIndex.getModSeq(1));
+        assertEquals(0, index.getModSeq(1));
+
+        // reload drops local updates
+        folder.setIndex(index, 2);
+        assertFalse(folder.messages.get(1).read);
+    }
+
+    public void testModSeqIndex() {
+        MessageList messages = new MessageList();
+        for (int i = 1; i <= 3; i++) {
+            messages.add(new TestMessage(i));
+        }
+        ModSeqIndex modSeqIndex = new ModSeqIndex();
+        modSeqIndex.update(messages);
+        long initialModSeq = modSeqIndex.getHighestModSeq();
+        assertEquals(initialModSeq, messages.get(2).modSeq);
+
+        // unchanged listing keeps mod-sequences
+        modSeqIndex.update(messages);
+        assertEquals(initialModSeq, modSeqIndex.getHighestModSeq());
+
+        // flag change
+        messages.get(1).read = true;
+        modSeqIndex.update(messages);
+        assertEquals(initialModSeq, messages.get(0).modSeq);
+        assertTrue(messages.get(1).modSeq > initialModSeq);
+        assertEquals(messages.get(1).modSeq, modSeqIndex.getHighestModSeq());
+
+        // expunge
+        long changedModSeq = modSeqIndex.getHighestModSeq();
+        messages.remove(0);
+        modSeqIndex.update(messages);
+        assertTrue(modSeqIndex.getHighestModSeq() > changedModSeq);
+        assertEquals(changedModSeq, messages.get(0).modSeq);
+
+        // local store
+        long touchedModSeq = modSeqIndex.touch(messages.get(1));
+        assertEquals(touchedModSeq, messages.get(1).modSeq);
+        assertEquals(touchedModSeq, modSeqIndex.getHighestModSeq());
+        modSeqIndex.update(messages);
+        assertEquals(touchedModSeq, messages.get(1).modSeq);
+    }
+
+    public void testFolderStatus() {
+        Folder folder = new Folder(null);
+        folder.ctag = "ctag";
+        folder.count = 12;
+        folder.unreadCount = 3;
+        folder.uidNext = 40;
+        // Exchange counters only
+        FolderStatus folderStatus = FolderStatus.fromFolder(folder);
+        assertEquals(12, folderStatus.messages);
+        assertEquals(3, folderStatus.unseen);
+        assertEquals(40, folderStatus.uidNext);
+        assertFalse(folderStatus.listed);
+
+        // loaded folder
+        folder.messages = new MessageList();
+        TestMessage message = new TestMessage(10);
+        message.recent = true;
+        folder.messages.add(message);
+        folder.recent = 1;
+        folderStatus = FolderStatus.fromFolder(folder);
+        assertEquals(1, folderStatus.messages);
+        assertEquals(1, folderStatus.recent);
+        assertTrue(folderStatus.listed);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2010  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange.ews;
+
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test EWS response parsing without an Exchange server.
+ */
+public class TestEWSMethod extends TestCase {
+    protected byte[] buildGetItemResponse(byte[] mimeContent) throws IOException {
+        String response = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>" +
+                "<m:GetItemResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\"" +
+                " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\">" +
+                "<m:ResponseMessages><m:GetItemResponseMessage ResponseClass=\"Success\">" +
+                "<m:ResponseCode>NoError</m:ResponseCode><m:Items><t:Message>" +
+                "<t:MimeContent CharacterSet=\"UTF-8\">" + new String(Base64.encodeBase64Chunked(mimeContent), "ASCII") + "</t:MimeContent>" +
+                "<t:ItemId Id=\"itemid\" ChangeKey=\"changekey\"/>" +
+                "</t:Message></m:Items></m:GetItemResponseMessage></m:ResponseMessages>" +
+                "</m:GetItemResponse></s:Body></s:Envelope>";
+        return response.getBytes("UTF-8");
+    }
+
+    protected byte[] buildContent(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        return content;
+    }
+
+    public void testMimeContent() throws IOException {
+        byte[] content = buildContent(100000);
+        GetItemMethod getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, new ItemId("ItemId", "itemid", "changekey"), true);
+        getItemMethod.processResponseStream(new ByteArrayInputStream(buildGetItemResponse(content)));
+        assertNull(getItemMethod.errorDetail);
+        assertTrue(Arrays.equals(content, getItemMethod.responseItems.get(0).mimeContent));
+        assertEquals("changekey", getItemMethod.responseItems.get(0).get("ChangeKey"));
+    }
+
+    public void testStreamedMimeContent() throws IOException {
+        byte[] content = buildContent(100000);
+        GetItemMethod getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, new ItemId("ItemId", "itemid", "changekey"), true);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        getItemMethod.setMimeContentOutputStream(baos);
+        getItemMethod.processResponseStream(new ByteArrayInputStream(buildGetItemResponse(content)));
+        assertNull(getItemMethod.errorDetail);
+        assertEquals(content.length, getItemMethod.getMimeContentSize());
+        assertTrue(Arrays.equals(content, baos.toByteArray()));
+        assertNull(getItemMethod.responseItems.get(0).mimeContent);
+        // parsing continues after MimeContent
+        assertEquals("changekey", getItemMethod.responseItems.get(0).get("ChangeKey"));
+    }
+
+    public void testBatchGetItem() throws IOException {
+        List<ItemId> itemIds = new ArrayList<ItemId>();
+        itemIds.add(new ItemId("ItemId", "itemid1", "changekey1"));
+        itemIds.add(new ItemId("ItemId", "itemid2", "changekey2"));
+        itemIds.add(new ItemId("ItemId", "itemid3", "changekey3"));
+        GetItemMethod getItemMethod = new GetItemMethod(BaseShape.ID_ONLY, itemIds, true);
+        String request = new String(getItemMethod.generateSoapEnvelope(), "UTF-8");
+        assertTrue(request.contains("<m:ItemIds><t:ItemId Id=\"itemid1\" ChangeKey=\"changekey1\"/>"));
+        assertTrue(request.contains("<t:ItemId Id=\"itemid3\" ChangeKey=\"changekey3\"/></m:ItemIds>"));
+
+        byte[] content1 = buildContent(1000);
+        byte[] content2 = buildContent(2000);
+        String response = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>" +
+                "<m:GetItemResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\"" +
+                " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\"><m:ResponseMessages>" +
+                "<m:GetItemResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode><m:Items><t:Message>" +
+                "<t:MimeContent CharacterSet=\"UTF-8\">" + new String(Base64.encodeBase64(content1), "ASCII") + "</t:MimeContent>" +
+                "<t:ItemId Id=\"itemid1\" ChangeKey=\"changekey1\"/></t:Message></m:Items></m:GetItemResponseMessage>" +
+                "<m:GetItemResponseMessage ResponseClass=\"Error\"><m:MessageText>not found</m:MessageText>" +
+                "<m:ResponseCode>ErrorItemNotFound</m:ResponseCode><m:Items/></m:GetItemResponseMessage>" +
+                "<m:GetItemResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode><m:Items><t:Message>" +
+                "<t:MimeContent CharacterSet=\"UTF-8\">" + new String(Base64.encodeBase64(content2), "ASCII") + "</t:MimeContent>" +
+                "<t:ItemId Id=\"itemid3\" ChangeKey=\"changekey3\"/></t:Message></m:Items></m:GetItemResponseMessage>" +
+                "</m:ResponseMessages></m:GetItemResponse></s:Body></s:Envelope>";
+        getItemMethod.processResponseStream(new ByteArrayInputStream(response.getBytes("UTF-8")));
+        // item error is reported, other items are available
+        assertEquals("ErrorItemNotFound", getItemMethod.errorDetail);
+        assertEquals(2, getItemMethod.responseItems.size());
+        assertEquals("itemid1", getItemMethod.responseItems.get(0).get("ItemId"));
+        assertTrue(Arrays.equals(content1, getItemMethod.responseItems.get(0).mimeContent));
+        assertEquals("itemid3", getItemMethod.responseItems.get(1).get("ItemId"));
+        assertTrue(Arrays.equals(content2, getItemMethod.responseItems.get(1).mimeContent));
+    }
+
+    public void testSyncFolderItems() throws IOException {
+        SyncFolderItemsMethod syncFolderItemsMethod = new SyncFolderItemsMethod(BaseShape.ID_ONLY,
+                DistinguishedFolderId.getInstance(null, DistinguishedFolderId.Name.inbox), "previousstate", 512);
+        String request = new String(syncFolderItemsMethod.generateSoapEnvelope(), "UTF-8");
+        assertTrue(request.contains("<m:ItemShape><t:BaseShape>IdOnly</t:BaseShape></m:ItemShape><m:SyncFolderId>"));
+        assertTrue(request.contains("<m:SyncState>previousstate</m:SyncState><m:MaxChangesReturned>512</m:MaxChangesReturned>"));
+
+        String response = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>" +
+                "<m:SyncFolderItemsResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\"" +
+                " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\"><m:ResponseMessages>" +
+                "<m:SyncFolderItemsResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode>" +
+                "<m:SyncState>newstate</m:SyncState><m:IncludesLastItemInRange>false</m:IncludesLastItemInRange><m:Changes>" +
+                "<t:Create><t:Message><t:ItemId Id=\"itemid1\" ChangeKey=\"changekey1\"/><t:Size>100</t:Size></t:Message></t:Create>" +
+                "<t:Update><t:Message><t:ItemId Id=\"itemid2\" ChangeKey=\"changekey2\"/></t:Message></t:Update>" +
+                "<t:Delete><t:ItemId Id=\"itemid3\" ChangeKey=\"changekey3\"/></t:Delete>" +
+                "<t:ReadFlagChange><t:ItemId Id=\"itemid4\" ChangeKey=\"changekey4\"/><t:IsRead>true</t:IsRead></t:ReadFlagChange>" +
+                "</m:Changes></m:SyncFolderItemsResponseMessage></m:ResponseMessages>" +
+                "</m:SyncFolderItemsResponse></s:Body></s:Envelope>";
+        syncFolderItemsMethod.processResponseStream(new ByteArrayInputStream(response.getBytes("UTF-8")));
+        assertNull(syncFolderItemsMethod.errorDetail);
+        assertEquals("newstate", syncFolderItemsMethod.getSyncState());
+        assertFalse(syncFolderItemsMethod.includesLastItemInRange());
+        assertEquals(2, syncFolderItemsMethod.responseItems.size());
+        assertEquals("Message", syncFolderItemsMethod.responseItems.get(0).type);
+        assertEquals("itemid1", syncFolderItemsMethod.responseItems.get(0).get("ItemId"));
+        assertEquals("100", syncFolderItemsMethod.responseItems.get(0).get("Size"));
+        assertEquals("changekey2", syncFolderItemsMethod.responseItems.get(1).get("ChangeKey"));
+        assertEquals(Arrays.asList("itemid3"), syncFolderItemsMethod.getDeletedItemIds());
+        assertEquals(Boolean.TRUE, syncFolderItemsMethod.getReadFlagChanges().get("itemid4"));
+
+        List<SyncFolderItemsMethod.Change> changes = syncFolderItemsMethod.getChanges();
+        assertEquals(4, changes.size());
+        assertEquals(SyncFolderItemsMethod.ChangeType.CREATE, changes.get(0).type);
+        assertEquals("itemid1", changes.get(0).itemId);
+        assertEquals(SyncFolderItemsMethod.ChangeType.UPDATE, changes.get(1).type);
+        assertEquals("changekey2", changes.get(1).item.get("ChangeKey"));
+        assertEquals(SyncFolderItemsMethod.ChangeType.DELETE, changes.get(2).type);
+        assertEquals("itemid3", changes.get(2).itemId);
+        assertEquals(SyncFolderItemsMethod.ChangeType.READ_FLAG, changes.get(3).type);
+        assertTrue(changes.get(3).read);
+    }
+
+    public void testSyncFolderItemsChangeOrder() throws IOException {
+        SyncFolderItemsMethod syncFolderItemsMethod = new SyncFolderItemsMethod(BaseShape.ID_ONLY,
+                DistinguishedFolderId.getInstance(null, DistinguishedFolderId.Name.inbox), "previousstate", 512);
+        String response = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>" +
+                "<m:SyncFolderItemsResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\"" +
+                " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\"><m:ResponseMessages>" +
+                "<m:SyncFolderItemsResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode>" +
+                "<m:SyncState>newstate</m:SyncState><m:IncludesLastItemInRange>true</m:IncludesLastItemInRange><m:Changes>" +
+                "<t:ReadFlagChange><t:ItemId Id=\"itemid1\" ChangeKey=\"changekey1\"/><t:IsRead>true</t:IsRead></t:ReadFlagChange>" +
+                "<t:Update><t:Message><t:ItemId Id=\"itemid1\" ChangeKey=\"changekey2\"/></t:Message></t:Update>" +
+                "</m:Changes></m:SyncFolderItemsResponseMessage></m:ResponseMessages>" +
+                "</m:SyncFolderItemsResponse></s:Body></s:Envelope>";
+        syncFolderItemsMethod.processResponseStream(new ByteArrayInputStream(response.getBytes("UTF-8")));
+        // older read flag change comes first, update has the current read flag
+        List<SyncFolderItemsMethod.Change> changes = syncFolderItemsMethod.getChanges();
+        assertEquals(2, changes.size());
+        assertEquals(SyncFolderItemsMethod.ChangeType.READ_FLAG, changes.get(0).type);
+        assertEquals(SyncFolderItemsMethod.ChangeType.UPDATE, changes.get(1).type);
+        assertEquals("itemid1", changes.get(1).itemId);
+    }
+
+    public void testSubscribe() throws IOException {
+        SubscribeMethod subscribeMethod = new SubscribeMethod(DistinguishedFolderId.getInstance(null, DistinguishedFolderId.Name.inbox), 10);
+        String request = new String(subscribeMethod.generateSoapEnvelope(), "UTF-8");
+        assertTrue(request.contains("<m:PullSubscriptionRequest><t:FolderIds>"));
+        assertTrue(request.contains("<t:EventType>NewMailEvent</t:EventType>"));
+        assertTrue(request.contains("<t:Timeout>10</t:Timeout></m:PullSubscriptionRequest>"));
+
+        String response = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>" +
+                "<m:SubscribeResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\"><m:ResponseMessages>" +
+                "<m:SubscribeResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode>" +
+                "<m:SubscriptionId>subscriptionid</m:SubscriptionId><m:Watermark>watermark1</m:Watermark>" +
+                "</m:SubscribeResponseMessage></m:ResponseMessages></m:SubscribeResponse></s:Body></s:Envelope>";
+        subscribeMethod.processResponseStream(new ByteArrayInputStream(response.getBytes("UTF-8")));
+        assertNull(subscribeMethod.errorDetail);
+        assertEquals("subscriptionid", subscribeMethod.getSubscriptionId());
+        assertEquals("watermark1", subscribeMethod.getWatermark());
+    }
+
+    public void testGetEvents() throws IOException {
+        GetEventsMethod getEventsMethod = new GetEventsMethod("subscriptionid", "watermark1");
+        String request = new String(getEventsMethod.generateSoapEnvelope(), "UTF-8");
+        assertTrue(request.contains("<m:SubscriptionId>subscriptionid</m:SubscriptionId><m:Watermark>watermark1</m:Watermark>"));
+
+        String response = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>" +
+                "<m:GetEventsResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\"" +
+                " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\"><m:ResponseMessages>" +
+                "<m:GetEventsResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode>" +
+                "<m:Notification><t:SubscriptionId>subscriptionid</t:SubscriptionId>" +
+                "<t:PreviousWatermark>watermark1</t:PreviousWatermark><t:MoreEvents>true</t:MoreEvents>" +
+                "<t:StatusEvent><t:Watermark>watermark2</t:Watermark></t:StatusEvent>" +
+                "<t:NewMailEvent><t:Watermark>watermark3</t:Watermark><t:TimeStamp>2010-01-01T00:00:00Z</t:TimeStamp>" +
+                "<t:ItemId Id=\"itemid1\" ChangeKey=\"changekey1\"/><t:ParentFolderId Id=\"folderid\"/></t:NewMailEvent>" +
+                "</m:Notification></m:GetEventsResponseMessage></m:ResponseMessages>" +
+                "</m:GetEventsResponse></s:Body></s:Envelope>";
+        getEventsMethod.processResponseStream(new ByteArrayInputStream(response.getBytes("UTF-8")));
+        assertNull(getEventsMethod.errorDetail);
+        assertEquals("watermark3", getEventsMethod.getWatermark());
+        assertTrue(getEventsMethod.hasMoreEvents());
+        assertEquals(1, getEventsMethod.getEventCount());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2010  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.exchange.ews;
+
+import davmail.exchange.FolderListener;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test folder notifications with stubbed EWS methods.
+ */
+public class TestFolderNotifier extends TestCase {
+    protected static class StubFolderNotifier extends FolderNotifier {
+        protected boolean subscribeFails;
+        protected boolean getEventsFails;
+        protected int eventCount;
+        protected int subscribeCount;
+        protected int getEventsCount;
+
+        protected StubFolderNotifier() {
+            super(null);
+        }
+
+        @Override
+        public void run() {
+            // subscriptions are polled by the test
+        }
+
+        @Override
+        protected FolderId getFolderId(String folderPath) {
+            return null;
+        }
+
+        @Override
+        protected void executeMethod(EWSMethod ewsMethod) throws IOException {
+            if (ewsMethod instanceof SubscribeMethod) {
+                if (subscribeFails) {
+                    throw new EWSException("ErrorInternalServerTransientError");
+                }
+                SubscribeMethod subscribeMethod = (SubscribeMethod) ewsMethod;
+                subscribeMethod.subscriptionId = "subscription" + (++subscribeCount);
+                subscribeMethod.watermark = "watermark";
+            } else if (ewsMethod instanceof GetEventsMethod) {
+                getEventsCount++;
+                if (getEventsFails) {
+                    throw new EWSException("ErrorSubscriptionNotFound");
+                }
+                GetEventsMethod getEventsMethod = (GetEventsMethod) ewsMethod;
+                getEventsMethod.eventCount = eventCount;
+                getEventsMethod.lastWatermark = "watermark" + getEventsCount;
+            }
+        }
+    }
+
+    protected static class RecordingListener implements FolderListener {
+        protected final List<String> changedFolders = new ArrayList<String>();
+
+        public void folderChanged(String folderPath) {
+            changedFolders.add(folderPath);
+        }
+    }
+
+    protected StubFolderNotifier folderNotifier;
+    protected RecordingListener listener;
+
+    @Override
+    public void setUp() throws IOException {
+        folderNotifier = new StubFolderNotifier();
+        listener = new RecordingListener();
+        folderNotifier.addListener("INBOX", listener);
+    }
+
+    public void testNotifyOnEvents() {
+        assertEquals(1, folderNotifier.subscribeCount);
+
+        assertTrue(folderNotifier.pollSubscriptions());
+        assertEquals(0, listener.changedFolders.size());
+
+        folderNotifier.eventCount = 2;
+        assertTrue(folderNotifier.pollSubscriptions());
+        assertEquals(1, listener.changedFolders.size());
+        assertEquals("INBOX", listener.changedFolders.get(0));
+        assertEquals("watermark2", folderNotifier.subscriptions.get("INBOX").watermark);
+    }
+
+    public void testNotifyOnLostSubscription() {
+        folderNotifier.getEventsFails = true;
+        folderNotifier.subscribeFails = true;
+        assertTrue(folderNotifier.pollSubscriptions());
+        // changes may have been missed
+        assertEquals(1, listener.changedFolders.size());
+
+        // subscribe keeps failing, listeners rely on their own polling
+        assertTrue(folderNotifier.pollSubscriptions());
+        assertEquals(1, listener.changedFolders.size());
+
+        folderNotifier.getEventsFails = false;
+        folderNotifier.subscribeFails = false;
+        assertTrue(folderNotifier.pollSubscriptions());
+        // changes during resubscribe may have been missed
+        assertEquals(2, listener.changedFolders.size());
+        assertEquals(2, folderNotifier.subscribeCount);
+
+        folderNotifier.eventCount = 1;
+        assertTrue(folderNotifier.pollSubscriptions());
+        assertEquals(3, listener.changedFolders.size());
+    }
+
+    public void testRemoveListener() {
+        folderNotifier.removeListener("INBOX", listener);
+        folderNotifier.eventCount = 1;
+        assertTrue(folderNotifier.pollSubscriptions());
+        assertEquals(0, listener.changedFolders.size());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.imap;
+
+import davmail.exchange.MessageList;
+import davmail.exchange.entity.Message;
+import junit.framework.TestCase;
+
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test FETCH read ahead iterator without an Exchange server.
+ */
+public class TestFetchIterator extends TestCase {
+    static class TestMessage extends Message {
+        final AtomicInteger loadCount;
+        volatile boolean loaded;
+
+        TestMessage(long imapUid, AtomicInteger loadCount) {
+            super(null);
+            this.imapUid = imapUid;
+            this.size = 1000;
+            this.loadCount = loadCount;
+        }
+
+        @Override
+        public String getPermanentId() {
+            return String.valueOf(imapUid);
+        }
+
+        @Override
+        public String getChangeKey() {
+            return null;
+        }
+
+        @Override
+        protected void setIds(String permanentId, String changeKey) {
+            // permanent id is the IMAP uid
+        }
+
+        @Override
+        protected InputStream getMimeHeaders() {
+            return null;
+        }
+
+        @Override
+        public void loadMimeMessage() {
+            if (!loaded) {
+                loaded = true;
+                loadCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public boolean isLoaded() {
+            return loaded;
+        }
+    }
+
+    protected MessageList buildMessageList(int count, AtomicInteger loadCount) {
+        MessageList messageList = new MessageList();
+        for (int i = 1; i <= count; i++) {
+            TestMessage message = new TestMessage(i * 10, loadCount);
+            message.messageList = messageList;
+            messageList.add(message);
+        }
+        return messageList;
+    }
+
+    public void testReadAhead() {
+        AtomicInteger loadCount = new AtomicInteger();
+        MessageList messageList = buildMessageList(20, loadCount);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ImapConnection.AbstractRangeIterator iterator = new ImapConnection.ReadAheadIterator(
+                    new ImapConnection.RangeIterator(messageList, "3:12"), executor, 3, Long.MAX_VALUE);
+            int expectedIndex = 3;
+            while (iterator.hasNext()) {
+                TestMessage message = (TestMessage) iterator.next();
+                assertEquals(expectedIndex, iterator.currentIndex);
+                assertEquals(expectedIndex * 10, message.getImapUid());
+                // message loaded before it is returned
+                assertTrue(message.loaded);
+                // bounded read ahead
+                assertTrue(loadCount.get() <= expectedIndex - 2 + 3);
+                expectedIndex++;
+            }
+            assertEquals(13, expectedIndex);
+            iterator.release();
+            assertEquals(10, loadCount.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testReadAheadSizeLimit() {
+        AtomicInteger loadCount = new AtomicInteger();
+        MessageList messageList = buildMessageList(20, loadCount);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ImapConnection.AbstractRangeIterator iterator = new ImapConnection.ReadAheadIterator(
+                    new ImapConnection.UIDRangeIterator(messageList, "1:*"), executor, 10, 2000);
+            iterator.next();
+            // at most two messages ahead with a 2000 bytes limit
+            assertTrue(loadCount.get() <= 3);
+            iterator.release();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testContentRequest() {
+        assertFalse(ImapConnection.isContentRequest(null));
+        assertFalse(ImapConnection.isContentRequest("(FLAGS)"));
+        assertFalse(ImapConnection.isContentRequest("(UID RFC822.SIZE FLAGS BODY.PEEK[HEADER.FIELDS (From To Subject)])"));
+        assertTrue(ImapConnection.isContentRequest("(UID RFC822.SIZE)"));
+        assertTrue(ImapConnection.isContentRequest("(BODY.PEEK[])"));
+        assertTrue(ImapConnection.isContentRequest("(BODY[TEXT])"));
+        assertTrue(ImapConnection.isContentRequest("(RFC822)"));
+        assertTrue(ImapConnection.isContentRequest("(FLAGS BODYSTRUCTURE)"));
+    }
+
+    public void testHeaderRequest() {
+        assertFalse(ImapConnection.isHeaderRequest(null));
+        assertFalse(ImapConnection.isHeaderRequest("(FLAGS)"));
+        assertTrue(ImapConnection.isHeaderRequest("(UID FLAGS ENVELOPE)"));
+        assertTrue(ImapConnection.isHeaderRequest("(UID RFC822.SIZE FLAGS BODY.PEEK[HEADER.FIELDS (From To Subject)])"));
+    }
+
+    public void testPrefetchedHeaders() throws Exception {
+        TestMessage message = new TestMessage(10, new AtomicInteger());
+        message.messageList = new MessageList();
+        // headers not available from server
+        assertNull(message.getInternetHeaders());
+        message.setPrefetchedHeaders("Subject: test\r\nFrom: user@company.com\r\n\r\n".getBytes("UTF-8"));
+        assertTrue(message.hasPrefetchedHeaders());
+        Enumeration headerLines = message.getMatchingHeaderLinesFromHeaders(new String[]{"Subject"});
+        assertEquals("Subject: test", headerLines.nextElement());
+        assertFalse(headerLines.hasMoreElements());
+        // message content was not loaded
+        assertFalse(message.loaded);
+        message.releaseMimeMessage();
+        assertFalse(message.hasPrefetchedHeaders());
+    }
+}
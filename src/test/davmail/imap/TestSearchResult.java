@@ -0,0 +1,164 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2009  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.imap;
+
+import davmail.exchange.MessageList;
+import davmail.exchange.entity.Message;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test and benchmark SEARCH result merging on large folders without an Exchange server.
+ */
+public class TestSearchResult extends TestCase {
+    protected MessageList buildMessageList(int count) {
+        MessageList messageList = new MessageList();
+        AtomicInteger loadCount = new AtomicInteger();
+        for (int i = 1; i <= count; i++) {
+            TestFetchIterator.TestMessage message = new TestFetchIterator.TestMessage(i, loadCount);
+            message.messageList = messageList;
+            message.draft = i % 3 == 0;
+            messageList.add(message);
+        }
+        return messageList;
+    }
+
+    /**
+     * Every other message matches server side search.
+     *
+     * @param messages folder messages
+     * @return search result
+     */
+    protected MessageList buildSearchResult(MessageList messages) {
+        MessageList searchResult = new MessageList();
+        for (int i = 0; i < messages.size(); i += 2) {
+            searchResult.add(messages.get(i));
+        }
+        return searchResult;
+    }
+
+    protected ImapConnection.SearchConditions getDraftConditions(Boolean draft) {
+        ImapConnection.SearchConditions conditions = new ImapConnection.SearchConditions();
+        conditions.draft = draft;
+        return conditions;
+    }
+
+    public void testToSortedSet() {
+        long[] uids = {5, 3, 5, 1, 3, 0};
+        long[] sortedSet = ImapConnection.toSortedSet(uids, 5);
+        assertEquals(3, sortedSet.length);
+        assertEquals(1, sortedSet[0]);
+        assertEquals(3, sortedSet[1]);
+        assertEquals(5, sortedSet[2]);
+    }
+
+    public void testFilterSearchResult() {
+        MessageList messages = buildMessageList(20);
+        MessageList searchResult = buildSearchResult(messages);
+        long[] uids = ImapConnection.filterSearchResult(new ImapConnection.RangeIterator(messages, "1:10"),
+                ImapConnection.getSortedUids(searchResult), getDraftConditions(null));
+        assertEquals(5, uids.length);
+        assertEquals(1, uids[0]);
+        assertEquals(9, uids[4]);
+
+        uids = ImapConnection.filterSearchResult(searchResult.iterator(), null, getDraftConditions(Boolean.TRUE));
+        // odd multiples of 3
+        assertEquals(3, uids.length);
+        assertEquals(3, uids[0]);
+        assertEquals(15, uids[2]);
+    }
+
+    public void testFilterSearchResultSize() {
+        MessageList messages = buildMessageList(20);
+        for (Message message : messages) {
+            message.size = (int) message.getImapUid() * 100;
+        }
+        ImapConnection.SearchConditions conditions = new ImapConnection.SearchConditions();
+        conditions.larger = 500;
+        conditions.smaller = 1000;
+        long[] uids = ImapConnection.filterSearchResult(messages.iterator(), null, conditions);
+        assertEquals(4, uids.length);
+        assertEquals(6, uids[0]);
+        assertEquals(9, uids[3]);
+    }
+
+    public void testBenchmark() {
+        int folderSize = 100000;
+        MessageList messages = buildMessageList(folderSize);
+        MessageList searchResult = buildSearchResult(messages);
+
+        long startTime = System.currentTimeMillis();
+        long[] uids = ImapConnection.filterSearchResult(new ImapConnection.RangeIterator(messages, "1:*"),
+                ImapConnection.getSortedUids(searchResult), getDraftConditions(Boolean.FALSE));
+        long sortedSetTime = System.currentTimeMillis() - startTime;
+
+        // previous implementation: list contains for each message, run on a smaller folder
+        int listFolderSize = 20000;
+        MessageList listMessages = buildMessageList(listFolderSize);
+        MessageList listSearchResult = buildSearchResult(listMessages);
+        startTime = System.currentTimeMillis();
+        List<Long> searchUidList = new ArrayList<Long>();
+        for (Message message : listSearchResult) {
+            searchUidList.add(message.getImapUid());
+        }
+        List<Long> uidList = new ArrayList<Long>();
+        for (Message message : listMessages) {
+            if (!message.draft && searchUidList.contains(message.getImapUid())) {
+                uidList.add(message.getImapUid());
+            }
+        }
+        long listTime = System.currentTimeMillis() - startTime;
+
+        System.out.println("Sorted uid set on " + folderSize + " messages: " + sortedSetTime + " ms, uid list on "
+                + listFolderSize + " messages: " + listTime + " ms");
+        // half of the messages minus drafts
+        assertEquals(33333, uids.length);
+        assertEquals(6667, uidList.size());
+        assertTrue(sortedSetTime < 1000);
+    }
+
+    public void testGetVanishedUids() {
+        MessageList messages = new MessageList();
+        AtomicInteger loadCount = new AtomicInteger();
+        for (long uid : new long[]{2, 3, 7, 10}) {
+            messages.add(new TestFetchIterator.TestMessage(uid, loadCount));
+        }
+        assertEquals("1,4:6,8:9", ImapConnection.getVanishedUids("1:*", messages, 10));
+        assertEquals("4:6,11", ImapConnection.getVanishedUids("3:7,10:11", messages, 12));
+        assertEquals("", ImapConnection.getVanishedUids("2,3,7", messages, 10));
+    }
+
+    public void testChangedSinceIterator() {
+        MessageList messages = buildMessageList(10);
+        for (int i = 0; i < messages.size(); i++) {
+            messages.get(i).modSeq = i + 1;
+        }
+        ImapConnection.ChangedSinceIterator iterator = new ImapConnection.ChangedSinceIterator(
+                new ImapConnection.UIDRangeIterator(messages, "3:*"), 7);
+        assertTrue(iterator.hasNext());
+        assertEquals(8, iterator.next().getImapUid());
+        assertEquals(8, iterator.getCurrentIndex());
+        assertEquals(9, iterator.next().getImapUid());
+        assertEquals(10, iterator.next().getImapUid());
+        assertFalse(iterator.hasNext());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * DavMail POP/IMAP/SMTP/CalDav/LDAP Exchange Gateway
+ * Copyright (C) 2010  Mickael Guessant
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package davmail.io;
+
+import davmail.util.IOUtil;
+import junit.framework.TestCase;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Test spool output stream, partial output stream and content ranges.
+ */
+public class TestSpoolOutputStream extends TestCase {
+    static final String MESSAGE = "Subject: test\r\nFrom: test@example.com\r\n\r\nmessage body\r\n";
+
+    public void testMemoryContent() throws IOException {
+        SpoolOutputStream spoolOutputStream = new SpoolOutputStream(1024);
+        spoolOutputStream.write(MESSAGE.getBytes());
+        assertFalse(spoolOutputStream.isSpooled());
+        assertEquals(MESSAGE.length(), spoolOutputStream.size());
+        InputStream inputStream = spoolOutputStream.getInputStream();
+        assertTrue(inputStream instanceof SharedByteArrayInputStream);
+        assertEquals(MESSAGE, new String(spoolOutputStream.toByteArray()));
+    }
+
+    public void testSpooledContent() throws IOException, MessagingException {
+        SpoolOutputStream spoolOutputStream = new SpoolOutputStream(16);
+        for (byte b : MESSAGE.getBytes()) {
+            spoolOutputStream.write(b);
+        }
+        assertTrue(spoolOutputStream.isSpooled());
+        assertEquals(MESSAGE.length(), spoolOutputStream.size());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        spoolOutputStream.writeTo(baos);
+        assertEquals(MESSAGE, baos.toString());
+
+        InputStream inputStream = spoolOutputStream.getInputStream();
+        assertTrue(inputStream instanceof SharedFileInputStream);
+        MimeMessage mimeMessage = new MimeMessage(null, ((SharedInputStream) inputStream).newStream(0, -1));
+        assertEquals("test", mimeMessage.getSubject());
+        assertEquals(MESSAGE.length(), ((SharedInputStream) inputStream).newStream(0, -1).available());
+        inputStream.close();
+        // spool file deleted on close
+        try {
+            ((SharedInputStream) inputStream).newStream(0, -1);
+            fail("Stream should be closed");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    public void testDelete() throws IOException {
+        SpoolOutputStream spoolOutputStream = new SpoolOutputStream(4);
+        spoolOutputStream.write(MESSAGE.getBytes());
+        spoolOutputStream.delete();
+        try {
+            spoolOutputStream.getInputStream();
+            fail("Content should be released");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    protected String partialWrite(String value, int startIndex, int maxSize, boolean bulk) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PartialOutputStream partialOutputStream = new PartialOutputStream(baos, startIndex, maxSize);
+        byte[] bytes = value.getBytes();
+        if (bulk) {
+            // write in 3 bytes chunks
+            for (int i = 0; i < bytes.length; i += 3) {
+                partialOutputStream.write(bytes, i, Math.min(3, bytes.length - i));
+            }
+        } else {
+            for (byte b : bytes) {
+                partialOutputStream.write(b);
+            }
+        }
+        return baos.toString();
+    }
+
+    public void testPartialOutputStream() throws IOException {
+        int[][] ranges = {{0, Integer.MAX_VALUE}, {0, 5}, {4, 7}, {10, 100}, {100, 10}};
+        for (int[] range : ranges) {
+            assertEquals(partialWrite(MESSAGE, range[0], range[1], false), partialWrite(MESSAGE, range[0], range[1], true));
+        }
+        assertEquals("ject: ", partialWrite(MESSAGE, 3, 6, true));
+    }
+
+    protected String readRange(InputStream inputStream, int startIndex, int maxSize) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IOUtil.write(IOUtil.getRange((SharedInputStream) inputStream, startIndex, maxSize), baos);
+        return baos.toString();
+    }
+
+    public void testRange() throws IOException {
+        int[][] ranges = {{0, Integer.MAX_VALUE}, {0, 5}, {4, 7}, {10, 100}, {100, 10}};
+        for (int threshold : new int[]{1024, 16}) {
+            SpoolOutputStream spoolOutputStream = new SpoolOutputStream(threshold);
+            spoolOutputStream.write(MESSAGE.getBytes());
+            InputStream inputStream = spoolOutputStream.getInputStream();
+            for (int[] range : ranges) {
+                assertEquals(partialWrite(MESSAGE, range[0], range[1], true), readRange(inputStream, range[0], range[1]));
+            }
+            // successive chunks read from the same content
+            StringBuilder chunks = new StringBuilder();
+            for (int i = 0; i < MESSAGE.length(); i += 10) {
+                chunks.append(readRange(((SharedInputStream) inputStream).newStream(0, -1), i, 10));
+            }
+            assertEquals(MESSAGE, chunks.toString());
+            inputStream.close();
+        }
+    }
+}